@@ -0,0 +1,64 @@
+package wnukowski.damian.game;
+
+import org.openjdk.jmh.annotations.*;
+import wnukowski.damian.game.GameRoom.Color;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fixed depth search of {@link Engine} from the starting position and from a middle game position. Score is searches
+ * per second, {@code nodes} secondary result is visited positions per second. Transposition table size is
+ * the memory cap of one search, {@code -prof gc} shows search doesn't allocate beyond the returned move.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class EngineBenchmark {
+    // after 24 plies of the engine playing itself at depth 6, 7 men each, white to move
+    private static final int MIDDLE_GAME_WHITE = 0xE4242000;
+    private static final int MIDDLE_GAME_BLACK = 0x00001C74;
+    private static final int MIDDLE_GAME_KINGS = 0;
+    private static final long NO_DEADLINE = TimeUnit.HOURS.toNanos(1);
+
+    @Param({"8", "12"})
+    public int depth;
+
+    @Param({"256", "4096"})
+    public int tableKilobytes;
+
+    private final BitBoard start = new BitBoard();
+    private Engine engine;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Nodes {
+        public long nodes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            nodes = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        engine = new Engine(tableKilobytes * 1024);
+    }
+
+    @Benchmark
+    public Engine.Result startingPosition(Nodes counter) {
+        return count(counter, engine.search(start.getWhite(), start.getBlack(), start.getKings(), Color.WHITE, depth,
+                System.nanoTime() + NO_DEADLINE));
+    }
+
+    @Benchmark
+    public Engine.Result middleGame(Nodes counter) {
+        return count(counter, engine.search(MIDDLE_GAME_WHITE, MIDDLE_GAME_BLACK, MIDDLE_GAME_KINGS, Color.WHITE, depth,
+                System.nanoTime() + NO_DEADLINE));
+    }
+
+    private static Engine.Result count(Nodes counter, Engine.Result result) {
+        counter.nodes += result.getNodes();
+        return result;
+    }
+}
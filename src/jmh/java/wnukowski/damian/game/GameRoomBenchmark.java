@@ -0,0 +1,134 @@
+package wnukowski.damian.game;
+
+import org.openjdk.jmh.annotations.*;
+import wnukowski.damian.server.ServerState;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class GameRoomBenchmark {
+    private static final List<String> SIMPLE_MOVE = Arrays.asList("a3", "b4");
+    private static final List<String> ILLEGAL_MOVE = Arrays.asList("a3", "c5");
+
+    private static final List<List<String>> SINGLE_JUMP_OPENING = Arrays.asList(
+            Arrays.asList("c3", "d4"), Arrays.asList("f6", "e5"));
+    private static final List<String> SINGLE_JUMP = Arrays.asList("d4", "f6");
+
+    private static final List<List<String>> MULTI_JUMP_OPENING = Arrays.asList(
+            Arrays.asList("a3", "b4"), Arrays.asList("b6", "a5"), Arrays.asList("b4", "c5"),
+            Arrays.asList("d6", "b4"), Arrays.asList("b2", "a3"), Arrays.asList("a7", "b6"));
+    private static final List<String> MULTI_JUMP = Arrays.asList("a3", "c5", "a7");
+
+    private GameRoom room;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        room = startedRoom();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        ServerState.gameRooms.clear();
+    }
+
+    @Benchmark
+    public boolean moveSimple(StartingPosition position) {
+        return position.room.move(SIMPLE_MOVE, position.room.getWhiteUUID());
+    }
+
+    @Benchmark
+    public boolean moveSingleJump(SingleJumpPosition position) {
+        return position.room.move(SINGLE_JUMP, position.room.getWhiteUUID());
+    }
+
+    @Benchmark
+    public boolean moveMultiJump(MultiJumpPosition position) {
+        return position.room.move(MULTI_JUMP, position.room.getWhiteUUID());
+    }
+
+    @Benchmark
+    public boolean moveIllegal() {
+        return room.move(ILLEGAL_MOVE, room.getWhiteUUID());
+    }
+
+    @Benchmark
+    public String wholeRoomStateAsString() {
+        return room.getWholeRoomStateAsString();
+    }
+
+    @Benchmark
+    public GameRoom.State gameState() {
+        return room.getGameState();
+    }
+
+    static GameRoom startedRoom() {
+        GameRoom gameRoom = new GameRoom();
+        gameRoom.join(gameRoom.getRoomUUID(), gameRoom.getWhiteUUID());
+        gameRoom.join(gameRoom.getRoomUUID(), gameRoom.getBlackUUID());
+        return gameRoom;
+    }
+
+    static GameRoom roomAfter(List<List<String>> opening) {
+        GameRoom gameRoom = startedRoom();
+        boolean white = true;
+        for (List<String> move : opening) {
+            if (!gameRoom.move(move, white ? gameRoom.getWhiteUUID() : gameRoom.getBlackUUID())) {
+                throw new IllegalStateException("Opening move rejected: " + move);
+            }
+            white = !white;
+        }
+        return gameRoom;
+    }
+
+    /**
+     * Moves change the room, so each invocation gets fresh one.
+     */
+    @State(Scope.Thread)
+    public static class StartingPosition {
+        GameRoom room;
+
+        @Setup(Level.Invocation)
+        public void setUp() {
+            room = startedRoom();
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown() {
+            ServerState.gameRooms.remove(room.getRoomUUID());
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class SingleJumpPosition {
+        GameRoom room;
+
+        @Setup(Level.Invocation)
+        public void setUp() {
+            room = roomAfter(SINGLE_JUMP_OPENING);
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown() {
+            ServerState.gameRooms.remove(room.getRoomUUID());
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class MultiJumpPosition {
+        GameRoom room;
+
+        @Setup(Level.Invocation)
+        public void setUp() {
+            room = roomAfter(MULTI_JUMP_OPENING);
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown() {
+            ServerState.gameRooms.remove(room.getRoomUUID());
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package wnukowski.damian.game;
+
+import org.openjdk.jmh.annotations.*;
+import wnukowski.damian.server.ServerState;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Startup recovery of rooms with both players joined and {@code movesPerRoom} moves made, either replayed from
+ * journal segment only or loaded from snapshot.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class JournalRecoveryBenchmark {
+    @Param({"100000"})
+    private int rooms;
+
+    @Param({"10"})
+    private int movesPerRoom;
+
+    @Param({"journal", "snapshot"})
+    private String source;
+
+    private Path directory;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("journal-benchmark");
+        GameJournal journal = GameJournal.open(directory, 10, TimeUnit.DAYS.toSeconds(1));
+        List<List<String>> moves = openingMoves(movesPerRoom);
+        for (int i = 0; i < rooms; i++) {
+            GameRoom room = new GameRoom();
+            room.join(room.getRoomUUID(), room.getWhiteUUID());
+            room.join(room.getRoomUUID(), room.getBlackUUID());
+            for (int move = 0; move < moves.size(); move++) {
+                room.move(moves.get(move), move % 2 == 0 ? room.getWhiteUUID() : room.getBlackUUID());
+            }
+        }
+        if (source.equals("snapshot")) {
+            journal.requestSnapshot();
+        }
+        journal.close();
+        clearRooms();
+    }
+
+    @TearDown(Level.Iteration)
+    public void clearRooms() {
+        // evicted rooms cancel their flag timeouts, otherwise timer wheel keeps them in memory
+        ServerState.gameRooms.values().forEach(GameRoom::evict);
+        ServerState.gameRooms.clear();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    @Benchmark
+    public int recover() throws IOException {
+        GameJournal.recover(directory);
+        return ServerState.gameRooms.size();
+    }
+
+    /**
+     * @return first generated legal move in every position, starting from the initial one
+     */
+    private static List<List<String>> openingMoves(int count) {
+        BitBoard board = new BitBoard();
+        MoveList legalMoves = new MoveList();
+        List<List<String>> moves = new ArrayList<>();
+        GameRoom.Color movingPlayer = GameRoom.Color.WHITE;
+        for (int i = 0; i < count && MoveGenerator.generate(board, movingPlayer, legalMoves) > 0; i++) {
+            List<String> move = new ArrayList<>();
+            for (int pathIndex = 0; pathIndex < legalMoves.pathLength(0); pathIndex++) {
+                StringBuilder square = new StringBuilder(2);
+                BitBoard.appendSquareName(square, legalMoves.square(0, pathIndex));
+                move.add(square.toString());
+            }
+            moves.add(move);
+            board.makeMove(legalMoves, 0, movingPlayer);
+            movingPlayer = movingPlayer == GameRoom.Color.WHITE ? GameRoom.Color.BLACK : GameRoom.Color.WHITE;
+        }
+        return moves;
+    }
+}
@@ -0,0 +1,58 @@
+package wnukowski.damian.game;
+
+import org.openjdk.jmh.annotations.*;
+import wnukowski.damian.server.ServerState;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Both players of one room send moves at the same time, latency distribution of a move with room lock only
+ * ({@code locked}) and with changes run by {@link RoomShards} ({@code sharded}). Moves are illegal, so the room
+ * stays in starting position and every call is the same amount of work.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Group)
+public class RoomShardsBenchmark {
+    private static final int[] ILLEGAL_MOVE = {BitBoard.parseSquare("a3"), BitBoard.parseSquare("c5")};
+
+    private GameRoom room;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        room = new GameRoom();
+        room.join(room.getRoomUUID(), room.getWhiteUUID());
+        room.join(room.getRoomUUID(), room.getBlackUUID());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        ServerState.gameRooms.clear();
+    }
+
+    @Benchmark
+    @Group("locked")
+    public boolean lockedWhite() {
+        return room.move(ILLEGAL_MOVE, ILLEGAL_MOVE.length, room.getWhiteUUID());
+    }
+
+    @Benchmark
+    @Group("locked")
+    public boolean lockedBlack() {
+        return room.move(ILLEGAL_MOVE, ILLEGAL_MOVE.length, room.getBlackUUID());
+    }
+
+    @Benchmark
+    @Group("sharded")
+    @Fork(jvmArgsAppend = "-DroomShards=1")
+    public boolean shardedWhite() {
+        return room.move(ILLEGAL_MOVE, ILLEGAL_MOVE.length, room.getWhiteUUID());
+    }
+
+    @Benchmark
+    @Group("sharded")
+    @Fork(jvmArgsAppend = "-DroomShards=1")
+    public boolean shardedBlack() {
+        return room.move(ILLEGAL_MOVE, ILLEGAL_MOVE.length, room.getBlackUUID());
+    }
+}
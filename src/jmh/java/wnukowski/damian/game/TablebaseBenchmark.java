@@ -0,0 +1,55 @@
+package wnukowski.damian.game;
+
+import org.openjdk.jmh.annotations.*;
+import wnukowski.damian.game.GameRoom.Color;
+
+import java.nio.ByteBuffer;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Tablebase#probe(int, int, int, Color)} of random kings only positions, half with black to move. Tablebase is
+ * generated in memory at setup, probe time shouldn't depend on its size.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class TablebaseBenchmark {
+    private static final int POSITIONS = 1024;
+
+    @Param({"3", "4"})
+    public int pieces;
+
+    private Tablebase tablebase;
+    private final int[] white = new int[POSITIONS];
+    private final int[] black = new int[POSITIONS];
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws InterruptedException {
+        byte[] file = TablebaseGenerator.generate(pieces, Runtime.getRuntime().availableProcessors());
+        tablebase = new Tablebase(ByteBuffer.wrap(file), pieces);
+        SplittableRandom random = new SplittableRandom(42);
+        for (int i = 0; i < POSITIONS; i++) {
+            int occupied = 0;
+            for (int piece = 0; piece < pieces; piece++) {
+                int square;
+                do {
+                    square = random.nextInt(BitBoard.SQUARES);
+                } while ((occupied & (1 << square)) != 0);
+                occupied |= 1 << square;
+                if (piece % 2 == 0) {
+                    white[i] |= 1 << square;
+                } else {
+                    black[i] |= 1 << square;
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public Tablebase.Result probe() {
+        int i = next++ & (POSITIONS - 1);
+        return tablebase.probe(white[i], black[i], white[i] | black[i], (i & 1) == 0 ? Color.WHITE : Color.BLACK);
+    }
+}
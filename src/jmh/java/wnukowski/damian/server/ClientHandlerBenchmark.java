@@ -0,0 +1,97 @@
+package wnukowski.damian.server;
+
+import org.openjdk.jmh.annotations.*;
+import wnukowski.damian.game.GameRoom;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link ClientHandler#processLine(byte[], int, int)} per command type. Commands changing client state are
+ * measured in pairs which bring it back (e.g. JOIN + LEAVE), so every invocation starts from the same state.
+ * <p>
+ * Run with {@code -Djmh.args="-prof gc ClientHandlerBenchmark"} to see allocations per command - GET_STATE, rejected
+ * MOVE and invalid commands don't allocate.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class ClientHandlerBenchmark {
+    private static final byte[] LEAVE = line("LEAVE");
+    private static final byte[] CREATE = line("CREATE");
+    private static final byte[] GET_STATE = line("GET_STATE");
+    private static final byte[] MOVE = line("MOVE a3 c5");
+    private static final byte[] REQUEST_A_DRAW = line("REQUEST_A_DRAW");
+    private static final byte[] CANCEL_DRAW_REQUEST = line("CANCEL_DRAW_REQUEST");
+    private static final byte[] NOT_A_COMMAND = line("NOT_A_COMMAND");
+
+    private ClientHandler outsideOfRoom;
+    private ClientHandler inRoom;
+    private byte[] joinCommand;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        outsideOfRoom = new ClientHandler();
+
+        // room with both players, white is second handler, black never leaves so room is not removed
+        GameRoom gameRoom = new GameRoom();
+        gameRoom.join(gameRoom.getRoomUUID(), gameRoom.getBlackUUID());
+        inRoom = new ClientHandler();
+        String response = inRoom.processCommand("JOIN " + gameRoom.getRoomUUID() + " " + gameRoom.getWhiteUUID());
+        if (!response.equals(ServerCodes.ROOM_JOINED)) {
+            throw new IllegalStateException("Can't join room: " + response);
+        }
+
+        GameRoom roomToJoin = new GameRoom();
+        roomToJoin.join(roomToJoin.getRoomUUID(), roomToJoin.getBlackUUID());
+        joinCommand = line("JOIN " + roomToJoin.getRoomUUID() + " " + roomToJoin.getWhiteUUID());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        ServerState.gameRooms.clear();
+    }
+
+    @Benchmark
+    public ByteBuffer joinAndLeave() {
+        process(outsideOfRoom, joinCommand);
+        return process(outsideOfRoom, LEAVE);
+    }
+
+    @Benchmark
+    public ByteBuffer createAndLeave() {
+        process(outsideOfRoom, CREATE);
+        return process(outsideOfRoom, LEAVE);
+    }
+
+    @Benchmark
+    public ByteBuffer getState() {
+        return process(inRoom, GET_STATE);
+    }
+
+    @Benchmark
+    public ByteBuffer moveRejected() {
+        // parsed and validated, but illegal in starting position so board stays the same
+        return process(inRoom, MOVE);
+    }
+
+    @Benchmark
+    public ByteBuffer requestAndCancelDraw() {
+        process(inRoom, REQUEST_A_DRAW);
+        return process(inRoom, CANCEL_DRAW_REQUEST);
+    }
+
+    @Benchmark
+    public ByteBuffer invalidSyntax() {
+        return process(inRoom, NOT_A_COMMAND);
+    }
+
+    private static ByteBuffer process(ClientHandler handler, byte[] line) {
+        return handler.processLine(line, 0, line.length);
+    }
+
+    private static byte[] line(String command) {
+        return command.getBytes(StandardCharsets.UTF_8);
+    }
+}
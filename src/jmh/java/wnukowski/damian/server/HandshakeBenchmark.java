@@ -0,0 +1,147 @@
+package wnukowski.damian.server;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509ExtendedTrustManager;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TLS handshakes per second between client and server {@link SSLEngine}s exchanging bytes in memory, so the score is
+ * the CPU cost of the handshake without network round trips. {@code full} client never offers a session,
+ * {@code resumed} client reuses the session of the previous handshake - by session ticket or, with
+ * {@code sessionTickets=false}, by the server session cache. The ticket setting is read by JSSE once per JVM, so
+ * the benchmark has to be run forked.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class HandshakeBenchmark {
+    @Param({"true", "false"})
+    public String sessionTickets;
+
+    private SSLContext serverContext;
+    private SSLContext clientContext;
+    private ByteBuffer clientToServer;
+    private ByteBuffer serverToClient;
+    private ByteBuffer clientApplication;
+    private ByteBuffer serverApplication;
+    private final ByteBuffer empty = ByteBuffer.allocate(0);
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        System.setProperty("jdk.tls.server.enableSessionTicketExtension", sessionTickets);
+        serverContext = Server.getSslContext("ssl/certificate.jks", "passphrase");
+        clientContext = SSLContext.getInstance("TLS");
+        clientContext.init(null, new TrustManager[]{trustAll()}, null);
+        int packetSize = serverContext.createSSLEngine().getSession().getPacketBufferSize();
+        int applicationSize = serverContext.createSSLEngine().getSession().getApplicationBufferSize();
+        clientToServer = ByteBuffer.allocate(packetSize);
+        serverToClient = ByteBuffer.allocate(packetSize);
+        clientApplication = ByteBuffer.allocate(applicationSize);
+        serverApplication = ByteBuffer.allocate(applicationSize);
+        // session for the first resumed handshake
+        handshake(clientContext.createSSLEngine("localhost", 1));
+    }
+
+    @Benchmark
+    public SSLEngine full() throws SSLException {
+        // engine without peer host and port doesn't look up cached sessions
+        return handshake(clientContext.createSSLEngine());
+    }
+
+    @Benchmark
+    public SSLEngine resumed() throws SSLException {
+        return handshake(clientContext.createSSLEngine("localhost", 1));
+    }
+
+    private SSLEngine handshake(SSLEngine client) throws SSLException {
+        client.setUseClientMode(true);
+        SSLEngine server = serverContext.createSSLEngine();
+        server.setUseClientMode(false);
+        client.beginHandshake();
+        server.beginHandshake();
+        clientToServer.clear();
+        serverToClient.clear();
+        // until no bytes flow, so session ticket sent after the handshake reaches the client too
+        boolean progress = true;
+        while (progress) {
+            progress = step(client, clientToServer, serverToClient, clientApplication);
+            progress |= step(server, serverToClient, clientToServer, serverApplication);
+        }
+        if (client.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING
+                || server.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+            throw new IllegalStateException("Handshake didn't finish");
+        }
+        return client;
+    }
+
+    // wraps into output, unwraps from input, returns whether any bytes were produced or consumed
+    private boolean step(SSLEngine engine, ByteBuffer output, ByteBuffer input, ByteBuffer application)
+            throws SSLException {
+        boolean progress = false;
+        SSLEngineResult result;
+        do {
+            result = engine.wrap(empty, output);
+            progress |= result.bytesProduced() > 0;
+            runTasks(engine);
+        } while (result.bytesProduced() > 0 && engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP);
+        input.flip();
+        do {
+            application.clear();
+            result = engine.unwrap(input, application);
+            progress |= result.bytesConsumed() > 0;
+            runTasks(engine);
+        } while (result.bytesConsumed() > 0 && input.hasRemaining());
+        input.compact();
+        return progress;
+    }
+
+    private static void runTasks(SSLEngine engine) {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    private static TrustManager trustAll() {
+        // certificate in repository is self signed with MD5, extended trust manager skips algorithm constraints
+        return new X509ExtendedTrustManager() {
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain, String authType, Socket socket) {
+            }
+
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain, String authType, SSLEngine engine) {
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain, String authType, Socket socket) {
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain, String authType, SSLEngine engine) {
+            }
+
+            @Override
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+        };
+    }
+}
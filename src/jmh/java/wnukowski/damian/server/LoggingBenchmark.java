@@ -0,0 +1,58 @@
+package wnukowski.damian.server;
+
+import org.apache.logging.log4j.core.config.Configurator;
+import org.openjdk.jmh.annotations.*;
+import wnukowski.damian.game.GameRoom;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of GET_STATE requests with asynchronous loggers used by the server and with synchronous ones, when
+ * request logging is off, every request is logged on DEBUG or 1 in 100 requests is written to {@link AccessLog}.
+ * Log is written by src/jmh/resources/log4j2-benchmark.xml to /dev/null, or to {@code -DbenchmarkLogFile}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class LoggingBenchmark {
+    private static final String CONFIGURATION = "-Dlog4j.configurationFile=src/jmh/resources/log4j2-benchmark.xml";
+    private static final String SYNCHRONOUS =
+            "-Dlog4j2.contextSelector=org.apache.logging.log4j.core.selector.ClassLoaderContextSelector";
+    private static final byte[] GET_STATE = "GET_STATE".getBytes(StandardCharsets.UTF_8);
+
+    @Param({"off", "requests", "sampled"})
+    private String logging;
+
+    private ClientHandler inRoom;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Configurator.setLevel(ClientHandler.class.getName(), logging.equals("requests")
+                ? org.apache.logging.log4j.Level.DEBUG : org.apache.logging.log4j.Level.INFO);
+        AccessLog.setSampling(logging.equals("sampled") ? 100 : 0);
+
+        GameRoom gameRoom = new GameRoom();
+        gameRoom.join(gameRoom.getRoomUUID(), gameRoom.getBlackUUID());
+        inRoom = new ClientHandler();
+        inRoom.processCommand("JOIN " + gameRoom.getRoomUUID() + " " + gameRoom.getWhiteUUID());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        ServerState.gameRooms.clear();
+    }
+
+    @Benchmark
+    @Fork(jvmArgsAppend = CONFIGURATION)
+    public ByteBuffer asynchronous() {
+        return inRoom.processLine(GET_STATE, 0, GET_STATE.length);
+    }
+
+    @Benchmark
+    @Fork(jvmArgsAppend = {CONFIGURATION, SYNCHRONOUS})
+    public ByteBuffer synchronous() {
+        return inRoom.processLine(GET_STATE, 0, GET_STATE.length);
+    }
+}
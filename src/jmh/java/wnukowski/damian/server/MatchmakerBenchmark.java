@@ -0,0 +1,50 @@
+package wnukowski.damian.server;
+
+import org.openjdk.jmh.annotations.*;
+import wnukowski.damian.game.GameRoom;
+import wnukowski.damian.game.TimeControl;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Burst of {@code clients} queued at once and paired by one {@link Matchmaker} batch - each pair gets a new room
+ * with both players joined. Divide the score by {@code clients} to get the cost per queued client. Matchmaker thread
+ * is effectively disabled, batches are run by the benchmark.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Fork(jvmArgsAppend = "-DmatchmakingPeriodMillis=3600000")
+public class MatchmakerBenchmark {
+    @Param({"1000"})
+    public int clients;
+
+    private ClientHandler[] handlers;
+    private final TimeControl timeControl = TimeControl.of(3, 2);
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        handlers = new ClientHandler[clients];
+        for (int i = 0; i < clients; i++) {
+            handlers[i] = new ClientHandler();
+        }
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDown() {
+        // stops flag timers of started games, batch takes milliseconds so per invocation teardown is fine
+        for (GameRoom room : ServerState.gameRooms.values()) {
+            room.evict();
+        }
+        ServerState.gameRooms.clear();
+    }
+
+    @Benchmark
+    public int queueAndPair() {
+        for (ClientHandler handler : handlers) {
+            Matchmaker.enqueue(handler, timeControl);
+        }
+        Matchmaker.matchAll();
+        return ServerState.gameRooms.size();
+    }
+}
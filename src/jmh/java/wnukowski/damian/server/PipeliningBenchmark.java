@@ -0,0 +1,166 @@
+package wnukowski.damian.server;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509ExtendedTrustManager;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bot-like client sending {@code MOVE} followed by {@code GET_STATE} over TLS on localhost, either waiting for each
+ * response (sequential) or sending both at once (pipelined). Pipelined requests are answered with one flush.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class PipeliningBenchmark {
+    private static final byte[] MOVE = "MOVE a3 c5\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] GET_STATE = "GET_STATE\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] MOVE_AND_GET_STATE = "MOVE a3 c5\nGET_STATE\n".getBytes(StandardCharsets.UTF_8);
+
+    @Param({"blocking", "nio"})
+    private String serverMode;
+
+    private ServerSocket blockingServerSocket;
+    private SSLSocket socket;
+    private OutputStream output;
+    private BufferedReader input;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        SSLContext serverContext = Server.getSslContext("ssl/certificate.jks", "passphrase");
+        int port;
+        if (serverMode.equals("blocking")) {
+            blockingServerSocket = serverContext.getServerSocketFactory().createServerSocket(0);
+            port = blockingServerSocket.getLocalPort();
+            startDaemon(() -> {
+                try {
+                    while (true) {
+                        Socket client = blockingServerSocket.accept();
+                        startDaemon(new ClientHandler(client));
+                    }
+                } catch (IOException e) {
+                    // server socket closed in tear down
+                }
+            });
+        } else {
+            try (ServerSocket freePort = new ServerSocket(0)) {
+                port = freePort.getLocalPort();
+            }
+            NioServer nioServer = new NioServer(port, serverContext, 1);
+            startDaemon(() -> {
+                try {
+                    nioServer.run();
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+        }
+
+        socket = connect(port);
+        output = socket.getOutputStream();
+        input = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        // room waiting for second player, so MOVE is rejected and every invocation sees the same state
+        output.write("CREATE\n".getBytes(StandardCharsets.UTF_8));
+        output.flush();
+        String response = input.readLine();
+        if (!response.startsWith(ServerCodes.ROOM_CREATED)) {
+            throw new IllegalStateException("Can't create room: " + response);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        socket.close();
+        if (blockingServerSocket != null) {
+            blockingServerSocket.close();
+        }
+        ServerState.gameRooms.clear();
+    }
+
+    @Benchmark
+    public String sequential() throws IOException {
+        output.write(MOVE);
+        output.flush();
+        input.readLine();
+        output.write(GET_STATE);
+        output.flush();
+        return input.readLine();
+    }
+
+    @Benchmark
+    public String pipelined() throws IOException {
+        output.write(MOVE_AND_GET_STATE);
+        output.flush();
+        input.readLine();
+        return input.readLine();
+    }
+
+    private static SSLSocket connect(int port) throws Exception {
+        // certificate in repository is self signed with MD5, extended trust manager skips algorithm constraints
+        TrustManager trustAll = new X509ExtendedTrustManager() {
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain, String authType, Socket socket) {
+            }
+
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain, String authType, SSLEngine engine) {
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain, String authType, Socket socket) {
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain, String authType, SSLEngine engine) {
+            }
+
+            @Override
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+        };
+        SSLContext clientContext = SSLContext.getInstance("TLS");
+        clientContext.init(null, new TrustManager[]{trustAll}, null);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (true) {
+            try {
+                SSLSocket client = (SSLSocket) clientContext.getSocketFactory().createSocket("localhost", port);
+                client.setTcpNoDelay(true);
+                client.startHandshake();
+                return client;
+            } catch (IOException e) {
+                // nio server might not listen yet
+                if (System.nanoTime() > deadline) {
+                    throw e;
+                }
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    private static void startDaemon(Runnable runnable) {
+        Thread thread = new Thread(runnable);
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
@@ -0,0 +1,154 @@
+package wnukowski.damian.server;
+
+import org.openjdk.jmh.annotations.*;
+import wnukowski.damian.game.BitBoard;
+import wnukowski.damian.game.GameRoom;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Same requests in text and {@link BinaryProtocol} encoding, from decrypted request bytes to response bytes ready
+ * for TLS. Bytes on the wire (without TLS overhead) are counted by {@link WireBytes} - divide them by
+ * {@code requests} to get bytes per request.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class ProtocolBenchmark {
+    private ClientHandler textOutsideOfRoom;
+    private ClientHandler textInRoom;
+    private ClientHandler binaryOutsideOfRoom;
+    private ClientHandler binaryInRoom;
+
+    private byte[] textGetState;
+    private byte[] textMove;
+    private byte[] textJoin;
+    private byte[] textLeave;
+    private byte[] binaryGetState;
+    private byte[] binaryMove;
+    private byte[] binaryJoin;
+    private byte[] binaryLeave;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class WireBytes {
+        public long requestBytes;
+        public long responseBytes;
+        public long requests;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            requestBytes = 0;
+            responseBytes = 0;
+            requests = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        // rooms with both players, black never leaves so rooms are not removed
+        GameRoom textRoom = roomWithBlackPlayer();
+        GameRoom binaryRoom = roomWithBlackPlayer();
+        GameRoom roomToJoin = roomWithBlackPlayer();
+
+        textOutsideOfRoom = new ClientHandler();
+        textInRoom = new ClientHandler();
+        textInRoom.processCommand("JOIN " + textRoom.getRoomUUID() + " " + textRoom.getWhiteUUID());
+        textGetState = line("GET_STATE");
+        textMove = line("MOVE a3 c5"); // illegal in starting position so board stays the same
+        textJoin = line("JOIN " + roomToJoin.getRoomUUID() + " " + roomToJoin.getWhiteUUID());
+        textLeave = line("LEAVE");
+
+        binaryOutsideOfRoom = binaryHandler();
+        binaryInRoom = binaryHandler();
+        ByteBuffer join = ByteBuffer.allocate(1 + 2 * 16).put(BinaryProtocol.JOIN);
+        BinaryProtocol.putUUID(join, binaryRoom.getRoomUUID());
+        BinaryProtocol.putUUID(join, binaryRoom.getWhiteUUID());
+        binaryInRoom.processFrame(ByteBuffer.wrap(join.array()));
+        binaryGetState = frame(BinaryProtocol.GET_STATE);
+        binaryMove = frame(BinaryProtocol.MOVE, (byte) 2,
+                (byte) BitBoard.parseSquare("a3"), (byte) BitBoard.parseSquare("c5"));
+        join.clear();
+        join.put(BinaryProtocol.JOIN);
+        BinaryProtocol.putUUID(join, roomToJoin.getRoomUUID());
+        BinaryProtocol.putUUID(join, roomToJoin.getWhiteUUID());
+        binaryJoin = frame(join.array());
+        binaryLeave = frame(BinaryProtocol.LEAVE);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        ServerState.gameRooms.clear();
+    }
+
+    @Benchmark
+    public ByteBuffer getStateText(WireBytes wireBytes) {
+        return text(textInRoom, textGetState, wireBytes);
+    }
+
+    @Benchmark
+    public ByteBuffer getStateBinary(WireBytes wireBytes) {
+        return binary(binaryInRoom, binaryGetState, wireBytes);
+    }
+
+    @Benchmark
+    public ByteBuffer moveRejectedText(WireBytes wireBytes) {
+        return text(textInRoom, textMove, wireBytes);
+    }
+
+    @Benchmark
+    public ByteBuffer moveRejectedBinary(WireBytes wireBytes) {
+        return binary(binaryInRoom, binaryMove, wireBytes);
+    }
+
+    @Benchmark
+    public ByteBuffer joinAndLeaveText(WireBytes wireBytes) {
+        text(textOutsideOfRoom, textJoin, wireBytes);
+        return text(textOutsideOfRoom, textLeave, wireBytes);
+    }
+
+    @Benchmark
+    public ByteBuffer joinAndLeaveBinary(WireBytes wireBytes) {
+        binary(binaryOutsideOfRoom, binaryJoin, wireBytes);
+        return binary(binaryOutsideOfRoom, binaryLeave, wireBytes);
+    }
+
+    private static ByteBuffer text(ClientHandler handler, byte[] request, WireBytes wireBytes) {
+        // passed without line separator as done by NioConnection
+        ByteBuffer response = handler.processLine(request, 0, request.length - 1);
+        wireBytes.requestBytes += request.length;
+        wireBytes.responseBytes += response.limit();
+        wireBytes.requests++;
+        return response;
+    }
+
+    private static ByteBuffer binary(ClientHandler handler, byte[] request, WireBytes wireBytes) {
+        ByteBuffer response = handler.processFrame(ByteBuffer.wrap(request, 2, request.length - 2));
+        wireBytes.requestBytes += request.length;
+        wireBytes.responseBytes += response.limit();
+        wireBytes.requests++;
+        return response;
+    }
+
+    private static GameRoom roomWithBlackPlayer() {
+        GameRoom gameRoom = new GameRoom();
+        gameRoom.join(gameRoom.getRoomUUID(), gameRoom.getBlackUUID());
+        return gameRoom;
+    }
+
+    private static ClientHandler binaryHandler() {
+        ClientHandler handler = new ClientHandler();
+        handler.startBinary(BinaryProtocol.VERSION);
+        return handler;
+    }
+
+    private static byte[] line(String command) {
+        return (command + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] frame(byte... payload) {
+        return ByteBuffer.allocate(2 + payload.length).putShort((short) payload.length).put(payload).array();
+    }
+}
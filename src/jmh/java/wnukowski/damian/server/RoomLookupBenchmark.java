@@ -0,0 +1,41 @@
+package wnukowski.damian.server;
+
+import org.openjdk.jmh.annotations.*;
+import wnukowski.damian.game.GameRoom;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing room UUID sent by the client and looking the room up, as done by JOIN.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class RoomLookupBenchmark {
+    @Param({"1000", "100000"})
+    private int rooms;
+
+    private String[] roomIds;
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        roomIds = new String[rooms];
+        for (int i = 0; i < rooms; i++) {
+            roomIds[i] = new GameRoom().getRoomUUID().toString();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        ServerState.gameRooms.clear();
+    }
+
+    @Benchmark
+    public GameRoom uuidFromStringAndGet() {
+        String roomId = roomIds[next];
+        next = next + 1 == roomIds.length ? 0 : next + 1;
+        return ServerState.gameRooms.get(UUID.fromString(roomId));
+    }
+}
@@ -0,0 +1,60 @@
+package wnukowski.damian.server;
+
+import org.openjdk.jmh.annotations.*;
+import wnukowski.damian.game.GameRoom;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static wnukowski.damian.server.ServerCodes.STATE_UPDATE;
+
+/**
+ * One state update sent to all spectators of a room: {@link SpectatorGroup} encodes it once and pushes the same
+ * bytes, {@code encodedPerSpectator} encodes it for every spectator as {@code SUBSCRIBE} listeners do. Push channels
+ * only count bytes, so the score is the cost of the fan-out without I/O.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class SpectatorBenchmark {
+    @Param({"1000", "10000"})
+    public int spectators;
+
+    private GameRoom room;
+    private SpectatorGroup group;
+    private final List<ClientHandler.PushChannel> pushChannels = new ArrayList<>();
+    private long pushedBytes;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        room = new GameRoom();
+        room.join(room.getRoomUUID(), room.getWhiteUUID());
+        room.join(room.getRoomUUID(), room.getBlackUUID());
+        for (int i = 0; i < spectators; i++) {
+            ClientHandler.PushChannel pushChannel = (message, stateUpdate) -> pushedBytes += message.length;
+            pushChannels.add(pushChannel);
+            group = SpectatorGroup.watch(room, new ClientHandler(pushChannel));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        ServerState.gameRooms.clear();
+        SpectatorGroup.roomRemoved(room);
+    }
+
+    @Benchmark
+    public long encodedOnce() {
+        group.broadcast();
+        return pushedBytes;
+    }
+
+    @Benchmark
+    public long encodedPerSpectator() {
+        for (ClientHandler.PushChannel pushChannel : pushChannels) {
+            pushChannel.push(ClientHandler.encodeLine(STATE_UPDATE + " " + room.getWholeRoomStateAsString()), true);
+        }
+        return pushedBytes;
+    }
+}
@@ -0,0 +1,402 @@
+package wnukowski.damian.server;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509ExtendedTrustManager;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.cert.X509Certificate;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Synthetic players for load and soak tests: opens {@code loadPlayers} TLS connections, pairs them by
+ * {@code CREATE}/{@code JOIN} and plays random legal games (see {@link LoadPlayer}). Every
+ * {@code loadReportSeconds} one line with request rate, finished games, errors and threads and heap of the server is
+ * printed, at the end latency percentiles and response codes of every command.
+ * <p>
+ * Without {@code loadTarget} the server is started in this JVM with the same system properties as the jar, so the
+ * run needs no setup (CI) - threads and heap then include the generator, threads of players are subtracted when
+ * they aren't virtual. With {@code loadTarget=host:port} a running server is tested (soak tests), its threads and
+ * heap are read from {@code loadMetricsUrl} if given. Exits with status 1 when connections fail, the server
+ * answers {@code SERVER_ERROR} or {@code INVALID_SYNTAX}, or no game was finished.
+ * <p>
+ * Run with {@code mvn -P loadtest verify -Dloadtest.args="-DloadPlayers=1000 ..."}.
+ */
+public final class LoadGenerator {
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999, 1.0};
+    // codes which mean the generator or the server is broken, other codes are part of normal play
+    private static final String[] ERROR_CODES = {ServerCodes.SERVER_ERROR, ServerCodes.INVALID_SYNTAX};
+
+    private final String target = System.getProperty("loadTarget", "");
+    private final int players = Integer.getInteger("loadPlayers", 1000);
+    private final int durationSeconds = Integer.getInteger("loadDurationSeconds", 60);
+    private final int rampUpSeconds = Integer.getInteger("loadRampUpSeconds", 10);
+    private final int reportSeconds = Integer.getInteger("loadReportSeconds", 10);
+    private final long thinkMillis = Long.getLong("loadThinkMillis", 200);
+    private final long pollMillis = Long.getLong("loadPollMillis", 100);
+    private final int maxMoves = Integer.getInteger("loadMaxMoves", 100);
+    private final int drawPercent = Integer.getInteger("loadDrawPercent", 1);
+    private final int leavePercent = Integer.getInteger("loadLeavePercent", 5);
+    private final String timeControl = System.getProperty("loadTimeControl", "");
+    private final String metricsUrl = System.getProperty("loadMetricsUrl", "");
+
+    private final Stats stats = new Stats();
+    private volatile boolean running = true;
+    private boolean virtualThreads;
+    private SSLContext clientContext;
+    private String host;
+    private int port;
+
+    public static void main(String[] args) throws Exception {
+        System.exit(new LoadGenerator().run() ? 0 : 1);
+    }
+
+    /**
+     * @return false if errors were found
+     */
+    boolean run() throws Exception {
+        if (players < 2 || players % 2 != 0) {
+            throw new IllegalArgumentException("loadPlayers has to be even number, got " + players);
+        }
+        clientContext = SSLContext.getInstance("TLS");
+        clientContext.init(null, new TrustManager[]{trustAll()}, null);
+        if (target.isEmpty()) {
+            startInProcessServer();
+        } else {
+            int separator = target.lastIndexOf(':');
+            host = target.substring(0, separator);
+            port = Integer.parseInt(target.substring(separator + 1));
+        }
+        long[] serverAtStart = sampleServer(true);
+        System.out.printf("%d players against %s for %d s, think time %d ms, poll %d ms%n", players,
+                target.isEmpty() ? "in-process server on port " + port : target, durationSeconds, thinkMillis, pollMillis);
+
+        ExecutorService executor = newPlayerExecutor();
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(durationSeconds);
+        long rampUpNanos = TimeUnit.SECONDS.toNanos(rampUpSeconds);
+        int started = 0;
+        long nextReport = start + TimeUnit.SECONDS.toNanos(reportSeconds);
+        long requestsAtLastReport = 0;
+        while (System.nanoTime() < end) {
+            long now = System.nanoTime();
+            // pairs are started evenly over ramp up, so TLS handshakes don't all hit the server at once
+            int due = rampUpNanos == 0 ? players : (int) Math.min(players, (now - start) * players / rampUpNanos + 2);
+            for (; started < due; started += 2) {
+                for (LoadPlayer player : LoadPlayer.pair(this)) {
+                    executor.execute(player);
+                }
+            }
+            if (now >= nextReport) {
+                long requests = stats.requests();
+                printInterval(now - start, (requests - requestsAtLastReport) / (double) reportSeconds);
+                requestsAtLastReport = requests;
+                nextReport += TimeUnit.SECONDS.toNanos(reportSeconds);
+            }
+            Thread.sleep(Math.min(100, Math.max(1, TimeUnit.NANOSECONDS.toMillis(end - now))));
+        }
+        running = false;
+        executor.shutdown();
+        if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+            System.out.printf("%d players didn't stop in 30 s%n", stats.activePlayers.get());
+        }
+        long elapsedNanos = System.nanoTime() - start;
+        // lets server notice closed connections before threads are counted
+        Thread.sleep(1000);
+        return printSummary(elapsedNanos, serverAtStart, sampleServer(true));
+    }
+
+    /**
+     * Starts {@link Server} on a free port in a daemon thread and waits until it accepts connections. Logging is
+     * reduced to warnings unless {@code logLevel} is set.
+     */
+    private void startInProcessServer() throws Exception {
+        try (ServerSocket freePort = new ServerSocket(0)) {
+            port = freePort.getLocalPort();
+        }
+        host = "localhost";
+        System.setProperty("serverPort", String.valueOf(port));
+        // server logs every connection at INFO, which would hide the report
+        if (System.getProperty("logLevel") == null) {
+            System.setProperty("logLevel", "WARN");
+        }
+        Thread server = new Thread(Server::start, "in-process-server");
+        server.setDaemon(true);
+        server.start();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (true) {
+            try (Socket probe = new Socket(host, port)) {
+                return;
+            } catch (IOException e) {
+                if (!server.isAlive() || System.nanoTime() > deadline) {
+                    throw new IllegalStateException("In-process server didn't start on port " + port, e);
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    /**
+     * Virtual thread per player when the JVM has them, looked up reflectively as in {@link Server}, otherwise
+     * platform thread with small stack per player.
+     */
+    private ExecutorService newPlayerExecutor() {
+        try {
+            ExecutorService executor = (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            virtualThreads = true;
+            return executor;
+        } catch (ReflectiveOperationException e) {
+            AtomicInteger number = new AtomicInteger();
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(null, runnable, "load-player-" + number.incrementAndGet(), 256 * 1024);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    SSLSocket connect() throws IOException {
+        return (SSLSocket) clientContext.getSocketFactory().createSocket(host, port);
+    }
+
+    /**
+     * @param collectGarbage in-process only, so heap growth isn't hidden by garbage
+     * @return live threads and used heap bytes of the server or null if they aren't known
+     */
+    private long[] sampleServer(boolean collectGarbage) {
+        if (target.isEmpty()) {
+            if (collectGarbage) {
+                System.gc();
+            }
+            int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+            return new long[]{virtualThreads ? threads : threads - stats.activePlayers.get(),
+                    ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed()};
+        }
+        if (metricsUrl.isEmpty()) {
+            return null;
+        }
+        long[] sample = {-1, -1};
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(metricsUrl).openConnection();
+            connection.setConnectTimeout(2000);
+            connection.setReadTimeout(2000);
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith("checkers_jvm_threads ")) {
+                        sample[0] = (long) Double.parseDouble(line.substring(line.indexOf(' ') + 1));
+                    } else if (line.startsWith("checkers_jvm_heap_used_bytes ")) {
+                        sample[1] = (long) Double.parseDouble(line.substring(line.indexOf(' ') + 1));
+                    }
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            System.out.printf("Can't read server metrics from %s: %s%n", metricsUrl, e);
+            return null;
+        }
+        return sample;
+    }
+
+    private void printInterval(long elapsedNanos, double requestsPerSecond) {
+        long[] server = sampleServer(false);
+        System.out.printf("%4d s: %5d players, %8.0f req/s, %7d moves, %6d games, %4d errors%s%n",
+                TimeUnit.NANOSECONDS.toSeconds(elapsedNanos), stats.activePlayers.get(), requestsPerSecond,
+                stats.count("MOVE"), stats.games(), stats.errors(), server == null ? ""
+                        : String.format(", server %d threads, %d MB heap", server[0], server[1] >> 20));
+    }
+
+    private boolean printSummary(long elapsedNanos, long[] serverAtStart, long[] serverAtEnd) {
+        double seconds = elapsedNanos / 1e9;
+        System.out.printf("%n%d requests in %.1f s, %.0f req/s, %.1f moves/s, %d games%n", stats.requests(), seconds,
+                stats.requests() / seconds, stats.count("MOVE") / seconds, stats.games());
+        System.out.printf("%n%-16s %10s %10s %10s %10s %10s %10s   (ms)%n",
+                "command", "count", "p50", "p90", "p99", "p99.9", "max");
+        for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(stats.latencies).entrySet()) {
+            long[] counts = entry.getValue().counts();
+            System.out.printf("%-16s %10d", entry.getKey(), LatencyHistogram.count(counts));
+            for (double quantile : QUANTILES) {
+                System.out.printf(" %10.2f", LatencyHistogram.valueAt(counts, quantile) / 1e6);
+            }
+            System.out.println();
+        }
+        System.out.printf("%n%-40s %10s%n", "response", "count");
+        for (Map.Entry<String, LongAdder> entry : new TreeMap<>(stats.codes).entrySet()) {
+            System.out.printf("%-40s %10d%n", entry.getKey(), entry.getValue().sum());
+        }
+        if (!stats.results.isEmpty()) {
+            System.out.printf("%n%-40s %10s%n", "game result", "count");
+            for (Map.Entry<String, LongAdder> entry : new TreeMap<>(stats.results).entrySet()) {
+                System.out.printf("%-40s %10d%n", entry.getKey(), entry.getValue().sum());
+            }
+        }
+        if (serverAtStart != null && serverAtEnd != null) {
+            System.out.printf("%nserver threads %d -> %d, heap %d MB -> %d MB%n", serverAtStart[0], serverAtEnd[0],
+                    serverAtStart[1] >> 20, serverAtEnd[1] >> 20);
+        } else {
+            System.out.printf("%nserver threads and heap unknown, set loadMetricsUrl%n");
+        }
+        long errors = stats.errors();
+        if (errors > 0 || stats.games() == 0) {
+            System.out.printf("FAILED: %d errors, %d games%n", errors, stats.games());
+            return false;
+        }
+        return true;
+    }
+
+    boolean isRunning() {
+        return running;
+    }
+
+    Stats getStats() {
+        return stats;
+    }
+
+    String getTimeControl() {
+        return timeControl;
+    }
+
+    long getThinkMillis() {
+        return thinkMillis;
+    }
+
+    long getPollMillis() {
+        return pollMillis;
+    }
+
+    int getMaxMoves() {
+        return maxMoves;
+    }
+
+    int getDrawPercent() {
+        return drawPercent;
+    }
+
+    int getLeavePercent() {
+        return leavePercent;
+    }
+
+    /**
+     * Shared by all players, recording is lock-free like {@link Metrics}.
+     */
+    static final class Stats {
+        // latency by command name
+        private final Map<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+        // count by command name and response code, e.g. "MOVE MOVE_OK", or by exception of failed connection
+        private final Map<String, LongAdder> codes = new ConcurrentHashMap<>();
+        // count by final state of the room, recorded by creators only so every game is counted once
+        private final Map<String, LongAdder> results = new ConcurrentHashMap<>();
+        private final LongAdder ioErrors = new LongAdder();
+        private final AtomicInteger activePlayers = new AtomicInteger();
+
+        void record(String command, String code, long nanos) {
+            latencies.computeIfAbsent(command, key -> new LatencyHistogram()).record(nanos);
+            codes.computeIfAbsent(command + " " + code, key -> new LongAdder()).increment();
+        }
+
+        void ioError(IOException e) {
+            ioErrors.increment();
+            codes.computeIfAbsent("IO " + e.getClass().getSimpleName(), key -> new LongAdder()).increment();
+        }
+
+        void gameEnded(String result) {
+            results.computeIfAbsent(result, key -> new LongAdder()).increment();
+        }
+
+        void playerStarted() {
+            activePlayers.incrementAndGet();
+        }
+
+        void playerStopped() {
+            activePlayers.decrementAndGet();
+        }
+
+        long count(String command) {
+            LatencyHistogram histogram = latencies.get(command);
+            return histogram == null ? 0 : LatencyHistogram.count(histogram.counts());
+        }
+
+        long requests() {
+            long requests = 0;
+            for (Map.Entry<String, LatencyHistogram> entry : latencies.entrySet()) {
+                if (!entry.getKey().equals("CONNECT")) {
+                    requests += LatencyHistogram.count(entry.getValue().counts());
+                }
+            }
+            return requests;
+        }
+
+        long games() {
+            long games = 0;
+            for (Map.Entry<String, LongAdder> entry : results.entrySet()) {
+                if (!entry.getKey().equals("ABANDONED") && !entry.getKey().equals(ServerCodes.ROOM_NOT_FOUND)) {
+                    games += entry.getValue().sum();
+                }
+            }
+            return games;
+        }
+
+        long errors() {
+            long errors = ioErrors.sum();
+            for (Map.Entry<String, LongAdder> entry : codes.entrySet()) {
+                for (String code : ERROR_CODES) {
+                    if (entry.getKey().endsWith(" " + code)) {
+                        errors += entry.getValue().sum();
+                    }
+                }
+            }
+            return errors;
+        }
+    }
+
+    private static TrustManager trustAll() {
+        // certificate in repository is self signed with MD5, extended trust manager skips algorithm constraints
+        return new X509ExtendedTrustManager() {
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain, String authType, Socket socket) {
+            }
+
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain, String authType, SSLEngine engine) {
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain, String authType, Socket socket) {
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain, String authType, SSLEngine engine) {
+            }
+
+            @Override
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+        };
+    }
+}
@@ -0,0 +1,282 @@
+package wnukowski.damian.server;
+
+import wnukowski.damian.game.BitBoard;
+import wnukowski.damian.game.GameRoom.Color;
+import wnukowski.damian.game.MoveGenerator;
+import wnukowski.damian.game.MoveList;
+
+import javax.net.ssl.SSLSocket;
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One synthetic client of {@link LoadGenerator} with its own TLS connection. Players are paired for the whole run:
+ * the creator sends {@code CREATE}, finds out its color from {@code WHITE_ONLINE} of the first {@code GET_STATE}
+ * and hands room and enemy color uuid over to its partner, which sends {@code JOIN}. Both then poll
+ * {@code GET_STATE} and play random legal moves when on turn, after the game both send {@code LEAVE} and the next
+ * game starts. Connection errors are counted and the player reconnects.
+ */
+final class LoadPlayer implements Runnable {
+    private static final long RECONNECT_MILLIS = 1000;
+    // creator gives up the room if partner doesn't join in time, e.g. because its connection broke
+    private static final long JOIN_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final LoadGenerator generator;
+    private final LoadGenerator.Stats stats;
+    private final boolean creator;
+    // room uuid, color uuid and color of the partner, capacity 1 shared by both players of the pair
+    private final BlockingQueue<String[]> invitations;
+    private final MoveList moves = new MoveList();
+    private final BitBoard board = new BitBoard();
+    private final StringBuilder command = new StringBuilder();
+
+    private SSLSocket socket;
+    private OutputStream output;
+    private BufferedReader input;
+
+    private LoadPlayer(LoadGenerator generator, boolean creator, BlockingQueue<String[]> invitations) {
+        this.generator = generator;
+        this.stats = generator.getStats();
+        this.creator = creator;
+        this.invitations = invitations;
+    }
+
+    /**
+     * @return creator and its partner
+     */
+    static LoadPlayer[] pair(LoadGenerator generator) {
+        BlockingQueue<String[]> invitations = new ArrayBlockingQueue<>(1);
+        return new LoadPlayer[]{new LoadPlayer(generator, true, invitations),
+                new LoadPlayer(generator, false, invitations)};
+    }
+
+    @Override
+    public void run() {
+        stats.playerStarted();
+        try {
+            while (generator.isRunning()) {
+                try {
+                    connect();
+                    while (generator.isRunning()) {
+                        if (creator) {
+                            createAndPlay();
+                        } else {
+                            joinAndPlay();
+                        }
+                    }
+                    request("QUIT", "QUIT", false);
+                } catch (IOException e) {
+                    stats.ioError(e);
+                    sleep(RECONNECT_MILLIS);
+                } finally {
+                    close();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            stats.playerStopped();
+        }
+    }
+
+    private void connect() throws IOException {
+        long start = System.nanoTime();
+        socket = generator.connect();
+        socket.startHandshake();
+        stats.record("CONNECT", "OK", System.nanoTime() - start);
+        output = socket.getOutputStream();
+        input = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+    }
+
+    private void close() {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // connection is dropped anyway
+            }
+            socket = null;
+        }
+    }
+
+    private void createAndPlay() throws IOException, InterruptedException {
+        String timeControl = generator.getTimeControl();
+        String created = request("CREATE", timeControl.isEmpty() ? "CREATE" : "CREATE " + timeControl, true);
+        if (!created.startsWith(ServerCodes.ROOM_CREATED)) {
+            sleep(RECONNECT_MILLIS);
+            return;
+        }
+        String state = request("GET_STATE", "GET_STATE", true);
+        if (!state.startsWith(ServerCodes.STATUS_OK)) {
+            return;
+        }
+        Color color = "TRUE".equals(field(state, "WHITE_ONLINE")) ? Color.WHITE : Color.BLACK;
+        String[] invitation = {field(created, "ROOM_ID"), field(created, "ENEMY_COLOR_ID"), enemy(color).name()};
+        while (!invitations.offer(invitation, 100, TimeUnit.MILLISECONDS)) {
+            if (!generator.isRunning()) {
+                request("LEAVE", "LEAVE", true);
+                return;
+            }
+        }
+        String result = play(color);
+        request("LEAVE", "LEAVE", true);
+        stats.gameEnded(result);
+    }
+
+    private void joinAndPlay() throws IOException, InterruptedException {
+        String[] invitation = invitations.poll(100, TimeUnit.MILLISECONDS);
+        if (invitation == null) {
+            return;
+        }
+        String joined = request("JOIN", "JOIN " + invitation[0] + " " + invitation[1], true);
+        if (!joined.startsWith(ServerCodes.ROOM_JOINED)) {
+            return;
+        }
+        play(Color.valueOf(invitation[2]));
+        request("LEAVE", "LEAVE", true);
+    }
+
+    /**
+     * Polls the room until the game ends or one of the players leaves.
+     *
+     * @return final state of the room, {@code ABANDONED} when a player left or {@code ROOM_NOT_FOUND}
+     */
+    private String play(Color color) throws IOException, InterruptedException {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Color enemy = enemy(color);
+        int leaveAtMove = random.nextInt(100) < generator.getLeavePercent()
+                ? random.nextInt(generator.getMaxMoves()) : -1;
+        int movesMade = 0;
+        long waitingSince = System.nanoTime();
+        while (generator.isRunning()) {
+            String state = request("GET_STATE", "GET_STATE", true);
+            if (!state.startsWith(ServerCodes.STATUS_OK)) {
+                return ServerCodes.ROOM_NOT_FOUND;
+            }
+            String gameState = field(state, "STATE");
+            if (gameState.equals("WAITING")) {
+                if (System.nanoTime() - waitingSince > JOIN_TIMEOUT_NANOS) {
+                    return "ABANDONED";
+                }
+                sleep(generator.getPollMillis());
+                continue;
+            }
+            if (!gameState.equals("PLAYING")) {
+                return gameState;
+            }
+            if (!"TRUE".equals(field(state, enemy + "_ONLINE")) || movesMade == leaveAtMove) {
+                return "ABANDONED";
+            }
+            boolean wantsDraw = "TRUE".equals(field(state, color + "_WANTS_DRAW"));
+            if (!wantsDraw && "TRUE".equals(field(state, enemy + "_WANTS_DRAW"))) {
+                request("REQUEST_A_DRAW", "REQUEST_A_DRAW", true);
+                continue;
+            }
+            if (!field(state, "PLAYER_TURN").equals(color.name())) {
+                sleep(generator.getPollMillis());
+                continue;
+            }
+            sleep(random.nextLong(2 * generator.getThinkMillis() + 1));
+            if (!appendRandomMove(field(state, "BOARD"), color, random)) {
+                // server doesn't end the game when the player on move is blocked, it resigns by leaving instead
+                return "ABANDONED";
+            }
+            request("MOVE", command.toString(), true);
+            movesMade++;
+            if (!wantsDraw && (movesMade >= generator.getMaxMoves() || random.nextInt(100) < generator.getDrawPercent())) {
+                request("REQUEST_A_DRAW", "REQUEST_A_DRAW", true);
+            }
+        }
+        return "ABANDONED";
+    }
+
+    /**
+     * Replaces {@link #command} with {@code MOVE} of random legal move in position given by {@code BOARD} field.
+     *
+     * @return false if there is no legal move
+     */
+    private boolean appendRandomMove(String boardField, Color color, ThreadLocalRandom random) {
+        int white = 0;
+        int black = 0;
+        int kings = 0;
+        for (int i = 0; i < 64; i++) {
+            int square = BitBoard.square(i / 8, i % 8);
+            if (square == BitBoard.EMPTY_SQUARE) {
+                continue;
+            }
+            char piece = boardField.charAt(i);
+            int bit = 1 << square;
+            if (piece == 'w' || piece == 'W') {
+                white |= bit;
+            } else if (piece == 'b' || piece == 'B') {
+                black |= bit;
+            }
+            if (piece == 'W' || piece == 'B') {
+                kings |= bit;
+            }
+        }
+        board.set(white, black, kings);
+        int count = MoveGenerator.generate(board, color, moves);
+        if (count == 0) {
+            return false;
+        }
+        int move = random.nextInt(count);
+        command.setLength(0);
+        command.append("MOVE");
+        for (int i = 0; i < moves.pathLength(move); i++) {
+            BitBoard.appendSquareName(command.append(' '), moves.square(move, i));
+        }
+        return true;
+    }
+
+    /**
+     * Sends one line and waits for the response unless it is {@code QUIT}, latency and response code are recorded
+     * under given command name.
+     */
+    private String request(String name, String line, boolean hasResponse) throws IOException {
+        long start = System.nanoTime();
+        output.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+        output.flush();
+        if (!hasResponse) {
+            return null;
+        }
+        String response = input.readLine();
+        if (response == null) {
+            throw new EOFException("Server closed connection");
+        }
+        int codeEnd = response.indexOf(' ');
+        stats.record(name, codeEnd < 0 ? response : response.substring(0, codeEnd), System.nanoTime() - start);
+        return response;
+    }
+
+    /**
+     * @return value of {@code name=value} field of the response or empty string if it is missing
+     */
+    static String field(String response, String name) {
+        int start = response.indexOf(" " + name + "=");
+        if (start < 0) {
+            return "";
+        }
+        start += name.length() + 2;
+        int end = response.indexOf(' ', start);
+        return end < 0 ? response.substring(start) : response.substring(start, end);
+    }
+
+    private static Color enemy(Color color) {
+        return color == Color.WHITE ? Color.BLACK : Color.WHITE;
+    }
+
+    private static void sleep(long millis) throws InterruptedException {
+        if (millis > 0) {
+            Thread.sleep(millis);
+        }
+    }
+}
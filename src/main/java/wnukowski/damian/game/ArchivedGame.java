@@ -0,0 +1,109 @@
+package wnukowski.damian.game;
+
+import wnukowski.damian.game.GameRoom.Color;
+import wnukowski.damian.game.GameRoom.State;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.UUID;
+
+/**
+ * Game read from {@link GameArchive}. Record body, also sent as is by binary {@code GET_GAME}:
+ * <ul>
+ * <li>room uuid, white player uuid, black player uuid,</li>
+ * <li>unsigned 16 bit base minutes and increment seconds,</li>
+ * <li>result - ordinal of {@link State}, {@code WAITING} or {@code PLAYING} for game abandoned by both players,</li>
+ * <li>64 bit end time in milliseconds since epoch, 32 bit remaining milliseconds of white and black,</li>
+ * <li>flags - bit 0 is set when 32 bit white, black and kings masks and byte color on move of the start position
+ * follow, otherwise game starts from the initial position,</li>
+ * <li>unsigned 16 bit number of moves and moves packed by {@link MoveLog}.</li>
+ * </ul>
+ */
+public final class ArchivedGame {
+    static final int MAX_BODY_LENGTH = 3 * 16 + 2 * 2 + 1 + 8 + 2 * 4 + 1 + 3 * 4 + 1 + 2 + MoveLog.MAX_BYTES;
+    // offsets of fields used by the archive index
+    static final int ROOM_OFFSET = 0;
+    static final int WHITE_OFFSET = 16;
+    static final int BLACK_OFFSET = 32;
+    private static final int START_POSITION_FLAG = 1;
+
+    private final ByteBuffer body;
+
+    ArchivedGame(ByteBuffer body) {
+        this.body = body;
+    }
+
+    static int bodyLength(MoveLog moves) {
+        return MAX_BODY_LENGTH - MoveLog.MAX_BYTES - (moves.startsFromInitialPosition() ? 3 * 4 + 1 : 0)
+                + moves.getByteLength();
+    }
+
+    static void writeBody(ByteBuffer buffer, UUID roomUUID, UUID whiteUUID, UUID blackUUID, TimeControl timeControl,
+                          State result, long endedAtMillis, long whiteMillis, long blackMillis, MoveLog moves) {
+        GameJournal.putUUID(buffer, roomUUID);
+        GameJournal.putUUID(buffer, whiteUUID);
+        GameJournal.putUUID(buffer, blackUUID);
+        buffer.putShort((short) timeControl.getBaseMinutes()).putShort((short) timeControl.getIncrementSeconds())
+                .put((byte) result.ordinal())
+                .putLong(endedAtMillis)
+                .putInt((int) Math.min(whiteMillis, Integer.MAX_VALUE))
+                .putInt((int) Math.min(blackMillis, Integer.MAX_VALUE));
+        if (moves.startsFromInitialPosition()) {
+            buffer.put((byte) 0);
+        } else {
+            buffer.put((byte) START_POSITION_FLAG)
+                    .putInt(moves.getStartWhite()).putInt(moves.getStartBlack()).putInt(moves.getStartKings())
+                    .put((byte) moves.getStartTurn().ordinal());
+        }
+        buffer.putShort((short) moves.getMoveCount());
+        moves.writeTo(buffer);
+    }
+
+    public UUID getRoomUUID() {
+        return new UUID(body.getLong(ROOM_OFFSET), body.getLong(ROOM_OFFSET + 8));
+    }
+
+    /**
+     * Appends fields of text {@code GET_GAME} response: {@code ROOM_ID WHITE_ID BLACK_ID TIME_CONTROL RESULT ENDED
+     * WHITE_TIME BLACK_TIME}, {@code START} and {@code START_TURN} if game doesn't start from the initial position,
+     * and {@code MOVES}.
+     */
+    public void appendTo(StringBuilder sb) {
+        ByteBuffer buffer = body.duplicate();
+        UUID roomUUID = GameJournal.getUUID(buffer);
+        UUID whiteUUID = GameJournal.getUUID(buffer);
+        UUID blackUUID = GameJournal.getUUID(buffer);
+        int baseMinutes = buffer.getShort() & 0xFFFF;
+        int incrementSeconds = buffer.getShort() & 0xFFFF;
+        State result = State.values()[buffer.get()];
+        long endedAtMillis = buffer.getLong();
+        int whiteMillis = buffer.getInt();
+        int blackMillis = buffer.getInt();
+        sb.append("ROOM_ID=").append(roomUUID)
+                .append(" WHITE_ID=").append(whiteUUID)
+                .append(" BLACK_ID=").append(blackUUID)
+                .append(" TIME_CONTROL=").append(baseMinutes).append('+').append(incrementSeconds)
+                .append(" RESULT=").append(result == State.WAITING || result == State.PLAYING ? "ABANDONED" : result)
+                .append(" ENDED=").append(Instant.ofEpochMilli(endedAtMillis))
+                .append(" WHITE_TIME=").append(whiteMillis)
+                .append(" BLACK_TIME=").append(blackMillis);
+        if ((buffer.get() & START_POSITION_FLAG) != 0) {
+            BitBoard start = new BitBoard();
+            start.set(buffer.getInt(), buffer.getInt(), buffer.getInt());
+            sb.append(" START=");
+            start.appendTo(sb);
+            sb.append(" START_TURN=").append(Color.values()[buffer.get() & 1]);
+        }
+        int moveCount = buffer.getShort() & 0xFFFF;
+        sb.append(" MOVES=");
+        MoveLog.appendMoves(sb, buffer, moveCount);
+    }
+
+    public int getLength() {
+        return body.remaining();
+    }
+
+    public void writeTo(ByteBuffer buffer) {
+        buffer.put(body.duplicate());
+    }
+}
@@ -0,0 +1,190 @@
+package wnukowski.damian.game;
+
+import wnukowski.damian.game.GameRoom.Color;
+
+/**
+ * Board position stored as three 32 bit masks over dark squares - one bit per playable square.
+ * <p>
+ * Squares are numbered from the top left corner of the board as returned by {@code GET_STATE} - square 0 is b8,
+ * 3 is h8, 4 is a7, 31 is g1. Index of square is {@code row * 4 + column / 2}, where row 0 is the 8th rank.
+ * <p>
+ * Not thread safe, guarded by owning {@link GameRoom}.
+ */
+public final class BitBoard {
+    public static final int SQUARES = 32;
+    public static final int EMPTY_SQUARE = -1;
+
+    // directions as seen on the board - white men move up, black men move down
+    static final int UP_LEFT = 0;
+    static final int UP_RIGHT = 1;
+    static final int DOWN_LEFT = 2;
+    static final int DOWN_RIGHT = 3;
+    static final int DIRECTIONS = 4;
+
+    static final int WHITE_KINGS_ROW = 0x0000000F;
+    static final int BLACK_KINGS_ROW = 0xF0000000;
+
+    static final int INITIAL_BLACK = 0x00000FFF;
+    static final int INITIAL_WHITE = 0xFFF00000;
+
+    // [square * DIRECTIONS + direction] -> adjacent square or EMPTY_SQUARE if off the board
+    static final int[] NEIGHBOURS = new int[SQUARES * DIRECTIONS];
+    // [square * DIRECTIONS + direction] -> landing square of a jump or EMPTY_SQUARE if off the board
+    static final int[] JUMPS = new int[SQUARES * DIRECTIONS];
+
+    static {
+        int[] rowSteps = {-1, -1, 1, 1};
+        int[] columnSteps = {-1, 1, -1, 1};
+        for (int square = 0; square < SQUARES; square++) {
+            for (int direction = 0; direction < DIRECTIONS; direction++) {
+                NEIGHBOURS[square * DIRECTIONS + direction] = square(
+                        row(square) + rowSteps[direction], column(square) + columnSteps[direction]);
+                JUMPS[square * DIRECTIONS + direction] = square(
+                        row(square) + 2 * rowSteps[direction], column(square) + 2 * columnSteps[direction]);
+            }
+        }
+    }
+
+    private int white = INITIAL_WHITE;
+    private int black = INITIAL_BLACK;
+    private int kings = 0;
+
+    /**
+     * @return index of dark square or {@link #EMPTY_SQUARE} when coordinates are outside of the board or point
+     * to light square
+     */
+    public static int square(int row, int column) {
+        if (row < 0 || row > 7 || column < 0 || column > 7 || ((row + column) & 1) == 0) {
+            return EMPTY_SQUARE;
+        }
+        return row * 4 + column / 2;
+    }
+
+    public static int row(int square) {
+        return square >> 2;
+    }
+
+    public static int column(int square) {
+        return ((square & 3) << 1) + (~row(square) & 1);
+    }
+
+    /**
+     * Example: a1 will map to square 28
+     *
+     * @param command like a5
+     * @return square index or {@link #EMPTY_SQUARE} if command isn't dark square in format [a-h][1-8]
+     */
+    public static int parseSquare(String command) {
+        if (command.length() != 2) {
+            return EMPTY_SQUARE;
+        }
+        return parseSquare(command.charAt(0), command.charAt(1));
+    }
+
+    public static int parseSquare(char column, char rank) {
+        if (column < 'a' || column > 'h' || rank < '1' || rank > '8') {
+            return EMPTY_SQUARE;
+        }
+        return square('8' - rank, column - 'a');
+    }
+
+    /**
+     * Appends square in format used by MOVE command, e.g. a1 for square 28
+     */
+    public static void appendSquareName(StringBuilder sb, int square) {
+        sb.append((char) ('a' + column(square))).append((char) ('8' - row(square)));
+    }
+
+    public int getWhite() {
+        return white;
+    }
+
+    public int getBlack() {
+        return black;
+    }
+
+    public int getKings() {
+        return kings;
+    }
+
+    public int pieces(Color color) {
+        return color == Color.WHITE ? white : black;
+    }
+
+    public int empty() {
+        return ~(white | black);
+    }
+
+    public int pieceCount(Color color) {
+        return Integer.bitCount(pieces(color));
+    }
+
+    public boolean isKing(int square) {
+        return (kings & (1 << square)) != 0;
+    }
+
+    /**
+     * @return symbol used in {@code BOARD=} field: 0, w, W, b or B
+     */
+    public char pieceAt(int square) {
+        return pieceAt(white, black, kings, square);
+    }
+
+    static char pieceAt(int white, int black, int kings, int square) {
+        int bit = 1 << square;
+        if ((white & bit) != 0) {
+            return (kings & bit) != 0 ? 'W' : 'w';
+        }
+        if ((black & bit) != 0) {
+            return (kings & bit) != 0 ? 'B' : 'b';
+        }
+        return '0';
+    }
+
+    /**
+     * Appends 64 characters, row by row from 8th rank, light squares are always 0.
+     */
+    public void appendTo(StringBuilder sb) {
+        for (int row = 0; row < 8; row++) {
+            for (int column = 0; column < 8; column++) {
+                int square = square(row, column);
+                sb.append(square == EMPTY_SQUARE ? '0' : pieceAt(square));
+            }
+        }
+    }
+
+    /**
+     * Applies move generated by {@link MoveGenerator} - removes captured pieces, moves piece from first to last
+     * square and crowns it if it reached kings row.
+     */
+    public void makeMove(MoveList moves, int index, Color movingPlayer) {
+        makeMove(moves.from(index), moves.to(index), moves.captured(index), movingPlayer);
+    }
+
+    public void makeMove(int from, int to, int capturedMask, Color movingPlayer) {
+        int fromBit = 1 << from;
+        int toBit = 1 << to;
+        boolean crowned = (kings & fromBit) != 0
+                || (toBit & (movingPlayer == Color.WHITE ? WHITE_KINGS_ROW : BLACK_KINGS_ROW)) != 0;
+        kings &= ~(fromBit | capturedMask);
+        if (crowned) {
+            kings |= toBit;
+        }
+        if (movingPlayer == Color.WHITE) {
+            white = (white & ~fromBit) | toBit;
+            black &= ~capturedMask;
+        } else {
+            black = (black & ~fromBit) | toBit;
+            white &= ~capturedMask;
+        }
+    }
+
+    /**
+     * Restores position, used to take back moves during search.
+     */
+    public void set(int white, int black, int kings) {
+        this.white = white;
+        this.black = black;
+        this.kings = kings;
+    }
+}
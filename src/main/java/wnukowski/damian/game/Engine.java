@@ -0,0 +1,317 @@
+package wnukowski.damian.game;
+
+import wnukowski.damian.game.GameRoom.Color;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+import static wnukowski.damian.game.BitBoard.SQUARES;
+
+/**
+ * Computer player's search - iterative deepening negamax with alpha-beta pruning over {@link BitBoard}.
+ * Positions are identified by Zobrist hash updated with every move, results of searched positions are kept in
+ * transposition table of fixed size given to the constructor, so memory used by a search never grows with its
+ * depth or time. Captures are followed past the nominal depth, a position is evaluated only when it is quiet.
+ * <p>
+ * Not thread safe - engine is owned by one thread and reused between searches, searching doesn't allocate except
+ * for the returned {@link Result}.
+ */
+public final class Engine {
+    public static final int MAX_DEPTH = 32;
+    // plies below the root, captures are searched past the nominal depth up to this limit
+    private static final int MAX_PLY = 64;
+    // score of a lost position at the root, each ply closer to the loss is worse
+    private static final int LOSS = -30_000;
+    private static final int MAN = 100;
+    private static final int KING = 160;
+    // bonus of a man by rows it has advanced from its back row
+    private static final int[] ADVANCEMENT = {0, 1, 2, 4, 6, 9, 12, 0};
+    // nodes between checks of the deadline
+    private static final int TIME_CHECK_MASK = 1023;
+
+    // [piece * SQUARES + square], pieces as in piece()
+    private static final long[] ZOBRIST = new long[4 * SQUARES];
+    private static final long ZOBRIST_BLACK_TO_MOVE;
+
+    static {
+        // fixed seed - hashes are the same in every run, which helps reproducing searches
+        SplittableRandom random = new SplittableRandom(0x5EED);
+        for (int i = 0; i < ZOBRIST.length; i++) {
+            ZOBRIST[i] = random.nextLong();
+        }
+        ZOBRIST_BLACK_TO_MOVE = random.nextLong();
+    }
+
+    // bound stored in transposition table entry
+    private static final int EXACT = 0;
+    private static final int LOWER_BOUND = 1;
+    private static final int UPPER_BOUND = 2;
+
+    // entry: score (32 bits) | depth + 1 (8 bits, 0 is empty entry) | bound (2 bits) | move index + 1 (8 bits)
+    private final long[] tableKeys;
+    private final long[] tableEntries;
+    private final int tableMask;
+
+    private final BitBoard board = new BitBoard();
+    private final MoveList[] movesPerPly = new MoveList[MAX_PLY];
+
+    // state of the current search
+    private long nodes;
+    private long deadlineNanos;
+    // false while searching depth 1, so there is always a move to play
+    private boolean mayAbort;
+    private boolean aborted;
+    private int rootBestMove;
+
+    /**
+     * @param tableBytes memory for transposition table, rounded down to power of two entries of 16 bytes
+     */
+    public Engine(int tableBytes) {
+        int entries = Integer.highestOneBit(Math.max(tableBytes / 16, 1));
+        tableKeys = new long[entries];
+        tableEntries = new long[entries];
+        tableMask = entries - 1;
+        for (int i = 0; i < movesPerPly.length; i++) {
+            movesPerPly[i] = new MoveList();
+        }
+    }
+
+    /**
+     * @return bytes used by transposition table
+     */
+    public long getTableBytes() {
+        return tableKeys.length * 16L;
+    }
+
+    /**
+     * Searches deeper and deeper until maxDepth is searched or deadline passes, result of the last completed depth is
+     * returned. Depth 1 is always completed.
+     *
+     * @param maxDepth      plies, at most {@link #MAX_DEPTH}
+     * @param deadlineNanos {@link System#nanoTime()} when search should stop
+     * @return best move or null if movingPlayer has no legal move
+     */
+    public Result search(int white, int black, int kings, Color movingPlayer, int maxDepth, long deadlineNanos) {
+        board.set(white, black, kings);
+        Arrays.fill(tableEntries, 0);
+        nodes = 0;
+        aborted = false;
+        this.deadlineNanos = deadlineNanos;
+        MoveList rootMoves = movesPerPly[0];
+        int count = MoveGenerator.generate(board, movingPlayer, rootMoves);
+        if (count == 0) {
+            return null;
+        }
+        long startNanos = System.nanoTime();
+        long hash = hash(board, movingPlayer);
+        int bestMove = 0;
+        int bestScore = 0;
+        int completedDepth = 0;
+        // forced move is played without searching
+        int lastDepth = count == 1 ? 0 : Math.min(Math.max(maxDepth, 1), MAX_DEPTH);
+        for (int depth = 1; depth <= lastDepth; depth++) {
+            mayAbort = depth > 1;
+            rootBestMove = 0;
+            int score = search(depth, 0, LOSS - 1, -LOSS + 1, movingPlayer, hash);
+            if (aborted) {
+                break;
+            }
+            bestMove = rootBestMove;
+            bestScore = score;
+            completedDepth = depth;
+            long now = System.nanoTime();
+            // next depth takes longer than all previous ones together
+            if (Math.abs(score) > -LOSS - MAX_PLY || now - startNanos > (deadlineNanos - now)) {
+                break;
+            }
+        }
+        int[] squares = new int[rootMoves.pathLength(bestMove)];
+        for (int i = 0; i < squares.length; i++) {
+            squares[i] = rootMoves.square(bestMove, i);
+        }
+        return new Result(squares, bestScore, completedDepth, nodes);
+    }
+
+    private int search(int depth, int ply, int alpha, int beta, Color movingPlayer, long hash) {
+        nodes++;
+        if (mayAbort && (nodes & TIME_CHECK_MASK) == 0 && System.nanoTime() - deadlineNanos > 0) {
+            aborted = true;
+        }
+        if (aborted && ply > 0) {
+            return 0;
+        }
+        MoveList moves = movesPerPly[ply];
+        int count = MoveGenerator.generate(board, movingPlayer, moves);
+        if (count == 0) {
+            return LOSS + ply;
+        }
+        boolean capture = moves.captured(0) != 0;
+        if ((depth <= 0 && !capture) || ply == MAX_PLY - 1) {
+            return evaluate(movingPlayer);
+        }
+
+        int slot = (int) hash & tableMask;
+        int hashMove = -1;
+        if (tableKeys[slot] == hash && tableEntries[slot] != 0) {
+            long entry = tableEntries[slot];
+            int entryDepth = (int) (entry >>> 10 & 0xFF) - 1;
+            int bound = (int) (entry >>> 8 & 3);
+            int score = scoreFromTable((int) (entry >> 32), ply);
+            hashMove = (int) (entry & 0xFF) - 1;
+            if (ply > 0 && entryDepth >= depth) {
+                if (bound == EXACT
+                        || (bound == LOWER_BOUND && score >= beta)
+                        || (bound == UPPER_BOUND && score <= alpha)) {
+                    return score;
+                }
+            }
+            if (hashMove >= count) {
+                hashMove = -1; // hash collision
+            }
+        }
+
+        Color enemy = movingPlayer == Color.WHITE ? Color.BLACK : Color.WHITE;
+        int white = board.getWhite();
+        int black = board.getBlack();
+        int kings = board.getKings();
+        int originalAlpha = alpha;
+        int bestScore = LOSS - 1;
+        int bestMove = 0;
+        // move from transposition table first, then all others in generated order
+        for (int i = -1; i < count; i++) {
+            int move = i == -1 ? hashMove : i;
+            if (move == -1 || (i >= 0 && move == hashMove)) {
+                continue;
+            }
+            board.makeMove(moves, move, movingPlayer);
+            long childHash = hashAfterMove(hash, moves, move, movingPlayer, kings);
+            int score = -search(depth - 1, ply + 1, -beta, -alpha, enemy, childHash);
+            board.set(white, black, kings);
+            if (aborted) {
+                return 0;
+            }
+            if (score > bestScore) {
+                bestScore = score;
+                bestMove = move;
+                if (ply == 0) {
+                    rootBestMove = move;
+                }
+            }
+            if (score > alpha) {
+                alpha = score;
+            }
+            if (alpha >= beta) {
+                break;
+            }
+        }
+
+        int bound = bestScore <= originalAlpha ? UPPER_BOUND : bestScore >= beta ? LOWER_BOUND : EXACT;
+        // always replace - entries of the current search are more useful than older ones
+        tableKeys[slot] = hash;
+        tableEntries[slot] = (long) scoreToTable(bestScore, ply) << 32 | (long) (Math.max(depth, 0) + 1) << 10
+                | (long) bound << 8 | (bestMove < 0xFF ? bestMove + 1 : 0);
+        return bestScore;
+    }
+
+    // scores of won and lost positions are stored relative to the stored position, not to the root
+    private static int scoreToTable(int score, int ply) {
+        return score > -LOSS - MAX_PLY ? score + ply : score < LOSS + MAX_PLY ? score - ply : score;
+    }
+
+    private static int scoreFromTable(int score, int ply) {
+        return score > -LOSS - MAX_PLY ? score - ply : score < LOSS + MAX_PLY ? score + ply : score;
+    }
+
+    /**
+     * Material and advancement of men, from the point of view of movingPlayer.
+     */
+    private int evaluate(Color movingPlayer) {
+        int white = board.getWhite();
+        int black = board.getBlack();
+        int kings = board.getKings();
+        int score = MAN * (Integer.bitCount(white & ~kings) - Integer.bitCount(black & ~kings))
+                + KING * (Integer.bitCount(white & kings) - Integer.bitCount(black & kings));
+        // white men advance towards row 0, black men towards row 7
+        for (int men = white & ~kings; men != 0; men &= men - 1) {
+            score += ADVANCEMENT[7 - BitBoard.row(Integer.numberOfTrailingZeros(men))];
+        }
+        for (int men = black & ~kings; men != 0; men &= men - 1) {
+            score -= ADVANCEMENT[BitBoard.row(Integer.numberOfTrailingZeros(men))];
+        }
+        return movingPlayer == Color.WHITE ? score : -score;
+    }
+
+    /**
+     * @return Zobrist hash of the position with given player to move
+     */
+    public static long hash(BitBoard board, Color movingPlayer) {
+        long hash = movingPlayer == Color.BLACK ? ZOBRIST_BLACK_TO_MOVE : 0;
+        int kings = board.getKings();
+        for (int pieces = board.getWhite() | board.getBlack(); pieces != 0; pieces &= pieces - 1) {
+            int square = Integer.numberOfTrailingZeros(pieces);
+            Color color = (board.getWhite() & (1 << square)) != 0 ? Color.WHITE : Color.BLACK;
+            hash ^= ZOBRIST[piece(color, (kings & (1 << square)) != 0) * SQUARES + square];
+        }
+        return hash;
+    }
+
+    // hash of the board after the move was made, kingsBefore are kings before the move
+    private long hashAfterMove(long hash, MoveList moves, int move, Color movingPlayer, int kingsBefore) {
+        int from = moves.from(move);
+        int to = moves.to(move);
+        hash ^= ZOBRIST[piece(movingPlayer, (kingsBefore & (1 << from)) != 0) * SQUARES + from]
+                ^ ZOBRIST[piece(movingPlayer, board.isKing(to)) * SQUARES + to];
+        Color enemy = movingPlayer == Color.WHITE ? Color.BLACK : Color.WHITE;
+        for (int captured = moves.captured(move); captured != 0; captured &= captured - 1) {
+            int square = Integer.numberOfTrailingZeros(captured);
+            hash ^= ZOBRIST[piece(enemy, (kingsBefore & (1 << square)) != 0) * SQUARES + square];
+        }
+        return hash ^ ZOBRIST_BLACK_TO_MOVE;
+    }
+
+    private static int piece(Color color, boolean king) {
+        return (color == Color.WHITE ? 0 : 2) + (king ? 1 : 0);
+    }
+
+    /**
+     * Move chosen by {@link #search(int, int, int, Color, int, long)}.
+     */
+    public static final class Result {
+        private final int[] squares;
+        private final int score;
+        private final int depth;
+        private final long nodes;
+
+        private Result(int[] squares, int score, int depth, long nodes) {
+            this.squares = squares;
+            this.score = score;
+            this.depth = depth;
+            this.nodes = nodes;
+        }
+
+        /**
+         * @return path of the move as accepted by {@link GameRoom#move(int[], int, java.util.UUID)}
+         */
+        public int[] getSquares() {
+            return squares;
+        }
+
+        /**
+         * @return score in hundredths of a man from the point of view of the moving player
+         */
+        public int getScore() {
+            return score;
+        }
+
+        /**
+         * @return last completed depth, 0 if the move was forced
+         */
+        public int getDepth() {
+            return depth;
+        }
+
+        public long getNodes() {
+            return nodes;
+        }
+    }
+}
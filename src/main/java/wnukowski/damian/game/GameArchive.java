@@ -0,0 +1,609 @@
+package wnukowski.damian.game;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import wnukowski.damian.game.GameRoom.State;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only archive of ended games, looked up by {@code GET_GAME} after the room is removed from memory.
+ * <p>
+ * When game is won, drawn or left by both players before the end, room appends record to in-memory buffer under
+ * its lock and single writer thread appends the buffer to segment {@code archive-N.dat} every {@code flushMillis} -
+ * as in {@link GameJournal} threads of games never wait for the disk and failed write is retried. Record is
+ * {@code int length, body, int crc32}, body is described by {@link ArchivedGame}.
+ * <p>
+ * Once segment exceeds {@code segmentBytes}, it is sealed: room uuid and both player uuids of every record are
+ * written sorted to {@code archive-N.idx} as {@value #INDEX_ENTRY_SIZE} byte entries (uuid, record offset), which is
+ * mapped to memory, and only every {@value #INDEX_SPACING}th uuid is kept on the heap. Lookup binary searches these
+ * uuids of each segment and then one block of the mapped index, so heap grows by 16 bytes per
+ * {@value #INDEX_SPACING} index entries - uuids of the segment being written are kept whole in a hash map, bounded
+ * by segment size. Segment is also sealed on close, segment of a crashed run is sealed on start, without torn record at its end.
+ */
+public final class GameArchive {
+    private static final Logger log = LoggerFactory.getLogger(GameArchive.class);
+
+    static final int INDEX_SPACING = 128;
+    static final int INDEX_ENTRY_SIZE = 20;
+    private static final String SEGMENT_PREFIX = "archive-";
+    private static final String DATA_SUFFIX = ".dat";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final int INDEX_MAGIC = 0x43484b49;
+    private static final int INDEX_HEADER_SIZE = 8;
+    // room, white and black uuid
+    private static final int KEYS_PER_GAME = 3;
+    private static final int[] KEY_OFFSETS = {ArchivedGame.ROOM_OFFSET, ArchivedGame.WHITE_OFFSET,
+            ArchivedGame.BLACK_OFFSET};
+    // record offsets are stored as unsigned 32 bit numbers
+    private static final long MAX_SEGMENT_MEGABYTES = 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long RETRY_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    // archive rooms write to, null when archive is disabled
+    private static volatile GameArchive current;
+
+    private final Path directory;
+    private final long flushNanos;
+    private final long segmentBytes;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final CRC32 crc = new CRC32();
+    // records waiting for the writer, guarded by lock
+    private ByteBuffer pending = ByteBuffer.allocate(BUFFER_SIZE);
+    private ByteBuffer writing = ByteBuffer.allocate(BUFFER_SIZE);
+    // oldest first, lookups go from the newest
+    private final List<Segment> sealed = new CopyOnWriteArrayList<>();
+    // guards segment being written and its keys, changed by the writer thread only
+    private final ReentrantLock indexLock = new ReentrantLock();
+    private long segmentNumber;
+    private FileChannel segment;
+    private long segmentSize;
+    // uuid most and least significant bits and record offset of every key of the segment being written, sorted
+    // into its index once the segment is sealed
+    private long[] keys = new long[3 * 1024];
+    private int keyCount;
+    // offset of the latest record of every key of the segment being written, for lookups
+    private final HashMap<UUID, Long> keyOffsets = new HashMap<>();
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    private GameArchive(Path directory, long segmentNumber, long flushMillis, long segmentBytes) throws IOException {
+        this.directory = directory;
+        this.flushNanos = TimeUnit.MILLISECONDS.toNanos(flushMillis);
+        this.segmentBytes = segmentBytes;
+        this.segmentNumber = segmentNumber;
+        this.segment = openSegment(segmentNumber);
+        this.writer = new Thread(this::runWriter, "archive-writer");
+        this.writer.setDaemon(true);
+    }
+
+    /**
+     * Opens archive configured by {@code archiveDirectory}, {@code archiveFlushMillis} and
+     * {@code archiveSegmentMegabytes} properties.
+     *
+     * @return null if {@code archiveDirectory} isn't set - ended games aren't kept
+     */
+    public static GameArchive openFromProperties() throws IOException {
+        String archiveDirectory = System.getProperty("archiveDirectory");
+        if (archiveDirectory == null) {
+            return null;
+        }
+        return open(Paths.get(archiveDirectory),
+                Long.parseLong(System.getProperty("archiveFlushMillis", "1000")),
+                Math.min(Long.parseLong(System.getProperty("archiveSegmentMegabytes", "16")), MAX_SEGMENT_MEGABYTES)
+                        * 1024 * 1024);
+    }
+
+    /**
+     * Loads indexes of sealed segments, seals segment left by crashed run and starts archiving ended games to new
+     * segment.
+     */
+    public static GameArchive open(Path directory, long flushMillis, long segmentBytes) throws IOException {
+        Files.createDirectories(directory);
+        long start = System.nanoTime();
+        List<Segment> segments = new ArrayList<>();
+        long lastSegment = 0;
+        long games = 0;
+        for (long number : segmentNumbers(directory)) {
+            lastSegment = number;
+            if (!Files.exists(indexFile(directory, number))) {
+                if (Files.size(dataFile(directory, number)) == 0) {
+                    Files.delete(dataFile(directory, number));
+                    continue;
+                }
+                sealAfterCrash(directory, number);
+            }
+            Segment segment = Segment.open(directory, number);
+            segments.add(segment);
+            games += segment.count / KEYS_PER_GAME;
+        }
+        GameArchive archive = new GameArchive(directory, lastSegment + 1, flushMillis, segmentBytes);
+        archive.sealed.addAll(segments);
+        log.info("Opened archive of [{}] games in [{}] segments from [{}] in [{}] ms", games, segments.size(),
+                directory, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        current = archive;
+        archive.writer.start();
+        return archive;
+    }
+
+    /**
+     * Writes pending games and seals the segment, later lookups find nothing.
+     */
+    public void close() throws IOException {
+        if (current == this) {
+            current = null;
+        }
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        indexLock.lock();
+        try {
+            seal();
+            for (Segment segment : sealed) {
+                segment.data.close();
+            }
+        } finally {
+            indexLock.unlock();
+        }
+    }
+
+    /**
+     * Called by the room under its lock when the game ends or both players leave it before the end.
+     */
+    static void gameEnded(UUID roomUUID, UUID whiteUUID, UUID blackUUID, TimeControl timeControl, State result,
+                          long whiteMillis, long blackMillis, MoveLog moves) {
+        GameArchive archive = current;
+        if (archive == null) {
+            return;
+        }
+        int length = ArchivedGame.bodyLength(moves);
+        long endedAtMillis = System.currentTimeMillis();
+        archive.lock.lock();
+        try {
+            if (archive.pending.remaining() < length + 8) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(archive.pending.capacity() * 2,
+                        archive.pending.position() + length + 8));
+                archive.pending.flip();
+                archive.pending = bigger.put(archive.pending);
+            }
+            ByteBuffer pending = archive.pending;
+            int start = pending.position();
+            pending.putInt(length);
+            ArchivedGame.writeBody(pending, roomUUID, whiteUUID, blackUUID, timeControl, result, endedAtMillis,
+                    whiteMillis, blackMillis, moves);
+            archive.crc.reset();
+            archive.crc.update(pending.array(), pending.arrayOffset() + start + 4, length);
+            pending.putInt((int) archive.crc.getValue());
+        } finally {
+            archive.lock.unlock();
+        }
+    }
+
+    /**
+     * @param uuid uuid of the room or of one of its players
+     * @return the latest archived game with such uuid or null if there is none or archive is disabled
+     */
+    public static ArchivedGame find(UUID uuid) throws IOException {
+        GameArchive archive = current;
+        return archive == null ? null : archive.lookup(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+    }
+
+    private ArchivedGame lookup(long mostSigBits, long leastSigBits) throws IOException {
+        FileChannel channel;
+        Long openSegmentOffset;
+        indexLock.lock();
+        try {
+            channel = segment;
+            openSegmentOffset = keyOffsets.get(new UUID(mostSigBits, leastSigBits));
+        } finally {
+            indexLock.unlock();
+        }
+        if (openSegmentOffset != null) {
+            // channel stays open when segment is sealed, it is closed only with the archive
+            return readRecord(channel, openSegmentOffset);
+        }
+        for (int i = sealed.size() - 1; i >= 0; i--) {
+            Segment candidate = sealed.get(i);
+            long offset = candidate.find(mostSigBits, leastSigBits);
+            if (offset >= 0) {
+                return readRecord(candidate.data, offset);
+            }
+        }
+        return null;
+    }
+
+    private static ArchivedGame readRecord(FileChannel channel, long offset) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(4);
+        readFully(channel, header, offset);
+        int length = header.getInt(0);
+        if (length <= 0 || length > ArchivedGame.MAX_BODY_LENGTH) {
+            throw new IOException("Invalid archive record length " + length + " at " + offset);
+        }
+        ByteBuffer record = ByteBuffer.allocate(length + 4);
+        readFully(channel, record, offset + 4);
+        CRC32 recordCrc = new CRC32();
+        recordCrc.update(record.array(), 0, length);
+        if ((int) recordCrc.getValue() != record.getInt(length)) {
+            throw new IOException("Invalid checksum of archive record at " + offset);
+        }
+        record.clear().limit(length);
+        return new ArchivedGame(record.slice());
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Archive record ends after end of file");
+            }
+        }
+    }
+
+    private void runWriter() {
+        while (running) {
+            LockSupport.parkNanos(this, flushNanos);
+            try {
+                flush();
+                if (segmentSize >= segmentBytes) {
+                    rotate();
+                }
+            } catch (IOException | RuntimeException e) {
+                log.error("Can't write archive, retrying", e);
+                LockSupport.parkNanos(this, RETRY_NANOS);
+            }
+        }
+        try {
+            flush();
+        } catch (IOException | RuntimeException e) {
+            log.error("Can't write archive", e);
+        }
+    }
+
+    private void flush() throws IOException {
+        lock.lock();
+        try {
+            if (writing.position() == 0) {
+                ByteBuffer full = pending;
+                pending = writing;
+                writing = full;
+            } else {
+                // games of failed flush go first
+                writing = GameJournal.append(writing, pending);
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (writing.position() == 0) {
+            return;
+        }
+        writing.flip();
+        int limit = writing.limit();
+        boolean written = false;
+        try {
+            // written at segment size, so retry overwrites tail torn by failed write
+            while (writing.hasRemaining()) {
+                segment.write(writing, segmentSize + writing.position());
+            }
+            segment.force(false);
+            written = true;
+        } finally {
+            if (!written) {
+                // keep games for the next flush, they must not be overwritten by new ones
+                writing.position(limit);
+                writing.limit(writing.capacity());
+            }
+        }
+        // games become visible to lookups once they are on disk
+        indexLock.lock();
+        try {
+            for (int position = 0; position < limit; position += writing.getInt(position) + 8) {
+                addKeys(writing, position + 4, segmentSize + position);
+            }
+            segmentSize += limit;
+        } finally {
+            indexLock.unlock();
+        }
+        writing.clear();
+    }
+
+    // body is at given buffer position, record starts at offset of the segment
+    private void addKeys(ByteBuffer records, int body, long offset) {
+        if ((keyCount + KEYS_PER_GAME) * 3 > keys.length) {
+            keys = Arrays.copyOf(keys, keys.length * 2);
+        }
+        for (int key : KEY_OFFSETS) {
+            keys[3 * keyCount] = records.getLong(body + key);
+            keys[3 * keyCount + 1] = records.getLong(body + key + 8);
+            keys[3 * keyCount + 2] = offset;
+            keyOffsets.put(new UUID(keys[3 * keyCount], keys[3 * keyCount + 1]), offset);
+            keyCount++;
+        }
+    }
+
+    /**
+     * Seals the segment being written and continues in the next one. The next segment is opened first, so failed
+     * rotation leaves the current segment in place and is retried after the next flush.
+     */
+    private void rotate() throws IOException {
+        FileChannel next = openSegment(segmentNumber + 1);
+        indexLock.lock();
+        try {
+            seal();
+            segmentNumber++;
+            segment = next;
+        } catch (IOException | RuntimeException e) {
+            next.close();
+            Files.deleteIfExists(dataFile(directory, segmentNumber + 1));
+            throw e;
+        } finally {
+            indexLock.unlock();
+        }
+    }
+
+    /**
+     * Writes index of the segment being written and moves it to sealed segments, must be called under index lock.
+     * Empty segment is deleted instead. Segment stays in place if sealing fails.
+     */
+    private void seal() throws IOException {
+        if (segmentSize == 0) {
+            Files.deleteIfExists(dataFile(directory, segmentNumber));
+            segment.close();
+            segment = null;
+            return;
+        }
+        writeIndex(indexFile(directory, segmentNumber), keys, keyCount);
+        sealed.add(Segment.open(directory, segmentNumber, segment));
+        segment = null;
+        segmentSize = 0;
+        keyCount = 0;
+        keyOffsets.clear();
+        if (keys.length > 3 * 1024 * 16) {
+            keys = new long[3 * 1024];
+        }
+    }
+
+    /**
+     * Indexes records of segment without index, segment is truncated after the last valid record.
+     */
+    private static void sealAfterCrash(Path directory, long number) throws IOException {
+        Path file = dataFile(directory, number);
+        long[] keys = new long[3 * 1024];
+        int keyCount = 0;
+        long valid = 0;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            CRC32 recordCrc = new CRC32();
+            while (buffer.limit() - valid >= 4) {
+                int start = (int) valid;
+                int length = buffer.getInt(start);
+                if (length <= 0 || length > ArchivedGame.MAX_BODY_LENGTH || buffer.limit() - start < length + 8) {
+                    break;
+                }
+                ByteBuffer body = buffer.duplicate();
+                body.position(start + 4).limit(start + 4 + length);
+                recordCrc.reset();
+                recordCrc.update(body);
+                if ((int) recordCrc.getValue() != buffer.getInt(start + 4 + length)) {
+                    break;
+                }
+                if ((keyCount + KEYS_PER_GAME) * 3 > keys.length) {
+                    keys = Arrays.copyOf(keys, keys.length * 2);
+                }
+                for (int key : KEY_OFFSETS) {
+                    keys[3 * keyCount] = buffer.getLong(start + 4 + key);
+                    keys[3 * keyCount + 1] = buffer.getLong(start + 4 + key + 8);
+                    keys[3 * keyCount + 2] = start;
+                    keyCount++;
+                }
+                valid = start + 8 + length;
+            }
+            if (valid < channel.size()) {
+                log.warn("Archive segment [{}] ends with incomplete record at [{}], cut off", file, valid);
+                channel.truncate(valid);
+            }
+        }
+        writeIndex(indexFile(directory, number), keys, keyCount);
+    }
+
+    /**
+     * Sorts keys and writes them as index file, which appears complete or not at all.
+     */
+    private static void writeIndex(Path file, long[] keys, int keyCount) throws IOException {
+        sort(keys, 0, keyCount - 1);
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            buffer.putInt(INDEX_MAGIC).putInt(keyCount);
+            for (int i = 0; i < keyCount; i++) {
+                if (buffer.remaining() < INDEX_ENTRY_SIZE) {
+                    writeFully(channel, buffer);
+                }
+                buffer.putLong(keys[3 * i]).putLong(keys[3 * i + 1]).putInt((int) keys[3 * i + 2]);
+            }
+            writeFully(channel, buffer);
+            channel.force(true);
+        }
+        Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    // quicksort of (most, least significant bits, offset) triples by uuid
+    private static void sort(long[] keys, int from, int to) {
+        while (from < to) {
+            int middle = (from + to) >>> 1;
+            long pivotMost = keys[3 * middle];
+            long pivotLeast = keys[3 * middle + 1];
+            int i = from;
+            int j = to;
+            while (i <= j) {
+                while (compare(keys[3 * i], keys[3 * i + 1], pivotMost, pivotLeast) < 0) {
+                    i++;
+                }
+                while (compare(keys[3 * j], keys[3 * j + 1], pivotMost, pivotLeast) > 0) {
+                    j--;
+                }
+                if (i <= j) {
+                    for (int k = 0; k < 3; k++) {
+                        long swapped = keys[3 * i + k];
+                        keys[3 * i + k] = keys[3 * j + k];
+                        keys[3 * j + k] = swapped;
+                    }
+                    i++;
+                    j--;
+                }
+            }
+            // recursion into the smaller part keeps the stack shallow
+            if (j - from < to - i) {
+                sort(keys, from, j);
+                from = i;
+            } else {
+                sort(keys, i, to);
+                to = j;
+            }
+        }
+    }
+
+    static int compare(long mostSigBits, long leastSigBits, long otherMostSigBits, long otherLeastSigBits) {
+        int result = Long.compare(mostSigBits, otherMostSigBits);
+        return result != 0 ? result : Long.compare(leastSigBits, otherLeastSigBits);
+    }
+
+    private FileChannel openSegment(long number) throws IOException {
+        return FileChannel.open(dataFile(directory, number), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE,
+                StandardOpenOption.READ);
+    }
+
+    private static Path dataFile(Path directory, long number) {
+        return directory.resolve(SEGMENT_PREFIX + number + DATA_SUFFIX);
+    }
+
+    private static Path indexFile(Path directory, long number) {
+        return directory.resolve(SEGMENT_PREFIX + number + INDEX_SUFFIX);
+    }
+
+    private static List<Long> segmentNumbers(Path directory) throws IOException {
+        List<Long> numbers = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + DATA_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    numbers.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                            name.length() - DATA_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    log.warn("Unexpected file in archive directory: [{}]", file);
+                }
+            }
+        }
+        Collections.sort(numbers);
+        return numbers;
+    }
+
+    /**
+     * Sealed segment - data file open for reads and mapped index with every {@link #INDEX_SPACING}th uuid on heap.
+     */
+    private static final class Segment {
+        private final FileChannel data;
+        private final MappedByteBuffer index;
+        private final int count;
+        // most and least significant bits of the first uuid of every block of INDEX_SPACING entries
+        private final long[] blockKeys;
+
+        private Segment(FileChannel data, MappedByteBuffer index, int count) {
+            this.data = data;
+            this.index = index;
+            this.count = count;
+            this.blockKeys = new long[2 * ((count + INDEX_SPACING - 1) / INDEX_SPACING)];
+            for (int block = 0; block < blockKeys.length / 2; block++) {
+                int entry = INDEX_HEADER_SIZE + block * INDEX_SPACING * INDEX_ENTRY_SIZE;
+                blockKeys[2 * block] = index.getLong(entry);
+                blockKeys[2 * block + 1] = index.getLong(entry + 8);
+            }
+        }
+
+        static Segment open(Path directory, long number) throws IOException {
+            return open(directory, number, FileChannel.open(dataFile(directory, number), StandardOpenOption.READ));
+        }
+
+        static Segment open(Path directory, long number, FileChannel data) throws IOException {
+            Path file = indexFile(directory, number);
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                MappedByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (index.limit() < INDEX_HEADER_SIZE || index.getInt(0) != INDEX_MAGIC
+                        || index.limit() != INDEX_HEADER_SIZE + (long) index.getInt(4) * INDEX_ENTRY_SIZE) {
+                    data.close();
+                    throw new IOException("Invalid archive index " + file);
+                }
+                return new Segment(data, index, index.getInt(4));
+            }
+        }
+
+        /**
+         * @return offset of the record or -1 if uuid isn't in this segment
+         */
+        long find(long mostSigBits, long leastSigBits) {
+            // last block starting with uuid not greater than the searched one
+            int low = 0;
+            int high = blockKeys.length / 2 - 1;
+            int block = -1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                if (compare(blockKeys[2 * middle], blockKeys[2 * middle + 1], mostSigBits, leastSigBits) <= 0) {
+                    block = middle;
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            if (block < 0) {
+                return -1;
+            }
+            low = block * INDEX_SPACING;
+            high = Math.min(count, low + INDEX_SPACING) - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                int entry = INDEX_HEADER_SIZE + middle * INDEX_ENTRY_SIZE;
+                int result = compare(index.getLong(entry), index.getLong(entry + 8), mostSigBits, leastSigBits);
+                if (result == 0) {
+                    return index.getInt(entry + 16) & 0xFFFFFFFFL;
+                }
+                if (result < 0) {
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,695 @@
+package wnukowski.damian.game;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import wnukowski.damian.game.GameRoom.Color;
+import wnukowski.damian.server.ServerState;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of room changes, used to restore {@link ServerState#gameRooms} after restart.
+ * <p>
+ * Rooms append records under their own lock to in-memory buffer, single writer thread writes the buffer to
+ * current segment file and forces it to disk every {@code flushMillis} (group commit) - moves don't wait for
+ * the disk, on crash changes from the last flush interval are lost. Failed write is retried with the same records
+ * and those added since, so the segment never has a gap. Record is {@code int length, body, int crc32}
+ * and body starts with {@code byte type, long room version, room uuid}. Torn record at the end of segment
+ * ends replay of that segment.
+ * <p>
+ * Every {@code snapshotSeconds} writer starts new segment {@code N} and writes state of all rooms to
+ * {@code snapshot-N.dat}, older segments and snapshots are deleted afterwards. Changes made while snapshot is
+ * written land in segment {@code N} too - on replay records not newer than room version are skipped.
+ * Recovery loads the latest snapshot and replays segments starting from its number.
+ * <p>
+ * Open journal holds lock of {@code journal.lock} file in its directory, released by the system when the process
+ * ends, so no other process writes or takes over the journal while it is in use.
+ */
+public final class GameJournal {
+    private static final Logger log = LoggerFactory.getLogger(GameJournal.class);
+
+    static final byte CREATED = 1;
+    static final byte JOINED = 2;
+    static final byte LEFT = 3;
+    static final byte DRAW_REQUESTED = 4;
+    static final byte DRAW_CANCELLED = 5;
+    static final byte MOVED = 6;
+    static final byte FLAG_FELL = 7;
+    static final byte REMOVED = 8;
+    static final byte COMPUTER_PLAYER = 9;
+
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SNAPSHOT_SUFFIX = ".dat";
+    private static final String LOCK_FILE = "journal.lock";
+    private static final int SNAPSHOT_MAGIC = 0x43484b53;
+    private static final int MAX_RECORD_LENGTH = 128;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long RETRY_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    // journal rooms write to, null when persistence is disabled
+    private static volatile GameJournal current;
+
+    private final Path directory;
+    // held until the journal is closed
+    private final FileLock directoryLock;
+    private final long flushNanos;
+    private final long snapshotNanos;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final CRC32 crc = new CRC32();
+    // records waiting for the writer, guarded by lock
+    private ByteBuffer pending = ByteBuffer.allocate(BUFFER_SIZE);
+    // following fields are used by the writer thread only
+    private ByteBuffer writing = ByteBuffer.allocate(BUFFER_SIZE);
+    private long segmentNumber;
+    private FileChannel segment;
+    // bytes written to the segment successfully
+    private long segmentSize;
+    private long lastSnapshotNanos = System.nanoTime();
+    private final Thread writer;
+    private volatile boolean running = true;
+    private volatile boolean snapshotRequested = false;
+
+    private GameJournal(Path directory, FileLock directoryLock, long segmentNumber, long flushMillis,
+                        long snapshotSeconds) throws IOException {
+        this.directory = directory;
+        this.directoryLock = directoryLock;
+        this.flushNanos = TimeUnit.MILLISECONDS.toNanos(flushMillis);
+        this.snapshotNanos = TimeUnit.SECONDS.toNanos(snapshotSeconds);
+        this.segmentNumber = segmentNumber;
+        this.segment = openSegment(segmentNumber);
+        this.writer = new Thread(this::runWriter, "journal-writer");
+        this.writer.setDaemon(true);
+    }
+
+    /**
+     * Opens journal configured by {@code journalDirectory}, {@code journalFlushMillis} and
+     * {@code journalSnapshotSeconds} properties.
+     *
+     * @return null if {@code journalDirectory} isn't set - rooms are kept in memory only
+     */
+    public static GameJournal openFromProperties() throws IOException {
+        String journalDirectory = System.getProperty("journalDirectory");
+        if (journalDirectory == null) {
+            return null;
+        }
+        return openFromProperties(Paths.get(journalDirectory));
+    }
+
+    /**
+     * Opens journal in given directory, flush and snapshot intervals are taken from properties.
+     */
+    public static GameJournal openFromProperties(Path directory) throws IOException {
+        return open(directory,
+                Long.parseLong(System.getProperty("journalFlushMillis", "10")),
+                Long.parseLong(System.getProperty("journalSnapshotSeconds", "300")));
+    }
+
+    /**
+     * Restores rooms from the directory into {@link ServerState#gameRooms} and starts journaling changes of rooms
+     * to new segment.
+     */
+    public static GameJournal open(Path directory, long flushMillis, long snapshotSeconds) throws IOException {
+        Files.createDirectories(directory);
+        FileLock directoryLock = tryLock(directory);
+        if (directoryLock == null) {
+            throw new IOException("Journal directory " + directory + " is used by another process");
+        }
+        GameJournal journal;
+        try {
+            long start = System.nanoTime();
+            long lastSegment = recover(directory);
+            log.info("Recovered [{}] rooms from [{}] in [{}] ms", ServerState.gameRooms.size(), directory,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            journal = new GameJournal(directory, directoryLock, lastSegment + 1, flushMillis, snapshotSeconds);
+        } catch (IOException | RuntimeException e) {
+            directoryLock.channel().close();
+            throw e;
+        }
+        current = journal;
+        journal.writer.start();
+        return journal;
+    }
+
+    /**
+     * Flushes pending records and stops journaling, writes snapshot before if it was requested.
+     */
+    public void close() throws IOException {
+        if (current == this) {
+            current = null;
+        }
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        segment.close();
+        directoryLock.channel().close();
+    }
+
+    /**
+     * Locks journal directory, lock is released by closing its channel or by the system when the process ends.
+     *
+     * @return lock or null if the directory is locked by an open journal
+     */
+    public static FileLock tryLock(Path directory) throws IOException {
+        FileChannel channel = FileChannel.open(directory.resolve(LOCK_FILE), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE);
+        try {
+            FileLock lock = channel.tryLock();
+            if (lock == null) {
+                channel.close();
+            }
+            return lock;
+        } catch (OverlappingFileLockException e) {
+            channel.close(); // locked by this process
+            return null;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Asks writer thread to write snapshot as soon as possible.
+     */
+    public void requestSnapshot() {
+        snapshotRequested = true;
+        LockSupport.unpark(writer);
+    }
+
+    /**
+     * Asks writer of the current journal to write snapshot, so rooms added to {@link ServerState#gameRooms} without
+     * being created on this server (e.g. taken over from another cluster node) are journaled too.
+     */
+    public static void requestCurrentSnapshot() {
+        GameJournal journal = current;
+        if (journal != null) {
+            journal.requestSnapshot();
+        }
+    }
+
+    /**
+     * Loads rooms from the latest snapshot and journal segments in the directory into
+     * {@link ServerState#gameRooms}.
+     *
+     * @return number of the last journal segment, 0 if there is none
+     */
+    public static long recover(Path directory) throws IOException {
+        Map<UUID, GameRoom> rooms = new HashMap<>();
+        long lastSegment = load(directory, rooms);
+        ServerState.gameRooms.putAll(rooms);
+        return lastSegment;
+    }
+
+    /**
+     * Loads rooms from the latest snapshot and journal segments in the directory, rooms are ready to be joined.
+     *
+     * @return number of the last journal segment, 0 if there is none
+     */
+    public static long load(Path directory, Map<UUID, GameRoom> rooms) throws IOException {
+        List<Long> snapshots = fileNumbers(directory, SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+        long snapshotNumber = snapshots.isEmpty() ? 0 : snapshots.get(snapshots.size() - 1);
+        if (snapshotNumber > 0) {
+            readSnapshot(directory.resolve(SNAPSHOT_PREFIX + snapshotNumber + SNAPSHOT_SUFFIX), rooms);
+        }
+        long lastSegment = snapshotNumber;
+        for (long number : fileNumbers(directory, SEGMENT_PREFIX, SEGMENT_SUFFIX)) {
+            if (number >= snapshotNumber) {
+                replaySegment(directory.resolve(SEGMENT_PREFIX + number + SEGMENT_SUFFIX), rooms);
+            }
+            lastSegment = Math.max(lastSegment, number);
+        }
+        for (GameRoom room : rooms.values()) {
+            room.finishRecovery();
+        }
+        return lastSegment;
+    }
+
+    /**
+     * Writes state of the rooms to the file in snapshot format, the file appears complete or not at all.
+     */
+    public static void writeRooms(Path file, Collection<GameRoom> rooms) throws IOException {
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            writeRooms(channel, rooms);
+        }
+        Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return rooms written by {@link #writeRooms(Path, Collection)}, ready to be joined
+     */
+    public static Collection<GameRoom> readRooms(Path file) throws IOException {
+        Map<UUID, GameRoom> rooms = new HashMap<>();
+        readSnapshot(file, rooms);
+        for (GameRoom room : rooms.values()) {
+            room.finishRecovery();
+        }
+        return rooms.values();
+    }
+
+    static void roomCreated(GameRoom room) {
+        GameJournal journal = current;
+        if (journal == null) {
+            return;
+        }
+        journal.lock.lock();
+        try {
+            int start = journal.begin(CREATED, 0, room.getRoomUUID());
+            putUUID(journal.pending, room.getWhiteUUID());
+            putUUID(journal.pending, room.getBlackUUID());
+            journal.pending.putInt(room.getTimeControl().getBaseMinutes())
+                    .putInt(room.getTimeControl().getIncrementSeconds());
+            journal.end(start);
+        } finally {
+            journal.lock.unlock();
+        }
+    }
+
+    /**
+     * Records join, leave, draw request or its cancellation.
+     */
+    static void record(byte type, UUID roomUUID, long version, Color color) {
+        GameJournal journal = current;
+        if (journal == null) {
+            return;
+        }
+        journal.lock.lock();
+        try {
+            int start = journal.begin(type, version, roomUUID);
+            journal.pending.put((byte) color.ordinal());
+            journal.end(start);
+        } finally {
+            journal.lock.unlock();
+        }
+    }
+
+    static void moved(UUID roomUUID, long version, Color color, int[] squares, int length,
+                      long whiteMillis, long blackMillis) {
+        GameJournal journal = current;
+        if (journal == null) {
+            return;
+        }
+        journal.lock.lock();
+        try {
+            int start = journal.begin(MOVED, version, roomUUID);
+            journal.pending.put((byte) color.ordinal()).putLong(whiteMillis).putLong(blackMillis).put((byte) length);
+            for (int i = 0; i < length; i++) {
+                journal.pending.put((byte) squares[i]);
+            }
+            journal.end(start);
+        } finally {
+            journal.lock.unlock();
+        }
+    }
+
+    static void flagFell(UUID roomUUID, long version, long whiteMillis, long blackMillis) {
+        GameJournal journal = current;
+        if (journal == null) {
+            return;
+        }
+        journal.lock.lock();
+        try {
+            int start = journal.begin(FLAG_FELL, version, roomUUID);
+            journal.pending.putLong(whiteMillis).putLong(blackMillis);
+            journal.end(start);
+        } finally {
+            journal.lock.unlock();
+        }
+    }
+
+    static void computerPlayer(UUID roomUUID, long version, Color color, int depth, long millis) {
+        GameJournal journal = current;
+        if (journal == null) {
+            return;
+        }
+        journal.lock.lock();
+        try {
+            int start = journal.begin(COMPUTER_PLAYER, version, roomUUID);
+            journal.pending.put((byte) color.ordinal()).putInt(depth).putLong(millis);
+            journal.end(start);
+        } finally {
+            journal.lock.unlock();
+        }
+    }
+
+    static void roomRemoved(UUID roomUUID) {
+        GameJournal journal = current;
+        if (journal == null) {
+            return;
+        }
+        journal.lock.lock();
+        try {
+            journal.end(journal.begin(REMOVED, 0, roomUUID));
+        } finally {
+            journal.lock.unlock();
+        }
+    }
+
+    // must be called under lock, returns position of the record
+    private int begin(byte type, long version, UUID roomUUID) {
+        if (pending.remaining() < MAX_RECORD_LENGTH + 8) {
+            ByteBuffer bigger = ByteBuffer.allocate(pending.capacity() * 2);
+            pending.flip();
+            pending = bigger.put(pending);
+        }
+        int start = pending.position();
+        pending.putInt(0).put(type).putLong(version);
+        putUUID(pending, roomUUID);
+        return start;
+    }
+
+    private void end(int start) {
+        int length = pending.position() - start - 4;
+        pending.putInt(start, length);
+        crc.reset();
+        crc.update(pending.array(), pending.arrayOffset() + start + 4, length);
+        pending.putInt((int) crc.getValue());
+    }
+
+    private void runWriter() {
+        while (running) {
+            LockSupport.parkNanos(this, flushNanos);
+            try {
+                flush();
+                if (snapshotRequested || System.nanoTime() - lastSnapshotNanos > snapshotNanos) {
+                    snapshot();
+                }
+            } catch (IOException | RuntimeException e) {
+                log.error("Can't write journal, retrying", e);
+                LockSupport.parkNanos(this, RETRY_NANOS);
+            }
+        }
+        try {
+            if (snapshotRequested) {
+                snapshot();
+            }
+            flush();
+        } catch (IOException | RuntimeException e) {
+            log.error("Can't write journal", e);
+        }
+    }
+
+    private void flush() throws IOException {
+        lock.lock();
+        try {
+            if (writing.position() == 0) {
+                ByteBuffer full = pending;
+                pending = writing;
+                writing = full;
+            } else {
+                // records of failed flush go first
+                writing = append(writing, pending);
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (writing.position() == 0) {
+            return;
+        }
+        writing.flip();
+        boolean written = false;
+        try {
+            // written at the end of previous records, so retry overwrites tail torn by failed write
+            while (writing.hasRemaining()) {
+                segment.write(writing, segmentSize + writing.position());
+            }
+            segment.force(false);
+            segmentSize += writing.limit();
+            written = true;
+        } finally {
+            if (written) {
+                writing.clear();
+            } else {
+                // keep records for the next flush, they must not be overwritten by new ones
+                writing.position(writing.limit());
+                writing.limit(writing.capacity());
+            }
+        }
+    }
+
+    /**
+     * Moves records from source to the end of target, source is cleared.
+     *
+     * @return target or its bigger copy
+     */
+    static ByteBuffer append(ByteBuffer target, ByteBuffer source) {
+        source.flip();
+        if (target.remaining() < source.remaining()) {
+            ByteBuffer bigger = ByteBuffer.allocate(target.position() + source.remaining() + BUFFER_SIZE);
+            target.flip();
+            target = bigger.put(target);
+        }
+        target.put(source);
+        source.clear();
+        return target;
+    }
+
+    /**
+     * Starts new segment and writes state of all rooms, every record in older segments is already applied to
+     * rooms at that point.
+     */
+    private void snapshot() throws IOException {
+        snapshotRequested = false;
+        lastSnapshotNanos = System.nanoTime();
+        long start = lastSnapshotNanos;
+        flush();
+        FileChannel next;
+        try {
+            next = openSegment(segmentNumber + 1);
+        } catch (IOException | RuntimeException e) {
+            snapshotRequested = true; // records go on to the current segment, rotation is retried
+            throw e;
+        }
+        FileChannel previous = segment;
+        segmentNumber++;
+        segment = next;
+        segmentSize = 0;
+        previous.close();
+
+        Path temporary = directory.resolve(SNAPSHOT_PREFIX + segmentNumber + ".tmp");
+        int rooms;
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            rooms = writeRooms(channel, ServerState.gameRooms.values());
+        }
+        Files.move(temporary, directory.resolve(SNAPSHOT_PREFIX + segmentNumber + SNAPSHOT_SUFFIX),
+                StandardCopyOption.ATOMIC_MOVE);
+
+        for (long number : fileNumbers(directory, SEGMENT_PREFIX, SEGMENT_SUFFIX)) {
+            if (number < segmentNumber) {
+                Files.deleteIfExists(directory.resolve(SEGMENT_PREFIX + number + SEGMENT_SUFFIX));
+            }
+        }
+        for (long number : fileNumbers(directory, SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX)) {
+            if (number < segmentNumber) {
+                Files.deleteIfExists(directory.resolve(SNAPSHOT_PREFIX + number + SNAPSHOT_SUFFIX));
+            }
+        }
+        log.info("Journal snapshot [{}] with [{}] rooms written in [{}] ms", segmentNumber, rooms,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    // writes snapshot content and forces it to disk, returns number of rooms
+    private static int writeRooms(FileChannel channel, Iterable<GameRoom> rooms) throws IOException {
+        int count = 0;
+        CRC32 snapshotCrc = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        buffer.putInt(SNAPSHOT_MAGIC);
+        for (GameRoom room : rooms) {
+            if (buffer.remaining() < GameRoom.STATE_SIZE + 1 + 4) {
+                writeSnapshotChunk(channel, buffer, snapshotCrc);
+            }
+            buffer.put((byte) 1);
+            room.writeState(buffer);
+            count++;
+        }
+        buffer.put((byte) 0);
+        writeSnapshotChunk(channel, buffer, snapshotCrc);
+        buffer.putInt((int) snapshotCrc.getValue());
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        channel.force(true);
+        return count;
+    }
+
+    private static void writeSnapshotChunk(FileChannel channel, ByteBuffer buffer, CRC32 snapshotCrc)
+            throws IOException {
+        buffer.flip();
+        snapshotCrc.update(buffer.array(), buffer.arrayOffset(), buffer.limit());
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private FileChannel openSegment(long number) throws IOException {
+        return FileChannel.open(directory.resolve(SEGMENT_PREFIX + number + SEGMENT_SUFFIX),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    }
+
+    private static void readSnapshot(Path file, Map<UUID, GameRoom> rooms) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.limit() < 9 || buffer.getInt(0) != SNAPSHOT_MAGIC) {
+                throw new IOException("Invalid journal snapshot " + file);
+            }
+            CRC32 snapshotCrc = new CRC32();
+            ByteBuffer content = buffer.duplicate();
+            content.limit(buffer.limit() - 4);
+            snapshotCrc.update(content);
+            if ((int) snapshotCrc.getValue() != buffer.getInt(buffer.limit() - 4)) {
+                throw new IOException("Invalid checksum of journal snapshot " + file);
+            }
+            buffer.position(4);
+            while (buffer.get() == 1) {
+                GameRoom room = GameRoom.readState(buffer);
+                if (room != null) {
+                    rooms.put(room.getRoomUUID(), room);
+                }
+            }
+        }
+    }
+
+    private static void replaySegment(Path file, Map<UUID, GameRoom> rooms) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            CRC32 recordCrc = new CRC32();
+            int[] squares = new int[MoveList.MAX_PATH_LENGTH];
+            while (buffer.remaining() >= 4) {
+                int start = buffer.position();
+                int length = buffer.getInt(start);
+                if (length <= 0 || length > MAX_RECORD_LENGTH || buffer.remaining() < length + 8) {
+                    log.warn("Journal segment [{}] ends with incomplete record at [{}]", file, start);
+                    return;
+                }
+                ByteBuffer body = buffer.duplicate();
+                body.position(start + 4).limit(start + 4 + length);
+                recordCrc.reset();
+                recordCrc.update(body);
+                if ((int) recordCrc.getValue() != buffer.getInt(start + 4 + length)) {
+                    log.warn("Journal segment [{}] ends with corrupted record at [{}]", file, start);
+                    return;
+                }
+                buffer.position(start + 4);
+                replayRecord(buffer, rooms, squares);
+                buffer.position(start + 8 + length);
+            }
+        }
+    }
+
+    private static void replayRecord(ByteBuffer buffer, Map<UUID, GameRoom> rooms, int[] squares) {
+        byte type = buffer.get();
+        long version = buffer.getLong();
+        UUID roomUUID = getUUID(buffer);
+        if (type == CREATED) {
+            UUID whiteUUID = getUUID(buffer);
+            UUID blackUUID = getUUID(buffer);
+            TimeControl timeControl = TimeControl.of(buffer.getInt(), buffer.getInt());
+            if (timeControl != null && !rooms.containsKey(roomUUID)) {
+                rooms.put(roomUUID, GameRoom.restore(roomUUID, whiteUUID, blackUUID, timeControl));
+            }
+            return;
+        }
+        if (type == REMOVED) {
+            rooms.remove(roomUUID);
+            return;
+        }
+        GameRoom room = rooms.get(roomUUID);
+        if (room == null) {
+            return; // removed before the snapshot
+        }
+        switch (type) {
+            case JOINED:
+                room.restorePlayerJoined(version, color(buffer.get()));
+                break;
+            case LEFT:
+                room.restorePlayerLeft(version, color(buffer.get()));
+                break;
+            case DRAW_REQUESTED:
+                room.restoreDrawRequest(version, color(buffer.get()), true);
+                break;
+            case DRAW_CANCELLED:
+                room.restoreDrawRequest(version, color(buffer.get()), false);
+                break;
+            case MOVED:
+                Color color = color(buffer.get());
+                long whiteMillis = buffer.getLong();
+                long blackMillis = buffer.getLong();
+                int length = Math.min(buffer.get(), squares.length);
+                for (int i = 0; i < length; i++) {
+                    squares[i] = buffer.get();
+                }
+                room.restoreMove(version, color, squares, length, whiteMillis, blackMillis);
+                break;
+            case FLAG_FELL:
+                room.restoreClocks(version, buffer.getLong(), buffer.getLong());
+                break;
+            case COMPUTER_PLAYER:
+                room.restoreComputerPlayer(color(buffer.get()), buffer.getInt(), buffer.getLong());
+                break;
+            default:
+                log.warn("Unknown journal record type [{}], record skipped", type);
+        }
+    }
+
+    private static Color color(byte ordinal) {
+        return Color.values()[ordinal & 1];
+    }
+
+    /**
+     * @return numbers of files named prefix + number + suffix in ascending order
+     */
+    private static List<Long> fileNumbers(Path directory, String prefix, String suffix) throws IOException {
+        List<Long> numbers = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, prefix + "*" + suffix)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    numbers.add(Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length())));
+                } catch (NumberFormatException e) {
+                    log.warn("Unexpected file in journal directory: [{}]", file);
+                }
+            }
+        }
+        Collections.sort(numbers);
+        return numbers;
+    }
+
+    static void putUUID(ByteBuffer buffer, UUID uuid) {
+        buffer.putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits());
+    }
+
+    static UUID getUUID(ByteBuffer buffer) {
+        return new UUID(buffer.getLong(), buffer.getLong());
+    }
+}
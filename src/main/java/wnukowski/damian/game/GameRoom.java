@@ -4,19 +4,53 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import wnukowski.damian.server.ServerState;
 
-import java.time.Duration;
-import java.time.LocalDateTime;
-import java.util.*;
-import java.util.stream.Collectors;
+import static wnukowski.damian.server.ServerCodes.STATUS_DELTA;
+import static wnukowski.damian.server.ServerCodes.STATUS_NOT_MODIFIED;
+import static wnukowski.damian.server.ServerCodes.STATUS_OK;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
 
 public class GameRoom {
     private final static Logger log = LoggerFactory.getLogger(GameRoom.class);
-    private LocalDateTime lastTimeUpdate = LocalDateTime.now();
+    // number of past versions which can be used as base of delta state response
+    private final static int HISTORY_SIZE = 16;
+    // most bytes written by writeState(): uuids, time control, version, turn, flags, clocks, board and computer player
+    final static int STATE_SIZE = 3 * 16 + 2 * 4 + 8 + 1 + 1 + 2 * 8 + 3 * 4 + 1 + 4 + 8;
+    // flags of writeState()
+    private final static int WHITE_WANTS_DRAW_FLAG = 1;
+    private final static int BLACK_WANTS_DRAW_FLAG = 2;
+    private final static int GAME_STARTED_FLAG = 4;
+    private final static int COMPUTER_PLAYER_FLAG = 8;
+    // checks clock of player on move when his time should run out, so listeners learn about it without polling
+    private final static TimerWheel flagTimer = new TimerWheel("flag-timer", 10, 512);
+    // notifies listeners of flag falls of rooms without shard, so the timer thread never waits for them
+    private final static ExecutorService flagListeners = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "flag-listeners");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // j.u.c. lock instead of synchronized methods - waiting on a monitor pins virtual thread to its carrier
+    private final ReentrantLock lock = new ReentrantLock();
+    // contended acquisitions of room locks and time spent waiting for them, uncontended ones are not measured
+    private final static LongAdder lockWaits = new LongAdder();
+    private final static LongAdder lockWaitNanos = new LongAdder();
+    // System.nanoTime() of last clock update, monotonic so it doesn't depend on wall clock adjustments
+    private long lastTimeUpdateNanos = System.nanoTime();
     private final UUID roomUUID;
     private final UUID whiteUUID;
     private final UUID blackUUID;
-    private long whiteMilliseconds = 1000 * 10 * 60;
-    private long blackMilliseconds = 1000 * 10 * 60;
+    private final TimeControl timeControl;
+    private long whiteMilliseconds;
+    private long blackMilliseconds;
     private Color currentTurn = Color.WHITE;
     private boolean whiteWantsDraw = false;
     private boolean blackWantsDraw = false;
@@ -24,28 +58,117 @@ public class GameRoom {
     private boolean whiteInTheRoom = false;
     private boolean blackInTheRoom = false;
 
-    //b - indicates black piece, w indicates white pieces, W and B indicates queens of their colour
-    private final char[][] board = {
-            {'0', 'b', '0', 'b', '0', 'b', '0', 'b'}, // 8
-            {'b', '0', 'b', '0', 'b', '0', 'b', '0'}, // 7
-            {'0', 'b', '0', 'b', '0', 'b', '0', 'b'}, // 6
-            {'0', '0', '0', '0', '0', '0', '0', '0'}, // 5
-            {'0', '0', '0', '0', '0', '0', '0', '0'}, // 4
-            {'w', '0', 'w', '0', 'w', '0', 'w', '0'}, // 3
-            {'0', 'w', '0', 'w', '0', 'w', '0', 'w'}, // 2
-            {'w', '0', 'w', '0', 'w', '0', 'w', '0'}  // 1
-            //  a   b   c   d   e   f   g   h
-    };
+    private final BitBoard board = new BitBoard();
+    // reused between moves, guarded by lock
+    private final MoveList legalMoves = new MoveList();
+    // moves for GameArchive, replaced when room is restored from snapshot
+    private MoveLog moveLog = new MoveLog();
+    // game was written to the archive, it happens once - at the end or when both players leave it unfinished
+    private boolean archived = false;
+    // result known from Tablebase after the last move, null while the game goes on
+    private State adjudicated;
+    // player on move has pieces, but none of them can move - such player loses
+    private boolean sideToMoveBlocked = false;
+    // color played by computer and its search limits, set once after the room is created, null color if none
+    private Color computerColor;
+    private int computerDepth;
+    private long computerMillis;
+
+    private final List<RoomListener> listeners = new CopyOnWriteArrayList<>();
+    private final TimerWheel.Timeout flagCheck = new TimerWheel.Timeout(this::checkFlag);
+    // thread running all changes of the room, null if changes run on caller's thread
+    private final RoomShards.Shard shard;
+
+    // bumped on every change visible in state response except clocks, guarded by lock
+    private long version = 0;
+    // state readers don't take the lock - they use snapshot built on every change
+    private volatile RoomSnapshot snapshot;
+    private final AtomicReferenceArray<RoomSnapshot> history = new AtomicReferenceArray<>(HISTORY_SIZE);
+    // set by stateChanged(), listeners are notified after the lock is released
+    private boolean listenersNotified = true;
 
     public GameRoom() {
-        roomUUID = UUID.randomUUID();
-        whiteUUID = UUID.randomUUID();
-        blackUUID = UUID.randomUUID();
+        this(TimeControl.DEFAULT);
+    }
+
+    public GameRoom(TimeControl timeControl) {
+        this(newRoomUUID(), UUID.randomUUID(), UUID.randomUUID(), timeControl);
+        // in the map before it is journaled, so snapshot which drops segment with CREATED record contains the room
         ServerState.gameRooms.put(this.roomUUID, this);
+        GameJournal.roomCreated(this);
         log.debug("Creating room from memory");
     }
 
-    public synchronized boolean join(UUID roomUUID, UUID colorUUID) {
+    private GameRoom(UUID roomUUID, UUID whiteUUID, UUID blackUUID, TimeControl timeControl) {
+        this.timeControl = timeControl;
+        whiteMilliseconds = timeControl.getBaseMillis();
+        blackMilliseconds = timeControl.getBaseMillis();
+        this.roomUUID = roomUUID;
+        this.whiteUUID = whiteUUID;
+        this.blackUUID = blackUUID;
+        this.shard = RoomShards.shardOf(roomUUID);
+        snapshot = createSnapshot();
+        history.set(0, snapshot);
+    }
+
+    private static UUID newRoomUUID() {
+        UUID roomUUID;
+        do {
+            roomUUID = UUID.randomUUID();
+        } while (!ServerState.ownsRoom.test(roomUUID));
+        return roomUUID;
+    }
+
+    public boolean join(UUID roomUUID, UUID colorUUID) {
+        if (isOtherThanShardThread()) {
+            return shard.call(() -> join(roomUUID, colorUUID));
+        }
+        boolean joined;
+        boolean changed;
+        lockRoom();
+        try {
+            joined = joinPlayer(roomUUID, colorUUID);
+            changed = takeStateChange();
+        } finally {
+            lock.unlock();
+        }
+        if (changed) {
+            notifyListeners();
+        }
+        return joined;
+    }
+
+    /**
+     * Same as {@link #join(UUID, UUID)}, but succeeds also when the player is already in the room - a reconnecting
+     * client takes over the place of its previous connection, which may not be closed yet.
+     *
+     * @param onResumed run under the room lock if resumed, so it is ordered with {@link #leave(UUID, BooleanSupplier)}
+     */
+    public boolean resume(UUID roomUUID, UUID colorUUID, Runnable onResumed) {
+        if (isOtherThanShardThread()) {
+            return shard.call(() -> resume(roomUUID, colorUUID, onResumed));
+        }
+        boolean resumed;
+        boolean changed;
+        lockRoom();
+        try {
+            boolean inTheRoom = (colorUUID.equals(whiteUUID) && whiteInTheRoom)
+                    || (colorUUID.equals(blackUUID) && blackInTheRoom);
+            resumed = roomUUID.equals(this.roomUUID) && (inTheRoom || joinPlayer(roomUUID, colorUUID));
+            if (resumed) {
+                onResumed.run();
+            }
+            changed = takeStateChange();
+        } finally {
+            lock.unlock();
+        }
+        if (changed) {
+            notifyListeners();
+        }
+        return resumed;
+    }
+
+    private boolean joinPlayer(UUID roomUUID, UUID colorUUID) {
         if (!roomUUID.equals(this.roomUUID)) {
             return false;
         }
@@ -53,36 +176,105 @@ public class GameRoom {
         if (colorUUID.equals(whiteUUID) && !whiteInTheRoom) {
             whiteInTheRoom = true;
             if (blackInTheRoom && !gameStarted) {
-                gameStarted = true;
+                startGame();
             }
+            stateChanged();
+            GameJournal.record(GameJournal.JOINED, roomUUID, version, Color.WHITE);
             return true;
         }
         if (colorUUID.equals(blackUUID) && !blackInTheRoom) {
             blackInTheRoom = true;
             if (whiteInTheRoom && !gameStarted) {
-                gameStarted = true;
+                startGame();
             }
+            stateChanged();
+            GameJournal.record(GameJournal.JOINED, roomUUID, version, Color.BLACK);
             return true;
         }
         return false;  // no color uuid match
     }
 
-    public synchronized void leave(UUID colorUUID) {
-        if (colorUUID.equals(whiteUUID)) {
-            whiteInTheRoom = false;
+    private void startGame() {
+        gameStarted = true;
+        lastTimeUpdateNanos = System.nanoTime(); // clock starts when second player joins
+        scheduleFlagCheck();
+    }
+
+    public void leave(UUID colorUUID) {
+        leave(colorUUID, () -> true);
+    }
+
+    /**
+     * Leaves the room if {@code shouldLeave}, checked under the room lock, is true - lets caller give up the color
+     * atomically with respect to {@link #resume(UUID, UUID, Runnable)}.
+     */
+    public void leave(UUID colorUUID, BooleanSupplier shouldLeave) {
+        if (isOtherThanShardThread()) {
+            shard.call(() -> {
+                leave(colorUUID, shouldLeave);
+                return null;
+            });
+            return;
         }
-        if (colorUUID.equals(blackUUID)) {
-            blackInTheRoom = false;
+        boolean changed;
+        boolean empty;
+        lockRoom();
+        try {
+            if (!shouldLeave.getAsBoolean()) {
+                return;
+            }
+            if (colorUUID.equals(whiteUUID) && whiteInTheRoom) {
+                whiteInTheRoom = false;
+                stateChanged();
+                GameJournal.record(GameJournal.LEFT, roomUUID, version, Color.WHITE);
+            }
+            if (colorUUID.equals(blackUUID) && blackInTheRoom) {
+                blackInTheRoom = false;
+                stateChanged();
+                GameJournal.record(GameJournal.LEFT, roomUUID, version, Color.BLACK);
+            }
+            empty = !blackInTheRoom && !whiteInTheRoom;
+            if (empty) {
+                if (gameStarted) {
+                    archive();
+                }
+                GameJournal.roomRemoved(roomUUID);
+                flagTimer.cancel(flagCheck);
+            }
+            changed = takeStateChange();
+        } finally {
+            lock.unlock();
         }
-        if (!blackInTheRoom && !whiteInTheRoom) {
-            // remove room from memory if both players leave
+        if (empty) {
+            // remove room from memory if both players leave, map is not updated under the room lock
             log.debug("Deleting room from memory");
-            ServerState.gameRooms.remove(this.getRoomUUID());
+            ServerState.gameRooms.remove(roomUUID, this);
+        }
+        if (changed) {
+            notifyListeners();
         }
     }
 
-    public synchronized boolean requestADraw(UUID colorUUID) {
-        Color color = getColorForUUID(colorUUID);
+    public boolean requestADraw(UUID colorUUID) {
+        if (isOtherThanShardThread()) {
+            return shard.call(() -> requestADraw(colorUUID));
+        }
+        boolean requested;
+        boolean changed;
+        lockRoom();
+        try {
+            requested = requestADraw(getColorForUUID(colorUUID));
+            changed = takeStateChange();
+        } finally {
+            lock.unlock();
+        }
+        if (changed) {
+            notifyListeners();
+        }
+        return requested;
+    }
+
+    private boolean requestADraw(Color color) {
         if (color.equals(Color.BLACK) && blackWantsDraw) {
             return false;
         }
@@ -95,67 +287,211 @@ public class GameRoom {
         } else {
             whiteWantsDraw = true;
         }
+        stateChanged();
+        GameJournal.record(GameJournal.DRAW_REQUESTED, roomUUID, version, color);
         return true;
     }
 
-    public synchronized boolean cancelDrawRequest(UUID colorUUID) {
-        Color color = getColorForUUID(colorUUID);
+    public boolean cancelDrawRequest(UUID colorUUID) {
+        if (isOtherThanShardThread()) {
+            return shard.call(() -> cancelDrawRequest(colorUUID));
+        }
+        boolean cancelled;
+        boolean changed;
+        lockRoom();
+        try {
+            cancelled = cancelDrawRequest(getColorForUUID(colorUUID));
+            changed = takeStateChange();
+        } finally {
+            lock.unlock();
+        }
+        if (changed) {
+            notifyListeners();
+        }
+        return cancelled;
+    }
+
+    private boolean cancelDrawRequest(Color color) {
         if (whiteWantsDraw && blackWantsDraw) {
             return false; // already draw
         }
 
         if (color.equals(Color.BLACK) && blackWantsDraw) {
             blackWantsDraw = false;
+            stateChanged();
+            GameJournal.record(GameJournal.DRAW_CANCELLED, roomUUID, version, color);
             return true;
         }
 
         if (color.equals(Color.WHITE) && whiteWantsDraw) {
             whiteWantsDraw = false;
+            stateChanged();
+            GameJournal.record(GameJournal.DRAW_CANCELLED, roomUUID, version, color);
             return true;
         }
 
         return false;
     }
 
-    public synchronized String getWholeRoomStateAsString() {
-        StringBuilder sb = new StringBuilder();
-        updateTime();
-        sb.append("STATE=").append(getGameState())
-                .append(" PLAYER_TURN=").append(currentTurn.toString())
-                .append(" WHITE_WANTS_DRAW=").append(whiteWantsDraw ? "TRUE" : "FALSE")
-                .append(" BLACK_WANTS_DRAW=").append(blackWantsDraw ? "TRUE" : "FALSE")
-                .append(" BLACK_TIME=").append(blackMilliseconds)
-                .append(" WHITE_TIME=").append(whiteMilliseconds)
-                .append(" WHITE_ONLINE=").append(whiteInTheRoom ? "TRUE" : "FALSE")
-                .append(" BLACK_ONLINE=").append(blackInTheRoom ? "TRUE" : "FALSE")
-                .append(" BOARD=");
-
-        for (char[] chars : board) {
-            for (char chr: chars) {
-                sb.append(chr);
+    public String getWholeRoomStateAsString() {
+        StringBuilder sb = new StringBuilder(256);
+        snapshot.appendTo(sb, System.nanoTime());
+        return sb.toString();
+    }
+
+    /**
+     * Appends the same as {@link #getWholeRoomStateAsString()} to reused builder.
+     */
+    public void appendWholeRoomState(StringBuilder sb) {
+        snapshot.appendTo(sb, System.nanoTime());
+    }
+
+    /**
+     * @param sinceVersion version from previous state response received by the client
+     * @return whole response: {@code STATUS_NOT_MODIFIED} if nothing changed since given version,
+     * {@code STATUS_DELTA} with changed fields and squares if given version is recent enough,
+     * {@code STATUS_OK} with whole state otherwise. Clocks are always sent if anything changed.
+     */
+    public String getRoomStateSince(long sinceVersion) {
+        StringBuilder sb = new StringBuilder(256);
+        appendRoomStateSince(sb, sinceVersion);
+        return sb.toString();
+    }
+
+    /**
+     * Appends the same as {@link #getRoomStateSince(long)} to reused builder.
+     */
+    public void appendRoomStateSince(StringBuilder sb, long sinceVersion) {
+        RoomSnapshot current = snapshot;
+        long nowNanos = System.nanoTime();
+        if (sinceVersion == current.getVersion()) {
+            sb.append(STATUS_NOT_MODIFIED).append(" VERSION=").append(sinceVersion);
+            return;
+        }
+        if (sinceVersion >= 0 && sinceVersion < current.getVersion()
+                && current.getVersion() - sinceVersion < HISTORY_SIZE) {
+            RoomSnapshot before = history.get((int) (sinceVersion % HISTORY_SIZE));
+            // slot could be already reused by newer version
+            if (before != null && before.getVersion() == sinceVersion) {
+                sb.append(STATUS_DELTA);
+                current.appendDeltaTo(sb, before, nowNanos);
+                return;
             }
         }
+        sb.append(STATUS_OK).append(' ');
+        current.appendTo(sb, nowNanos);
+    }
 
-        return sb.toString();
+    private void lockRoom() {
+        if (lock.tryLock()) {
+            return;
+        }
+        long startNanos = System.nanoTime();
+        lock.lock();
+        lockWaitNanos.add(System.nanoTime() - startNanos);
+        lockWaits.increment();
+    }
+
+    /**
+     * @return true if changes of the room run on its shard and the current thread is not that shard
+     */
+    private boolean isOtherThanShardThread() {
+        return shard != null && !shard.isCurrentThread();
+    }
+
+    public static long getLockWaits() {
+        return lockWaits.sum();
     }
 
-    public synchronized State getGameState() {
+    public static long getLockWaitNanos() {
+        return lockWaitNanos.sum();
+    }
+
+    public long getVersion() {
+        return snapshot.getVersion();
+    }
+
+    /**
+     * Marks color as played by computer, so it can join again after the room is recovered or taken over.
+     */
+    public void setComputerPlayer(Color color, int depth, long millis) {
+        lockRoom();
+        try {
+            computerColor = color;
+            computerDepth = depth;
+            computerMillis = millis;
+            GameJournal.computerPlayer(roomUUID, version, color, depth, millis);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return color played by computer, null if both are played by clients
+     */
+    public Color getComputerColor() {
+        return computerColor;
+    }
+
+    public int getComputerDepth() {
+        return computerDepth;
+    }
+
+    public long getComputerMillis() {
+        return computerMillis;
+    }
+
+    public State getGameState() {
+        return snapshot.getState(System.nanoTime());
+    }
+
+    /**
+     * @return state after last change, readable without the room lock
+     */
+    public RoomSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Called once room is removed from {@link ServerState#gameRooms} without players leaving it - stops its flag
+     * timer and drops listeners so nothing keeps the room reachable.
+     */
+    public void evict() {
+        lockRoom();
+        try {
+            GameJournal.roomRemoved(roomUUID);
+            flagTimer.cancel(flagCheck);
+        } finally {
+            lock.unlock();
+        }
+        listeners.clear();
+    }
+
+    private State currentState() {
         if (!gameStarted) {
             return State.WAITING;
         }
 
+        if (adjudicated != null) {
+            return adjudicated;
+        }
+
         if (whiteWantsDraw && blackWantsDraw) {
             return State.DRAW;
         }
 
-        if (didEnemyLose('b', 'B', blackMilliseconds)) {
+        if (didEnemyLose(Color.BLACK, blackMilliseconds)) {
             return State.WHITE_WON;
         }
 
-        if (didEnemyLose('w', 'W', whiteMilliseconds)) {
+        if (didEnemyLose(Color.WHITE, whiteMilliseconds)) {
             return State.BLACK_WON;
         }
 
+        if (sideToMoveBlocked) {
+            return currentTurn.equals(Color.WHITE) ? State.BLACK_WON : State.WHITE_WON;
+        }
+
         return State.PLAYING;
     }
 
@@ -163,61 +499,104 @@ public class GameRoom {
      * @param commandsStrings list of commands in format [a-h][1-8] where first is chosen piece.
      * @return true if validation passed, false otherwise
      */
-    public synchronized boolean move(List<String> commandsStrings, UUID colorUUID) {
-        Color movingPlayer = getColorForUUID(colorUUID);
+    public boolean move(List<String> commandsStrings, UUID colorUUID) {
+        int length = commandsStrings.size();
+        int[] squares = new int[Math.min(length, MoveList.MAX_PATH_LENGTH)];
+        for (int i = 0; i < squares.length; i++) {
+            squares[i] = BitBoard.parseSquare(commandsStrings.get(i));
+        }
+        return move(squares, length, colorUUID);
+    }
 
-        if (!getGameState().equals(State.PLAYING)) {
-            return false;
+    /**
+     * @param squares indices of squares as in {@link BitBoard}, where first is chosen piece
+     * @param length  number of squares used
+     * @return true if validation passed, false otherwise
+     */
+    public boolean move(int[] squares, int length, UUID colorUUID) {
+        if (isOtherThanShardThread()) {
+            return shard.call(() -> move(squares, length, colorUUID));
         }
-        if (commandsStrings.size() < 2) {
-            return false;
+        boolean validationResult;
+        boolean changed;
+        lockRoom();
+        try {
+            validationResult = move(squares, length, getColorForUUID(colorUUID));
+            changed = takeStateChange();
+        } finally {
+            lock.unlock();
+        }
+        if (changed) {
+            notifyListeners();
         }
+        return validationResult;
+    }
 
-        List<int[]> commands = commandsStrings.stream()
-                .map(this::convertIntoArrayCommand)
-                .filter(Objects::nonNull)
-                .collect(Collectors.toList());
-        if (commands.size() != commandsStrings.size()) {
-            // null filtered commands were invalid commands therefore size of collections differs
+    private boolean move(int[] squares, int length, Color movingPlayer) {
+        // time is updated before validation, move made after time ran out is rejected
+        updateTime();
+        if (!currentState().equals(State.PLAYING)) {
             return false;
         }
-
-        int[] pieceArrayCords = commands.get(0);
-
-        char piece = getPieceFromArrayCords(pieceArrayCords);
-
-        if (!movingPlayer.isValidPiece(piece)) {
+        if (!movingPlayer.equals(currentTurn)) {
             return false;
         }
+        if (length < 2 || length > MoveList.MAX_PATH_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (squares[i] < 0 || squares[i] >= BitBoard.SQUARES) {
+                return false; // invalid command
+            }
+        }
 
-        boolean validationResult;
-        validationResult = validateMove(commands, piece, movingPlayer);
-
+        // move is legal only if it is one of generated moves - this also enforces mandatory captures
+        MoveGenerator.generate(board, movingPlayer, legalMoves);
+        int moveIndex = legalMoves.indexOf(squares, length);
+        boolean validationResult = moveIndex != -1;
 
-        // time can be always updated, but is necessary to update just before potential turn change
-        updateTime();
         if (validationResult) {
-            finalizeMove(commands, movingPlayer);
+            board.makeMove(legalMoves, moveIndex, movingPlayer);
+            moveLog.append(squares, length);
+            if (movingPlayer.equals(Color.WHITE)) {
+                whiteMilliseconds += timeControl.getIncrementMillis();
+            } else {
+                blackMilliseconds += timeControl.getIncrementMillis();
+            }
             currentTurn = currentTurn.equals(Color.WHITE) ? Color.BLACK : Color.WHITE;
+            evaluatePosition();
+            stateChanged();
+            GameJournal.moved(roomUUID, version, movingPlayer, squares, length, whiteMilliseconds, blackMilliseconds);
+            scheduleFlagCheck();
         }
 
         return validationResult;
     }
 
+    public void addListener(RoomListener listener) {
+        listeners.add(listener);
+    }
 
+    public void removeListener(RoomListener listener) {
+        listeners.remove(listener);
+    }
 
-    public synchronized UUID getWhiteUUID() {
+    public UUID getWhiteUUID() {
         return whiteUUID;
     }
 
-    public synchronized UUID getBlackUUID() {
+    public UUID getBlackUUID() {
         return blackUUID;
     }
 
-    public synchronized UUID getRoomUUID() {
+    public UUID getRoomUUID() {
         return roomUUID;
     }
 
+    public TimeControl getTimeControl() {
+        return timeControl;
+    }
+
     private Color getColorForUUID(UUID colorUUID) {
         Color movingPlayer = colorUUID.equals(whiteUUID) ? Color.WHITE
                 : colorUUID.equals(blackUUID) ? Color.BLACK : null;
@@ -228,205 +607,303 @@ public class GameRoom {
     }
 
     /**
-     * Example: a1 will map to first white piece: 7, 0
-     *
-     * @param command like a5
-     * @return array coordinates in format {[0,7],[0,7]} or null if cannot map to this format (validation failed)
+     * Records new version, must be called after every change of the state except clocks.
      */
-    private int[] convertIntoArrayCommand(String command) {
-        if (command.length() != 2) {
-            return null;
+    private void stateChanged() {
+        version++;
+        snapshot = createSnapshot();
+        history.set((int) (version % HISTORY_SIZE), snapshot);
+        listenersNotified = false;
+        if (isFinished(currentState())) {
+            archive();
         }
+    }
 
-        int secondCoordinate;
-        try {
-            secondCoordinate = Integer.parseInt(command.substring(1, 2));
-        } catch (Exception e) {
-            return null;
-        }
+    private static boolean isFinished(State state) {
+        return state != State.WAITING && state != State.PLAYING;
+    }
 
-        int[] result = {8 - secondCoordinate, command.charAt(0) - 'a'};
-        if (result[0] > 7 || result[0] < 0 || result[1] > 7 || result[1] < 0) {
-            return null;
+    private void archive() {
+        if (archived) {
+            return;
         }
+        archived = true;
+        GameArchive.gameEnded(roomUUID, whiteUUID, blackUUID, timeControl, currentState(),
+                whiteMilliseconds, blackMilliseconds, moveLog);
+    }
 
-        return result;
+    private RoomSnapshot createSnapshot() {
+        return new RoomSnapshot(version, currentState(), currentTurn, whiteWantsDraw, blackWantsDraw,
+                whiteInTheRoom, blackInTheRoom, board, whiteMilliseconds, blackMilliseconds, lastTimeUpdateNanos);
     }
 
-    private boolean validateMove(List<int[]> commands, char pieceMoved, Color movingPlayer) {
-        int verticalDifference = movingPlayer.equals(Color.WHITE) ? -2 : 2;
-        boolean isQueen = Character.isUpperCase(pieceMoved);
-        // if first command is jump
-        if (Math.abs(commands.get(1)[0] - commands.get(0)[0]) == 2) {
-            for (int i = 0; i < commands.size() - 1; i++) {
-                if (!validateSingleJump(commands.get(i), commands.get(i + 1), pieceMoved, movingPlayer)) {
-                    return false;
-                }
-            }
-            // after legal sequence of moves we need to check if he doesn't skip any possible move
-            int[] lastCommand = commands.get(commands.size() - 1);
-            int[] newSampleCommand1 = {lastCommand[0] + verticalDifference, lastCommand[1] + 2};
-            int[] newSampleCommand2 = {lastCommand[0] + verticalDifference, lastCommand[1] - 2};
-
-            // Additional jumps that queen can make
-            int[] newSampleCommandForQueen1 = {lastCommand[0] - verticalDifference, lastCommand[1] + 2};
-            int[] newSampleCommandForQueen2 = {lastCommand[0] - verticalDifference, lastCommand[1] - 2};
-
-            List<int[]> generatedProposedCommands = Arrays.asList(newSampleCommand1, newSampleCommand2);
-            if (isQueen) {
-                generatedProposedCommands.add(newSampleCommandForQueen1);
-                generatedProposedCommands.add(newSampleCommandForQueen2);
-            }
+    /**
+     * @return true if state changed since last call, listeners should be notified once lock is released
+     */
+    private boolean takeStateChange() {
+        boolean changed = !listenersNotified;
+        listenersNotified = true;
+        return changed;
+    }
 
-            // if one of suggested commands is legal jump then move commands are invalid - they dont include
-            // all possible jumps
-            for (int[] command : generatedProposedCommands) {
-                // check if jump is viable only if command is a proper command in the proper range
-                if (command[0] >= 0 && command[0] < 8 && command[1] >= 0 && command[1] < 8) {
-                    if (validateSingleJump(lastCommand, command, pieceMoved, movingPlayer)) {
-                        return false; // validation fails if there was possible capture player didn't command
-                    }
-                }
+    private void notifyListeners() {
+        for (RoomListener listener : listeners) {
+            try {
+                listener.roomChanged(this);
+            } catch (RuntimeException e) {
+                log.warn("Room listener failed", e);
             }
-            // no proposed jump was valid - player made all possible jumps, validation is ok
-            return true;
         }
+    }
 
-        // first command isn't jump - only one move allowed
-        if (commands.size() > 2) {
-            return false;
+    /**
+     * Replaces previous check, should be called when clock of other player starts.
+     */
+    private void scheduleFlagCheck() {
+        if (!currentState().equals(State.PLAYING)) {
+            flagTimer.cancel(flagCheck);
+            return;
         }
+        long remaining = currentTurn.equals(Color.WHITE) ? whiteMilliseconds : blackMilliseconds;
+        flagTimer.schedule(flagCheck, remaining + 1);
+    }
 
-        int singleFieldMoveDifference = movingPlayer.equals(Color.WHITE) ? -1 : 1;
-        int[] start = commands.get(0);
-        int[] dest = commands.get(1);
-        // no jumping
-        if (((dest[0] - start[0] == singleFieldMoveDifference) && (Math.abs(dest[1] - start[1]) == 1)) || // piece
-                (isQueen && Math.abs(dest[1] - start[1]) == 1 && Math.abs(dest[0] - start[0]) == 1)) { // queen
-            // check if moved piece is there, check if field moved to is empty
-            char movedPiece = getPieceFromArrayCords(start);
-            char destination = getPieceFromArrayCords(dest);
-            return movingPlayer.isValidPiece(movedPiece) && destination == '0';
+    private void checkFlag() {
+        if (isOtherThanShardThread()) {
+            shard.execute(this::checkFlag); // timer thread doesn't wait, it serves all rooms
+            return;
+        }
+        boolean changed;
+        lockRoom();
+        try {
+            updateTime();
+            if (currentState().equals(State.PLAYING)) {
+                scheduleFlagCheck(); // timer fired too early
+            }
+            changed = takeStateChange();
+        } finally {
+            lock.unlock();
+        }
+        if (changed) {
+            if (shard == null) {
+                // listeners read the room when called, so they see the latest state even if notified late
+                flagListeners.execute(this::notifyListeners);
+            } else {
+                notifyListeners();
+            }
         }
+    }
 
-        return false;
+    // called after the board or the player on move changes
+    private void evaluatePosition() {
+        adjudicated = Tablebase.adjudicate(board, currentTurn);
+        sideToMoveBlocked = MoveGenerator.generate(board, currentTurn, legalMoves) == 0;
     }
 
-    private boolean validateSingleJump(int[] command1, int[] command2, char pieceMoved, Color movingPlayer) {
-        boolean isQueen = Character.isUpperCase(pieceMoved);
-        int verticalDifference = movingPlayer.equals(Color.WHITE) ? -2 : 2;
-        Color enemyColor = movingPlayer.equals(Color.WHITE) ? Color.BLACK : Color.WHITE;
+    private boolean didEnemyLose(Color enemy, long enemyMillis) {
+        return board.pieceCount(enemy) == 0 || enemyMillis <= 0;
+    }
 
-        if (Math.abs(command1[1] - command2[1]) != 2) return false; // they aren't separated by one field sideways
-        if (isQueen) {
-            if (Math.abs(command2[0] - command1[0]) != 2)
-                return false; // direction doesn't matter as long its 2 distance
+    // SHOULD BE ALWAYS CALLED BEFORE TURN CHANGE!!!
+    private void updateTime() {
+        if (!gameStarted) {
+            return;
+        }
+        State stateBefore = currentState();
+        long millisPassed = (System.nanoTime() - lastTimeUpdateNanos) / 1_000_000;
+        if (currentTurn.equals(Color.WHITE)) {
+            whiteMilliseconds -= millisPassed;
         } else {
-            if (command2[0] - command1[0] != verticalDifference) return false; // direction matters based on color
+            blackMilliseconds -= millisPassed;
         }
 
-        int[] capturedPiecesCoords = {(command1[0] + command2[0]) / 2, (command1[1] + command2[1]) / 2};
-
-        char pieceCaptured = getPieceFromArrayCords(capturedPiecesCoords);
-        char destination = getPieceFromArrayCords(command2);
-
-        if (!movingPlayer.isValidPiece(pieceMoved)) return false;
-        if (!enemyColor.isValidPiece(pieceCaptured)) return false;
-        if (destination != '0') return false;
+        // not yet counted fraction of millisecond is kept for next update
+        lastTimeUpdateNanos += millisPassed * 1_000_000;
 
-        return true;
-    }
+        // Don't store negative time
+        blackMilliseconds = Math.max(blackMilliseconds, 0);
+        whiteMilliseconds = Math.max(whiteMilliseconds, 0);
 
-    // set first position to empty, set last position to first position, deletes captured pieces
-    private void finalizeMove(List<int[]> commands, Color movingPlayer) {
-        for (int i = 0; i < commands.size() - 1; i++) {
-            int[] command1 = commands.get(i);
-            int[] command2 = commands.get(i + 1);
-            if (Math.abs(command1[0] - command2[0]) == 2) {
-                // one field gap with capture
-                int[] capturedPieceCords = {(command1[0] + command2[0]) / 2, (command1[1] + command2[1]) / 2};
-                setPieceOnArrayCords(capturedPieceCords, '0');
-            }
-        }
-        int[] lastPiece = commands.get(commands.size() - 1);
-        int isQueen = 0;
-        if ((lastPiece[0] == 7 && movingPlayer.equals(Color.BLACK)) ||
-                (lastPiece[0] == 0 && movingPlayer.equals(Color.WHITE))) {
-            isQueen = 1;
+        if (stateBefore.equals(State.PLAYING) && !currentState().equals(State.PLAYING)) {
+            stateChanged(); // flag fell
+            GameJournal.flagFell(roomUUID, version, whiteMilliseconds, blackMilliseconds);
         }
-
-        setPieceOnArrayCords(commands.get(0), '0'); //Starting pos empty
-        // Queen is at index of 1, basic piece at index of 0
-        setPieceOnArrayCords(commands.get(commands.size() - 1), movingPlayer.piecesSymbols[isQueen]);
     }
 
-    private char getPieceFromArrayCords(int[] cords) {
-        return board[cords[0]][cords[1]];
+    /**
+     * Creates room recovered from {@link GameJournal}, it isn't registered in {@link ServerState#gameRooms} and
+     * its state is restored by following restore methods, which apply changes newer than the room version only.
+     */
+    static GameRoom restore(UUID roomUUID, UUID whiteUUID, UUID blackUUID, TimeControl timeControl) {
+        return new GameRoom(roomUUID, whiteUUID, blackUUID, timeControl);
     }
 
-    private void setPieceOnArrayCords(int[] cords, char pieceToSet) {
-        board[cords[0]][cords[1]] = pieceToSet;
+    void restorePlayerJoined(long recordVersion, Color color) {
+        if (recordVersion <= version) {
+            return;
+        }
+        if (color.equals(Color.WHITE)) {
+            whiteInTheRoom = true;
+        } else {
+            blackInTheRoom = true;
+        }
+        gameStarted |= whiteInTheRoom && blackInTheRoom;
+        version = recordVersion;
     }
 
-    private boolean didEnemyLose(char oppositePieceSymbol1, char oppositePieceSymbol2, long oppositePieceMillis) {
-        boolean enemyLost = true;
-        for (char[] row : board) {
-            for (char cell : row) {
-                if (cell == oppositePieceSymbol1 || cell == oppositePieceSymbol2) {
-                    enemyLost = false;
-                    break;
-                }
-            }
+    void restorePlayerLeft(long recordVersion, Color color) {
+        if (recordVersion <= version) {
+            return;
         }
-
-        if (oppositePieceMillis <= 0) {
-            enemyLost = true;
+        if (color.equals(Color.WHITE)) {
+            whiteInTheRoom = false;
+        } else {
+            blackInTheRoom = false;
         }
-
-        return enemyLost;
+        version = recordVersion;
     }
 
-    // SHOULD BE ALWAYS CALLED BEFORE TURN CHANGE!!!
-    private void updateTime() {
-        if (!gameStarted) {
+    void restoreDrawRequest(long recordVersion, Color color, boolean wantsDraw) {
+        if (recordVersion <= version) {
             return;
         }
-        long millisPassed = Duration.between(lastTimeUpdate, LocalDateTime.now()).toMillis();
-        if (currentTurn.equals(Color.WHITE)) {
-            whiteMilliseconds -= millisPassed;
+        if (color.equals(Color.WHITE)) {
+            whiteWantsDraw = wantsDraw;
         } else {
-            blackMilliseconds -= millisPassed;
+            blackWantsDraw = wantsDraw;
         }
+        version = recordVersion;
+    }
 
-        lastTimeUpdate = LocalDateTime.now();
+    void restoreMove(long recordVersion, Color movingPlayer, int[] squares, int length,
+                     long whiteMillis, long blackMillis) {
+        if (recordVersion <= version) {
+            return;
+        }
+        MoveGenerator.generate(board, movingPlayer, legalMoves);
+        int moveIndex = legalMoves.indexOf(squares, length);
+        if (moveIndex == -1) {
+            log.warn("Journal contains illegal move for room [{}], move skipped", roomUUID);
+            return;
+        }
+        board.makeMove(legalMoves, moveIndex, movingPlayer);
+        moveLog.append(squares, length);
+        currentTurn = movingPlayer.equals(Color.WHITE) ? Color.BLACK : Color.WHITE;
+        evaluatePosition();
+        whiteMilliseconds = whiteMillis;
+        blackMilliseconds = blackMillis;
+        version = recordVersion;
+    }
 
-        // Don't store negative time
-        blackMilliseconds = Math.max(blackMilliseconds, 0);
-        whiteMilliseconds = Math.max(whiteMilliseconds, 0);
+    // not versioned, computer player is set once
+    void restoreComputerPlayer(Color color, int depth, long millis) {
+        computerColor = color;
+        computerDepth = depth;
+        computerMillis = millis;
     }
 
-    public enum Color {
-        /*
-        Second piece mark is king version of base biece (first)
-         */
-        BLACK('b', 'B'), WHITE('w', 'W');
+    void restoreClocks(long recordVersion, long whiteMillis, long blackMillis) {
+        if (recordVersion <= version) {
+            return;
+        }
+        whiteMilliseconds = whiteMillis;
+        blackMilliseconds = blackMillis;
+        version = recordVersion;
+    }
 
-        private final char[] piecesSymbols;
+    /**
+     * Writes up to {@link #STATE_SIZE} bytes needed to restore the room, without online flags - players have to join
+     * again after restart.
+     */
+    void writeState(ByteBuffer buffer) {
+        lockRoom();
+        try {
+            GameJournal.putUUID(buffer, roomUUID);
+            GameJournal.putUUID(buffer, whiteUUID);
+            GameJournal.putUUID(buffer, blackUUID);
+            buffer.putInt(timeControl.getBaseMinutes()).putInt(timeControl.getIncrementSeconds())
+                    .putLong(version)
+                    .put((byte) currentTurn.ordinal())
+                    .put((byte) ((whiteWantsDraw ? WHITE_WANTS_DRAW_FLAG : 0)
+                            | (blackWantsDraw ? BLACK_WANTS_DRAW_FLAG : 0)
+                            | (gameStarted ? GAME_STARTED_FLAG : 0)
+                            | (computerColor != null ? COMPUTER_PLAYER_FLAG : 0)))
+                    .putLong(whiteMilliseconds).putLong(blackMilliseconds)
+                    .putInt(board.getWhite()).putInt(board.getBlack()).putInt(board.getKings());
+            if (computerColor != null) {
+                buffer.put((byte) computerColor.ordinal()).putInt(computerDepth).putLong(computerMillis);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
 
-        Color(char... piecesSymbols) {
-            this.piecesSymbols = piecesSymbols;
+    /**
+     * @return room restored from state written by {@link #writeState(ByteBuffer)} or null if state is invalid
+     */
+    static GameRoom readState(ByteBuffer buffer) {
+        UUID roomUUID = GameJournal.getUUID(buffer);
+        UUID whiteUUID = GameJournal.getUUID(buffer);
+        UUID blackUUID = GameJournal.getUUID(buffer);
+        TimeControl timeControl = TimeControl.of(buffer.getInt(), buffer.getInt());
+        long version = buffer.getLong();
+        Color turn = Color.values()[buffer.get() & 1];
+        int flags = buffer.get();
+        long whiteMillis = buffer.getLong();
+        long blackMillis = buffer.getLong();
+        int white = buffer.getInt();
+        int black = buffer.getInt();
+        int kings = buffer.getInt();
+        Color computerColor = null;
+        int computerDepth = 0;
+        long computerMillis = 0;
+        if ((flags & COMPUTER_PLAYER_FLAG) != 0) {
+            computerColor = Color.values()[buffer.get() & 1];
+            computerDepth = buffer.getInt();
+            computerMillis = buffer.getLong();
+        }
+        if (timeControl == null) {
+            return null;
         }
+        GameRoom room = new GameRoom(roomUUID, whiteUUID, blackUUID, timeControl);
+        room.version = version;
+        room.currentTurn = turn;
+        room.whiteWantsDraw = (flags & WHITE_WANTS_DRAW_FLAG) != 0;
+        room.blackWantsDraw = (flags & BLACK_WANTS_DRAW_FLAG) != 0;
+        room.gameStarted = (flags & GAME_STARTED_FLAG) != 0;
+        room.restoreComputerPlayer(computerColor, computerDepth, computerMillis);
+        room.whiteMilliseconds = whiteMillis;
+        room.blackMilliseconds = blackMillis;
+        room.board.set(white, black, kings);
+        room.evaluatePosition();
+        room.moveLog = new MoveLog(white, black, kings, turn);
+        return room;
+    }
 
-        boolean isValidPiece(char piece) {
-            for (char c : piecesSymbols) {
-                if (c == piece) {
-                    return true;
-                }
-            }
-            return false;
+    /**
+     * Called once recovery is finished - players have to join again, clock of player on move continues from
+     * the recorded value, time when server was down isn't counted.
+     */
+    void finishRecovery() {
+        lockRoom();
+        try {
+            whiteInTheRoom = false;
+            blackInTheRoom = false;
+            lastTimeUpdateNanos = System.nanoTime();
+            // game which ended before restart was archived then
+            archived = isFinished(currentState());
+            stateChanged();
+            takeStateChange();
+            scheduleFlagCheck();
+        } finally {
+            lock.unlock();
         }
     }
 
+    public enum Color {
+        BLACK, WHITE
+    }
+
     public enum State {
         WAITING, PLAYING, DRAW, WHITE_WON, BLACK_WON
     }
@@ -0,0 +1,91 @@
+package wnukowski.damian.game;
+
+import wnukowski.damian.game.GameRoom.Color;
+
+import static wnukowski.damian.game.BitBoard.*;
+
+/**
+ * Generates all legal moves of English draughts for a position:
+ * <ul>
+ * <li>if any capture is possible only captures are legal,</li>
+ * <li>jump sequences must be complete - piece continues as long as it can jump, any sequence may be chosen,</li>
+ * <li>man reaching kings row is crowned and its move ends there,</li>
+ * <li>captured pieces stay on the board until the move is finished and can't be jumped twice.</li>
+ * </ul>
+ * Doesn't allocate, moves are written into given {@link MoveList}.
+ */
+public final class MoveGenerator {
+
+    private MoveGenerator() {
+    }
+
+    /**
+     * @return number of legal moves, same as {@code moves.size()}
+     */
+    public static int generate(BitBoard board, Color movingPlayer, MoveList moves) {
+        moves.clear();
+        int own = board.pieces(movingPlayer);
+        int enemy = board.pieces(movingPlayer == Color.WHITE ? Color.BLACK : Color.WHITE);
+        int empty = board.empty();
+        int kings = board.getKings();
+
+        for (int pieces = own; pieces != 0; pieces &= pieces - 1) {
+            int from = Integer.numberOfTrailingZeros(pieces);
+            moves.scratch[0] = from;
+            // moving piece leaves its square, king may come back to it during the sequence
+            addJumps(from, (kings & (1 << from)) != 0, movingPlayer, enemy, empty | (1 << from), 0, 1, moves);
+        }
+        if (moves.size() > 0) {
+            return moves.size();
+        }
+
+        for (int pieces = own; pieces != 0; pieces &= pieces - 1) {
+            int from = Integer.numberOfTrailingZeros(pieces);
+            boolean isKing = (kings & (1 << from)) != 0;
+            for (int direction = firstDirection(movingPlayer, isKing);
+                 direction <= lastDirection(movingPlayer, isKing); direction++) {
+                int to = NEIGHBOURS[from * DIRECTIONS + direction];
+                if (to != EMPTY_SQUARE && (empty & (1 << to)) != 0) {
+                    moves.addSimple(from, to);
+                }
+            }
+        }
+        return moves.size();
+    }
+
+    private static void addJumps(int square, boolean isKing, Color movingPlayer, int enemy, int empty,
+                                 int captured, int pathLength, MoveList moves) {
+        boolean jumped = false;
+        int kingsRow = movingPlayer == Color.WHITE ? WHITE_KINGS_ROW : BLACK_KINGS_ROW;
+        for (int direction = firstDirection(movingPlayer, isKing);
+             direction <= lastDirection(movingPlayer, isKing); direction++) {
+            int to = JUMPS[square * DIRECTIONS + direction];
+            if (to == EMPTY_SQUARE) {
+                continue;
+            }
+            int capturedBit = 1 << NEIGHBOURS[square * DIRECTIONS + direction];
+            int toBit = 1 << to;
+            if ((enemy & capturedBit) == 0 || (captured & capturedBit) != 0 || (empty & toBit) == 0) {
+                continue;
+            }
+            jumped = true;
+            moves.scratch[pathLength] = to;
+            if (!isKing && (toBit & kingsRow) != 0) {
+                moves.add(moves.scratch, pathLength + 1, captured | capturedBit); // crowning ends the move
+            } else {
+                addJumps(to, isKing, movingPlayer, enemy, empty, captured | capturedBit, pathLength + 1, moves);
+            }
+        }
+        if (!jumped && pathLength > 1) {
+            moves.add(moves.scratch, pathLength, captured);
+        }
+    }
+
+    static int firstDirection(Color movingPlayer, boolean isKing) {
+        return movingPlayer == Color.WHITE || isKing ? UP_LEFT : DOWN_LEFT;
+    }
+
+    static int lastDirection(Color movingPlayer, boolean isKing) {
+        return movingPlayer == Color.BLACK || isKing ? DOWN_RIGHT : UP_RIGHT;
+    }
+}
@@ -0,0 +1,96 @@
+package wnukowski.damian.game;
+
+import java.util.Arrays;
+
+/**
+ * Preallocated list of moves filled by {@link MoveGenerator}. Each move is stored as path of squares (first square
+ * is moved piece, next are landing squares) and mask of captured pieces. Reused between generations, so
+ * generating moves doesn't allocate once the list has grown to the size needed by the position.
+ */
+public final class MoveList {
+    // 12 captures at most, plus starting square
+    public static final int MAX_PATH_LENGTH = 13;
+
+    private int[] paths;
+    private int[] lengths;
+    private int[] captured;
+    private int size = 0;
+    // path of jump sequence being generated
+    final int[] scratch = new int[MAX_PATH_LENGTH];
+
+    public MoveList() {
+        this(64);
+    }
+
+    public MoveList(int initialCapacity) {
+        paths = new int[initialCapacity * MAX_PATH_LENGTH];
+        lengths = new int[initialCapacity];
+        captured = new int[initialCapacity];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public int from(int index) {
+        return paths[index * MAX_PATH_LENGTH];
+    }
+
+    public int to(int index) {
+        return paths[index * MAX_PATH_LENGTH + lengths[index] - 1];
+    }
+
+    public int square(int index, int pathIndex) {
+        return paths[index * MAX_PATH_LENGTH + pathIndex];
+    }
+
+    public int pathLength(int index) {
+        return lengths[index];
+    }
+
+    public int captured(int index) {
+        return captured[index];
+    }
+
+    /**
+     * @return index of move with exactly the same path or -1 if there is no such move
+     */
+    public int indexOf(int[] squares, int length) {
+        for (int i = 0; i < size; i++) {
+            if (lengths[i] != length) {
+                continue;
+            }
+            int offset = i * MAX_PATH_LENGTH;
+            int j = 0;
+            while (j < length && paths[offset + j] == squares[j]) {
+                j++;
+            }
+            if (j == length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    void add(int[] path, int length, int capturedMask) {
+        if (size == lengths.length) {
+            paths = Arrays.copyOf(paths, paths.length * 2);
+            lengths = Arrays.copyOf(lengths, lengths.length * 2);
+            captured = Arrays.copyOf(captured, captured.length * 2);
+        }
+        System.arraycopy(path, 0, paths, size * MAX_PATH_LENGTH, length);
+        lengths[size] = length;
+        captured[size] = capturedMask;
+        size++;
+    }
+
+    void addSimple(int from, int to) {
+        scratch[0] = from;
+        scratch[1] = to;
+        add(scratch, 2, 0);
+    }
+}
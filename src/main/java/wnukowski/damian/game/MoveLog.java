@@ -0,0 +1,140 @@
+package wnukowski.damian.game;
+
+import wnukowski.damian.game.GameRoom.Color;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Moves of one game packed as bits for {@link GameArchive}: 4 bits of path length minus 2, then 5 bit index of every
+ * square of the path, most significant bit first. Simple move takes 14 bits, every further landing square of
+ * a multi-jump 5 more. Log is appended under the room lock, its array is allocated with the first move and grows
+ * twice when full. Moves beyond {@link #MAX_BYTES} aren't logged, so archived game always fits one binary frame.
+ * <p>
+ * Games restored from a journal snapshot don't know earlier moves, their log starts at the restored position.
+ */
+final class MoveLog {
+    static final int MAX_BYTES = 60_000;
+    private static final int LENGTH_BITS = 4;
+    private static final int SQUARE_BITS = 5;
+
+    private final int startWhite;
+    private final int startBlack;
+    private final int startKings;
+    private final Color startTurn;
+    private byte[] bits;
+    private int bitLength;
+    private int moveCount;
+
+    MoveLog() {
+        this(BitBoard.INITIAL_WHITE, BitBoard.INITIAL_BLACK, 0, Color.WHITE);
+    }
+
+    MoveLog(int startWhite, int startBlack, int startKings, Color startTurn) {
+        this.startWhite = startWhite;
+        this.startBlack = startBlack;
+        this.startKings = startKings;
+        this.startTurn = startTurn;
+    }
+
+    /**
+     * @param squares path of legal move
+     */
+    void append(int[] squares, int length) {
+        int needed = (bitLength + LENGTH_BITS + length * SQUARE_BITS + 7) >> 3;
+        if (needed > MAX_BYTES) {
+            return;
+        }
+        if (bits == null) {
+            bits = new byte[Math.max(16, needed)];
+        } else if (needed > bits.length) {
+            bits = Arrays.copyOf(bits, Math.max(needed, bits.length * 2));
+        }
+        put(length - 2, LENGTH_BITS);
+        for (int i = 0; i < length; i++) {
+            put(squares[i], SQUARE_BITS);
+        }
+        moveCount++;
+    }
+
+    private void put(int value, int count) {
+        for (int i = count - 1; i >= 0; i--) {
+            if (((value >> i) & 1) != 0) {
+                bits[bitLength >> 3] |= (byte) (0x80 >>> (bitLength & 7));
+            }
+            bitLength++;
+        }
+    }
+
+    boolean startsFromInitialPosition() {
+        return startWhite == BitBoard.INITIAL_WHITE && startBlack == BitBoard.INITIAL_BLACK && startKings == 0
+                && startTurn == Color.WHITE;
+    }
+
+    int getStartWhite() {
+        return startWhite;
+    }
+
+    int getStartBlack() {
+        return startBlack;
+    }
+
+    int getStartKings() {
+        return startKings;
+    }
+
+    Color getStartTurn() {
+        return startTurn;
+    }
+
+    int getMoveCount() {
+        return moveCount;
+    }
+
+    int getByteLength() {
+        return (bitLength + 7) >> 3;
+    }
+
+    void writeTo(ByteBuffer buffer) {
+        if (bits != null) {
+            buffer.put(bits, 0, getByteLength());
+        }
+    }
+
+    /**
+     * Appends moves packed by {@link #writeTo(ByteBuffer)} separated by commas, squares of simple move are
+     * separated by {@code -} and of jumps by {@code x}, e.g. {@code c3-d4,f6-e5,d4xf6}.
+     *
+     * @param packed buffer positioned at the first move
+     */
+    static void appendMoves(StringBuilder sb, ByteBuffer packed, int moveCount) {
+        int start = packed.position();
+        int bitPosition = 0;
+        for (int move = 0; move < moveCount; move++) {
+            if (move > 0) {
+                sb.append(',');
+            }
+            int length = get(packed, start, bitPosition, LENGTH_BITS) + 2;
+            bitPosition += LENGTH_BITS;
+            int previous = -1;
+            for (int i = 0; i < length; i++) {
+                int square = get(packed, start, bitPosition, SQUARE_BITS);
+                bitPosition += SQUARE_BITS;
+                if (previous >= 0) {
+                    sb.append(Math.abs(BitBoard.row(square) - BitBoard.row(previous)) == 2 ? 'x' : '-');
+                }
+                BitBoard.appendSquareName(sb, square);
+                previous = square;
+            }
+        }
+    }
+
+    private static int get(ByteBuffer packed, int start, int bitPosition, int count) {
+        int value = 0;
+        for (int i = 0; i < count; i++, bitPosition++) {
+            int bit = (packed.get(start + (bitPosition >> 3)) >> (7 - (bitPosition & 7))) & 1;
+            value = (value << 1) | bit;
+        }
+        return value;
+    }
+}
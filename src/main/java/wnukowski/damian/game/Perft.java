@@ -0,0 +1,74 @@
+package wnukowski.damian.game;
+
+import wnukowski.damian.game.GameRoom.Color;
+
+/**
+ * Counts leaf nodes of the move tree to given depth, used to check {@link MoveGenerator} against known numbers
+ * for English draughts starting position and to measure its speed.
+ * <p>
+ * Run with {@code java -cp [jar] wnukowski.damian.game.Perft [max-depth]}.
+ */
+public final class Perft {
+    // index is depth, numbers for starting position of English draughts
+    static final long[] STARTING_POSITION_NODES = {
+            1L, 7L, 49L, 302L, 1469L, 7361L, 36768L, 179740L, 845931L, 3963680L, 18391564L, 85242128L, 388623673L
+    };
+
+    private final BitBoard board;
+    private final MoveList[] movesPerPly;
+
+    public Perft(BitBoard board, int maxDepth) {
+        this.board = board;
+        this.movesPerPly = new MoveList[maxDepth + 1];
+        for (int i = 0; i < movesPerPly.length; i++) {
+            movesPerPly[i] = new MoveList();
+        }
+    }
+
+    /**
+     * @return number of positions reachable in exactly depth moves, position is left unchanged
+     */
+    public long perft(Color movingPlayer, int depth) {
+        if (depth == 0) {
+            return 1;
+        }
+        MoveList moves = movesPerPly[depth];
+        int count = MoveGenerator.generate(board, movingPlayer, moves);
+        if (depth == 1) {
+            return count;
+        }
+        Color enemy = movingPlayer == Color.WHITE ? Color.BLACK : Color.WHITE;
+        int white = board.getWhite();
+        int black = board.getBlack();
+        int kings = board.getKings();
+        long nodes = 0;
+        for (int i = 0; i < count; i++) {
+            board.makeMove(moves, i, movingPlayer);
+            nodes += perft(enemy, depth - 1);
+            board.set(white, black, kings);
+        }
+        return nodes;
+    }
+
+    public static void main(String[] args) {
+        int maxDepth = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        if (maxDepth >= STARTING_POSITION_NODES.length) {
+            throw new IllegalArgumentException("Reference numbers are known up to depth " +
+                    (STARTING_POSITION_NODES.length - 1));
+        }
+        Perft perft = new Perft(new BitBoard(), maxDepth);
+        boolean allMatch = true;
+        for (int depth = 1; depth <= maxDepth; depth++) {
+            long start = System.nanoTime();
+            long nodes = perft.perft(Color.WHITE, depth);
+            long nanos = Math.max(1, System.nanoTime() - start);
+            boolean matches = nodes == STARTING_POSITION_NODES[depth];
+            allMatch &= matches;
+            System.out.printf("depth %2d: %,14d nodes %s %,10d ms %,14d nodes/s%n", depth, nodes,
+                    matches ? "OK  " : "FAIL", nanos / 1_000_000, nodes * 1_000_000_000L / nanos);
+        }
+        if (!allMatch) {
+            System.exit(1);
+        }
+    }
+}
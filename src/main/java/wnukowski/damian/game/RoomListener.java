@@ -0,0 +1,14 @@
+package wnukowski.damian.game;
+
+/**
+ * Listener of {@link GameRoom} state changes, registered with {@link GameRoom#addListener(RoomListener)}.
+ */
+public interface RoomListener {
+    /**
+     * Called after move, join, leave, draw request or its cancellation and when player's time runs out.
+     * Called without room lock held, from the thread which changed the room - except the flag timer, which hands
+     * time running out over to another thread. Pushing to clients should only enqueue, the calling thread may serve
+     * other rooms too.
+     */
+    void roomChanged(GameRoom room);
+}
@@ -0,0 +1,78 @@
+package wnukowski.damian.game;
+
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+/**
+ * Optional single writer execution of room changes. With {@code -DroomShards=N} every room is assigned by its UUID
+ * to one of N single thread executors and all its changes - player commands and flag checks - run on that thread,
+ * callers wait for the result. Room lock is still taken, but it's always free, so threads of both players and the
+ * flag timer never wait for each other - they wait in the shard queue instead.
+ * <p>
+ * Listeners are notified on the shard thread, a listener blocking on I/O delays all rooms of the shard.
+ */
+final class RoomShards {
+    private static final Shard[] shards = createShards(Integer.getInteger("roomShards", 0));
+
+    private RoomShards() {
+    }
+
+    /**
+     * @return shard of the room or null if sharding is disabled
+     */
+    static Shard shardOf(UUID roomUUID) {
+        if (shards.length == 0) {
+            return null;
+        }
+        return shards[(roomUUID.hashCode() & Integer.MAX_VALUE) % shards.length];
+    }
+
+    private static Shard[] createShards(int count) {
+        Shard[] created = new Shard[Math.max(count, 0)];
+        for (int i = 0; i < created.length; i++) {
+            created[i] = new Shard("room-shard-" + i);
+        }
+        return created;
+    }
+
+    static final class Shard {
+        private final ExecutorService executor;
+        // replaced by the executor if a task kills the thread
+        private volatile Thread thread;
+
+        private Shard(String threadName) {
+            this.executor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread created = new Thread(runnable, threadName);
+                created.setDaemon(true);
+                thread = created;
+                return created;
+            });
+        }
+
+        boolean isCurrentThread() {
+            return Thread.currentThread() == thread;
+        }
+
+        /**
+         * Runs task on the shard thread and waits for its result, exceptions are rethrown in the caller.
+         */
+        <T> T call(Supplier<T> task) {
+            try {
+                return CompletableFuture.supplyAsync(task, executor).join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+        }
+
+        void execute(Runnable task) {
+            executor.execute(task);
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package wnukowski.damian.game;
+
+import wnukowski.damian.game.GameRoom.Color;
+import wnukowski.damian.game.GameRoom.State;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Immutable state of {@link GameRoom} after a change, rebuilt by the room on every change and read without
+ * taking the room lock. Parts of the state response which can't change until next version are encoded once.
+ * <p>
+ * Clocks are stored as values at {@code clockBaseNanos} ({@link System#nanoTime()}), remaining time of the player
+ * on move is computed at read time.
+ */
+public final class RoomSnapshot {
+    public static final int BINARY_LENGTH = 3 + 3 * 8 + 3 * 4;
+
+    private final long version;
+    private final State state;
+    private final Color turn;
+    private final boolean whiteWantsDraw;
+    private final boolean blackWantsDraw;
+    private final boolean whiteOnline;
+    private final boolean blackOnline;
+    private final int white;
+    private final int black;
+    private final int kings;
+    private final long whiteMillisAtBase;
+    private final long blackMillisAtBase;
+    private final long clockBaseNanos;
+    private final boolean clockRunning;
+    // System.nanoTime() when snapshot was built, i.e. time of last change of the room
+    private final long createdNanos = System.nanoTime();
+
+    // " PLAYER_TURN=... BLACK_WANTS_DRAW=..."
+    private final String turnAndDraws;
+    // " WHITE_ONLINE=... BOARD=... VERSION=..."
+    private final String onlineBoardAndVersion;
+
+    RoomSnapshot(long version, State state, Color turn, boolean whiteWantsDraw, boolean blackWantsDraw,
+                 boolean whiteOnline, boolean blackOnline, BitBoard board,
+                 long whiteMillisAtBase, long blackMillisAtBase, long clockBaseNanos) {
+        this.version = version;
+        this.state = state;
+        this.turn = turn;
+        this.whiteWantsDraw = whiteWantsDraw;
+        this.blackWantsDraw = blackWantsDraw;
+        this.whiteOnline = whiteOnline;
+        this.blackOnline = blackOnline;
+        this.white = board.getWhite();
+        this.black = board.getBlack();
+        this.kings = board.getKings();
+        this.whiteMillisAtBase = whiteMillisAtBase;
+        this.blackMillisAtBase = blackMillisAtBase;
+        this.clockBaseNanos = clockBaseNanos;
+        this.clockRunning = state == State.PLAYING;
+
+        this.turnAndDraws = " PLAYER_TURN=" + turn +
+                " WHITE_WANTS_DRAW=" + (whiteWantsDraw ? "TRUE" : "FALSE") +
+                " BLACK_WANTS_DRAW=" + (blackWantsDraw ? "TRUE" : "FALSE");
+        StringBuilder sb = new StringBuilder(100)
+                .append(" WHITE_ONLINE=").append(whiteOnline ? "TRUE" : "FALSE")
+                .append(" BLACK_ONLINE=").append(blackOnline ? "TRUE" : "FALSE")
+                .append(" BOARD=");
+        board.appendTo(sb);
+        this.onlineBoardAndVersion = sb.append(" VERSION=").append(version).toString();
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public long getCreatedNanos() {
+        return createdNanos;
+    }
+
+    public boolean isWhiteOnline() {
+        return whiteOnline;
+    }
+
+    public boolean isBlackOnline() {
+        return blackOnline;
+    }
+
+    public Color getTurn() {
+        return turn;
+    }
+
+    /**
+     * @return masks of the board as in {@link BitBoard}
+     */
+    public int getWhite() {
+        return white;
+    }
+
+    public int getBlack() {
+        return black;
+    }
+
+    public int getKings() {
+        return kings;
+    }
+
+    /**
+     * @return state at given time - game is lost by player whose time ran out even before room notices it
+     */
+    public State getState(long nowNanos) {
+        if (state == State.PLAYING && getMillis(turn, nowNanos) <= 0) {
+            return turn == Color.WHITE ? State.BLACK_WON : State.WHITE_WON;
+        }
+        return state;
+    }
+
+    public long getMillis(Color color, long nowNanos) {
+        long millisAtBase = color == Color.WHITE ? whiteMillisAtBase : blackMillisAtBase;
+        if (!clockRunning || color != turn) {
+            return millisAtBase;
+        }
+        return Math.max(0, millisAtBase - (nowNanos - clockBaseNanos) / 1_000_000);
+    }
+
+    /**
+     * Appends fields in format of GET_STATE response, without status code.
+     */
+    public void appendTo(StringBuilder sb, long nowNanos) {
+        sb.append("STATE=").append(getState(nowNanos))
+                .append(turnAndDraws)
+                .append(" BLACK_TIME=").append(getMillis(Color.BLACK, nowNanos))
+                .append(" WHITE_TIME=").append(getMillis(Color.WHITE, nowNanos))
+                .append(onlineBoardAndVersion);
+    }
+
+    /**
+     * Writes {@link #BINARY_LENGTH} bytes of state used by binary protocol: state, turn (ordinals of enums in
+     * {@link GameRoom}), flags (1 - white wants draw, 2 - black wants draw, 4 - white online, 8 - black online),
+     * white time, black time, version and white, black and kings masks of {@link BitBoard}.
+     */
+    public void writeTo(ByteBuffer buffer, long nowNanos) {
+        buffer.put((byte) getState(nowNanos).ordinal())
+                .put((byte) turn.ordinal())
+                .put((byte) ((whiteWantsDraw ? 1 : 0) | (blackWantsDraw ? 2 : 0)
+                        | (whiteOnline ? 4 : 0) | (blackOnline ? 8 : 0)))
+                .putLong(getMillis(Color.WHITE, nowNanos))
+                .putLong(getMillis(Color.BLACK, nowNanos))
+                .putLong(version)
+                .putInt(white).putInt(black).putInt(kings);
+    }
+
+    /**
+     * Appends version, fields which differ from given earlier snapshot, clocks and changed squares.
+     */
+    public void appendDeltaTo(StringBuilder sb, RoomSnapshot before, long nowNanos) {
+        sb.append(" VERSION=").append(version);
+        State currentState = getState(nowNanos);
+        if (before.state != currentState) {
+            sb.append(" STATE=").append(currentState);
+        }
+        if (before.turn != turn) {
+            sb.append(" PLAYER_TURN=").append(turn);
+        }
+        if (before.whiteWantsDraw != whiteWantsDraw) {
+            sb.append(" WHITE_WANTS_DRAW=").append(whiteWantsDraw ? "TRUE" : "FALSE");
+        }
+        if (before.blackWantsDraw != blackWantsDraw) {
+            sb.append(" BLACK_WANTS_DRAW=").append(blackWantsDraw ? "TRUE" : "FALSE");
+        }
+        sb.append(" BLACK_TIME=").append(getMillis(Color.BLACK, nowNanos))
+                .append(" WHITE_TIME=").append(getMillis(Color.WHITE, nowNanos));
+        if (before.whiteOnline != whiteOnline) {
+            sb.append(" WHITE_ONLINE=").append(whiteOnline ? "TRUE" : "FALSE");
+        }
+        if (before.blackOnline != blackOnline) {
+            sb.append(" BLACK_ONLINE=").append(blackOnline ? "TRUE" : "FALSE");
+        }
+        int changedSquares = (before.white ^ white) | (before.black ^ black) | (before.kings ^ kings);
+        if (changedSquares != 0) {
+            sb.append(" SQUARES=");
+            for (int squares = changedSquares; squares != 0; squares &= squares - 1) {
+                int square = Integer.numberOfTrailingZeros(squares);
+                BitBoard.appendSquareName(sb, square);
+                sb.append(BitBoard.pieceAt(white, black, kings, square));
+                if ((squares & (squares - 1)) != 0) {
+                    sb.append(',');
+                }
+            }
+        }
+    }
+}
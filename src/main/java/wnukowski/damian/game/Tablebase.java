@@ -0,0 +1,358 @@
+package wnukowski.damian.game;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import wnukowski.damian.game.GameRoom.Color;
+import wnukowski.damian.game.GameRoom.State;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static wnukowski.damian.game.BitBoard.SQUARES;
+
+/**
+ * Endgame tablebase - win, loss or draw of every position with up to {@code maxPieces} pieces, generated offline by
+ * {@link TablebaseGenerator}. Server maps the file to memory and probes it in constant time, for {@code PROBE} and,
+ * with {@code tablebaseAdjudication}, to end games whose result is already known.
+ * <p>
+ * Only positions with white to move are stored, position with black to move is probed as the board rotated by
+ * 180 degrees with colors swapped - square {@code s} becomes {@code 31 - s}. Positions are grouped into slices by
+ * numbers of white men, white kings, black men and black kings. Index in a slice is made of ranks of piece
+ * placements: white men among squares 4 - 31 and black men among squares 0 - 27 (man on its kings row is crowned),
+ * white kings among squares left by men and black kings among squares left by all other pieces. Indices where men
+ * of both colors share a square aren't positions, they are stored as draws and never probed.
+ * <p>
+ * File is {@link #MAGIC}, number of pieces and 2 bit results of slices in order of {@link #slices(int)}, four
+ * results per byte starting from the lowest bits.
+ */
+public final class Tablebase {
+    private static final Logger log = LoggerFactory.getLogger(Tablebase.class);
+
+    static final int MAGIC = 0x43484b54;
+    static final int HEADER_SIZE = 8;
+    // larger tablebase doesn't fit single mapped buffer
+    static final int MAX_PIECES = 6;
+    static final int WHITE_MEN_SQUARES = 0xFFFFFFF0;
+    static final int BLACK_MEN_SQUARES = 0x0FFFFFFF;
+    private static final int MEN_SQUARES = 28;
+    // [n * (MAX_PIECES + 1) + k] -> n choose k
+    private static final long[] BINOMIAL = new long[(SQUARES + 1) * (MAX_PIECES + 1)];
+    private static final Result[] RESULTS = Result.values();
+
+    static {
+        for (int n = 0; n <= SQUARES; n++) {
+            for (int k = 0; k <= MAX_PIECES; k++) {
+                BINOMIAL[n * (MAX_PIECES + 1) + k] = k == 0 ? 1 : n == 0 ? 0
+                        : binomial(n - 1, k - 1) + binomial(n - 1, k);
+            }
+        }
+    }
+
+    // tablebase probed by rooms and PROBE, null when it isn't loaded
+    private static volatile Tablebase current;
+    private static volatile boolean adjudicating;
+
+    private final int maxPieces;
+    // results from file offset 0, read with absolute gets only, so it is shared by all threads
+    private final ByteBuffer results;
+    // [key(...)] -> slice, null for combinations of pieces not in the tablebase
+    private final Slice[] slices = new Slice[(MAX_PIECES + 1) * (MAX_PIECES + 1) * (MAX_PIECES + 1) * (MAX_PIECES + 1)];
+
+    Tablebase(ByteBuffer results, int maxPieces) {
+        this.results = results;
+        this.maxPieces = maxPieces;
+        for (Slice slice : slices(maxPieces)) {
+            slices[slice.key] = slice;
+        }
+    }
+
+    /**
+     * Loads tablebase from {@code tablebaseFile}, rooms use it to end games when {@code tablebaseAdjudication} is
+     * true.
+     *
+     * @return null if tablebase is disabled
+     */
+    public static Tablebase openFromProperties() throws IOException {
+        String file = System.getProperty("tablebaseFile");
+        if (file == null) {
+            return null;
+        }
+        Tablebase tablebase = open(Paths.get(file));
+        adjudicating = Boolean.parseBoolean(System.getProperty("tablebaseAdjudication", "false"));
+        current = tablebase;
+        log.info("Loaded tablebase of positions with up to [{}] pieces from [{}], adjudication [{}]",
+                tablebase.maxPieces, file, adjudicating);
+        return tablebase;
+    }
+
+    public static Tablebase open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+                throw new IOException("File [" + file + "] isn't a tablebase");
+            }
+            // mapping stays valid after the channel is closed
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            int maxPieces = buffer.getInt(4);
+            if (buffer.getInt(0) != MAGIC || maxPieces < 2 || maxPieces > MAX_PIECES
+                    || size != fileSize(maxPieces)) {
+                throw new IOException("File [" + file + "] isn't a tablebase");
+            }
+            return new Tablebase(buffer, maxPieces);
+        }
+    }
+
+    /**
+     * @return loaded tablebase or null
+     */
+    public static Tablebase getCurrent() {
+        return current;
+    }
+
+    /**
+     * @return result of the game decided by the loaded tablebase or null if adjudication is off or position isn't
+     * in the tablebase
+     */
+    static State adjudicate(BitBoard board, Color turn) {
+        Tablebase tablebase = current;
+        if (!adjudicating || tablebase == null) {
+            return null;
+        }
+        Result result = tablebase.probe(board.getWhite(), board.getBlack(), board.getKings(), turn);
+        if (result == null) {
+            return null;
+        }
+        switch (result) {
+            case WIN:
+                return turn == Color.WHITE ? State.WHITE_WON : State.BLACK_WON;
+            case LOSS:
+                return turn == Color.WHITE ? State.BLACK_WON : State.WHITE_WON;
+            default:
+                return State.DRAW;
+        }
+    }
+
+    public int getMaxPieces() {
+        return maxPieces;
+    }
+
+    /**
+     * @param turn player on move
+     * @return result for the player on move with perfect play or null if position isn't in the tablebase - it has
+     * more pieces, one side has no piece or masks overlap
+     */
+    public Result probe(int white, int black, int kings, Color turn) {
+        if ((white & black) != 0) {
+            return null;
+        }
+        if (turn == Color.BLACK) {
+            int rotatedWhite = Integer.reverse(black);
+            black = Integer.reverse(white);
+            white = rotatedWhite;
+            kings = Integer.reverse(kings);
+        }
+        int whiteMen = white & ~kings;
+        int blackMen = black & ~kings;
+        if (Integer.bitCount(white) + Integer.bitCount(black) > maxPieces || white == 0 || black == 0
+                || (whiteMen & ~WHITE_MEN_SQUARES) != 0 || (blackMen & ~BLACK_MEN_SQUARES) != 0) {
+            return null;
+        }
+        Slice slice = slice(white, black, kings);
+        return RESULTS[value(slice, index(slice, white, black, kings))];
+    }
+
+    /**
+     * @return slice of white to move position which has at most {@link #getMaxPieces()} pieces
+     */
+    Slice slice(int white, int black, int kings) {
+        return slices[key(Integer.bitCount(white & ~kings), Integer.bitCount(white & kings),
+                Integer.bitCount(black & ~kings), Integer.bitCount(black & kings))];
+    }
+
+    Slice mirror(Slice slice) {
+        return slices[slice.mirrorKey()];
+    }
+
+    /**
+     * @return result stored at index of the slice, as {@link Result#ordinal()}
+     */
+    int value(Slice slice, long index) {
+        return results.get((int) (slice.offset + (index >> 2))) >> ((index & 3) << 1) & 3;
+    }
+
+    /**
+     * @return index of white to move position in its slice
+     */
+    static long index(Slice slice, int white, int black, int kings) {
+        int whiteMen = white & ~kings;
+        int blackMen = black & ~kings;
+        int whiteKings = white & kings;
+        int free = ~(whiteMen | blackMen);
+        long index = rank(whiteMen, WHITE_MEN_SQUARES);
+        index = index * slice.blackMenPlacements + rank(blackMen, BLACK_MEN_SQUARES);
+        index = index * slice.whiteKingPlacements + rank(whiteKings, free);
+        return index * slice.blackKingPlacements + rank(black & kings, free & ~whiteKings);
+    }
+
+    /**
+     * Inverse of {@link #index(Slice, int, int, int)}.
+     *
+     * @param position filled with white, black and kings masks
+     * @return false if index isn't a position - men of both colors are on the same square
+     */
+    static boolean position(Slice slice, long index, int[] position) {
+        long blackKingsRank = index % slice.blackKingPlacements;
+        index /= slice.blackKingPlacements;
+        long whiteKingsRank = index % slice.whiteKingPlacements;
+        index /= slice.whiteKingPlacements;
+        int blackMen = unrank(index % slice.blackMenPlacements, slice.blackMen, BLACK_MEN_SQUARES);
+        int whiteMen = unrank(index / slice.blackMenPlacements, slice.whiteMen, WHITE_MEN_SQUARES);
+        if ((whiteMen & blackMen) != 0) {
+            return false;
+        }
+        int free = ~(whiteMen | blackMen);
+        int whiteKings = unrank(whiteKingsRank, slice.whiteKings, free);
+        int blackKings = unrank(blackKingsRank, slice.blackKings, free & ~whiteKings);
+        position[0] = whiteMen | whiteKings;
+        position[1] = blackMen | blackKings;
+        position[2] = whiteKings | blackKings;
+        return true;
+    }
+
+    // colexicographic rank of pieces among squares of the domain, pieces have to be in the domain
+    private static long rank(int pieces, int domain) {
+        long rank = 0;
+        int k = 1;
+        for (; pieces != 0; pieces &= pieces - 1, k++) {
+            int square = Integer.numberOfTrailingZeros(pieces);
+            rank += binomial(Integer.bitCount(domain & ((1 << square) - 1)), k);
+        }
+        return rank;
+    }
+
+    private static int unrank(long rank, int count, int domain) {
+        int pieces = 0;
+        int limit = Integer.bitCount(domain);
+        for (int k = count; k > 0; k--) {
+            // the highest domain index x below the previous one with binomial(x, k) <= rank
+            int x = k - 1;
+            while (x + 1 < limit && binomial(x + 1, k) <= rank) {
+                x++;
+            }
+            rank -= binomial(x, k);
+            pieces |= 1 << nthSquare(domain, x);
+            limit = x;
+        }
+        return pieces;
+    }
+
+    private static int nthSquare(int domain, int n) {
+        for (int i = 0; i < n; i++) {
+            domain &= domain - 1;
+        }
+        return Integer.numberOfTrailingZeros(domain);
+    }
+
+    private static long binomial(int n, int k) {
+        return BINOMIAL[n * (MAX_PIECES + 1) + k];
+    }
+
+    private static int key(int whiteMen, int whiteKings, int blackMen, int blackKings) {
+        return ((whiteMen * (MAX_PIECES + 1) + whiteKings) * (MAX_PIECES + 1) + blackMen) * (MAX_PIECES + 1)
+                + blackKings;
+    }
+
+    /**
+     * Slices in order of the file, which is also order of generation - slices are sorted by number of pieces and
+     * then by number of men, so captures and crowning lead to slices which come earlier. Only a quiet move leads
+     * to the same number of pieces and men - to the mirror slice with colors swapped, next to the slice.
+     */
+    static List<Slice> slices(int maxPieces) {
+        List<Slice> slices = new ArrayList<>();
+        long offset = HEADER_SIZE;
+        for (int pieces = 2; pieces <= maxPieces; pieces++) {
+            for (int men = 0; men <= pieces; men++) {
+                for (int whiteMen = men; whiteMen >= 0; whiteMen--) {
+                    for (int whiteKings = pieces - men; whiteKings >= 0; whiteKings--) {
+                        int blackMen = men - whiteMen;
+                        int blackKings = pieces - men - whiteKings;
+                        if (whiteMen + whiteKings == 0 || blackMen + blackKings == 0) {
+                            continue;
+                        }
+                        Slice slice = new Slice(whiteMen, whiteKings, blackMen, blackKings, offset);
+                        slices.add(slice);
+                        offset += slice.getByteLength();
+                    }
+                }
+            }
+        }
+        return slices;
+    }
+
+    static long fileSize(int maxPieces) {
+        List<Slice> slices = slices(maxPieces);
+        Slice last = slices.get(slices.size() - 1);
+        return last.offset + last.getByteLength();
+    }
+
+    /**
+     * Result for the player on move, ordinal is the value stored in the file.
+     */
+    public enum Result {
+        DRAW, WIN, LOSS
+    }
+
+    /**
+     * Positions with the same numbers of white men, white kings, black men and black kings, white to move.
+     */
+    static final class Slice {
+        final int whiteMen;
+        final int whiteKings;
+        final int blackMen;
+        final int blackKings;
+        final int key;
+        final long blackMenPlacements;
+        final long whiteKingPlacements;
+        final long blackKingPlacements;
+        // number of indices
+        final long size;
+        // of the first byte in the file
+        final long offset;
+
+        private Slice(int whiteMen, int whiteKings, int blackMen, int blackKings, long offset) {
+            this.whiteMen = whiteMen;
+            this.whiteKings = whiteKings;
+            this.blackMen = blackMen;
+            this.blackKings = blackKings;
+            this.key = key(whiteMen, whiteKings, blackMen, blackKings);
+            this.offset = offset;
+            int freeSquares = SQUARES - whiteMen - blackMen;
+            blackMenPlacements = binomial(MEN_SQUARES, blackMen);
+            whiteKingPlacements = binomial(freeSquares, whiteKings);
+            blackKingPlacements = binomial(freeSquares - whiteKings, blackKings);
+            size = binomial(MEN_SQUARES, whiteMen) * blackMenPlacements * whiteKingPlacements * blackKingPlacements;
+        }
+
+        long getByteLength() {
+            return (size + 3) >> 2;
+        }
+
+        /**
+         * @return key of the slice with colors swapped
+         */
+        int mirrorKey() {
+            return key(blackMen, blackKings, whiteMen, whiteKings);
+        }
+
+        @Override
+        public String toString() {
+            return whiteMen + "m" + whiteKings + "k v " + blackMen + "m" + blackKings + "k";
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package wnukowski.damian.game;
+
+import wnukowski.damian.game.GameRoom.Color;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Generates {@link Tablebase} file by retrograde analysis from the smallest slices up. A slice is solved together
+ * with its mirror, because quiet moves lead from one to the other, while captures and crowning lead to slices
+ * solved before. Every pass checks each unsolved position: player whose move takes the last enemy piece or leads
+ * to enemy's loss wins, player without a move or whose every move leads to enemy's win loses. Passes repeat
+ * until one changes nothing, remaining positions are draws - pass {@code n} finds wins and losses in {@code n}
+ * moves, so no moves back have to be generated, which is error prone with mandatory captures.
+ * <p>
+ * Positions are split between threads in chunks. Results are bytes written by one thread and read by all - a stale
+ * read only delays a result to the next pass, and the last pass, which writes nothing, reads final values.
+ * <p>
+ * Run with {@code java -cp [jar] wnukowski.damian.game.TablebaseGenerator [pieces] [file] [threads]}.
+ */
+public final class TablebaseGenerator {
+    // results of slices being solved
+    private static final byte UNKNOWN = 0;
+    private static final byte WIN = 1;
+    private static final byte LOSS = 2;
+    private static final byte NOT_POSITION = 3;
+    private static final int CHUNK_SIZE = 1 << 15;
+
+    private final int maxPieces;
+    private final byte[] file;
+    // probes slices solved so far
+    private final Tablebase solved;
+    private final ExecutorService executor;
+
+    // slices being solved and their results
+    private Tablebase.Slice[] group;
+    private byte[][] groupResults;
+
+    private TablebaseGenerator(int maxPieces, ExecutorService executor) {
+        this.maxPieces = maxPieces;
+        this.executor = executor;
+        file = new byte[(int) Tablebase.fileSize(maxPieces)];
+        ByteBuffer buffer = ByteBuffer.wrap(file);
+        buffer.putInt(Tablebase.MAGIC).putInt(maxPieces);
+        solved = new Tablebase(buffer, maxPieces);
+    }
+
+    /**
+     * @return content of tablebase file
+     */
+    public static byte[] generate(int maxPieces, int threads) throws InterruptedException {
+        if (maxPieces < 2 || maxPieces > Tablebase.MAX_PIECES) {
+            throw new IllegalArgumentException("Pieces should be between 2 and " + Tablebase.MAX_PIECES);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "tablebase-generator");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            TablebaseGenerator generator = new TablebaseGenerator(maxPieces, executor);
+            generator.solveAll();
+            return generator.file;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void solveAll() throws InterruptedException {
+        List<Tablebase.Slice> slices = Tablebase.slices(maxPieces);
+        Set<Integer> done = new HashSet<>();
+        for (Tablebase.Slice slice : slices) {
+            if (done.contains(slice.key)) {
+                continue;
+            }
+            Tablebase.Slice mirror = solved.mirror(slice);
+            group = mirror.key == slice.key ? new Tablebase.Slice[]{slice} : new Tablebase.Slice[]{slice, mirror};
+            long start = System.nanoTime();
+            int passes = solveGroup();
+            for (int i = 0; i < group.length; i++) {
+                done.add(group[i].key);
+                long[] counts = pack(group[i], groupResults[i]);
+                System.out.printf("%-12s %,14d positions %,14d wins %,14d losses %,14d draws %3d passes %,8d ms%n",
+                        group[i], counts[0] + counts[1] + counts[2], counts[1], counts[2], counts[0], passes,
+                        (System.nanoTime() - start) / 1_000_000);
+            }
+            groupResults = null;
+        }
+    }
+
+    // solves group, returns number of passes
+    private int solveGroup() throws InterruptedException {
+        groupResults = new byte[group.length][];
+        for (int i = 0; i < group.length; i++) {
+            groupResults[i] = new byte[(int) group[i].size];
+        }
+        int passes = 0;
+        int changes;
+        do {
+            List<Future<Integer>> chunks = new ArrayList<>();
+            for (int i = 0; i < group.length; i++) {
+                int slice = i;
+                for (long from = 0; from < group[i].size; from += CHUNK_SIZE) {
+                    long first = from;
+                    long end = Math.min(from + CHUNK_SIZE, group[i].size);
+                    chunks.add(executor.submit(() -> solveChunk(slice, (int) first, (int) end)));
+                }
+            }
+            changes = 0;
+            for (Future<Integer> chunk : chunks) {
+                try {
+                    changes += chunk.get();
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException("Tablebase generation failed", e.getCause());
+                }
+            }
+            passes++;
+        } while (changes > 0);
+        return passes;
+    }
+
+    private int solveChunk(int slice, int from, int end) {
+        BitBoard board = new BitBoard();
+        MoveList moves = new MoveList();
+        int[] position = new int[3];
+        byte[] results = groupResults[slice];
+        int changes = 0;
+        for (int index = from; index < end; index++) {
+            if (results[index] != UNKNOWN) {
+                continue;
+            }
+            byte result = Tablebase.position(group[slice], index, position)
+                    ? solve(position[0], position[1], position[2], board, moves) : NOT_POSITION;
+            if (result != UNKNOWN) {
+                results[index] = result;
+                changes++;
+            }
+        }
+        return changes;
+    }
+
+    // result of white to move position from what is known about positions after its moves
+    private byte solve(int white, int black, int kings, BitBoard board, MoveList moves) {
+        board.set(white, black, kings);
+        int count = MoveGenerator.generate(board, Color.WHITE, moves);
+        boolean allLose = true;
+        for (int i = 0; i < count; i++) {
+            board.makeMove(moves, i, Color.WHITE);
+            int nextWhite = board.getWhite();
+            int nextBlack = board.getBlack();
+            int nextKings = board.getKings();
+            board.set(white, black, kings);
+            if (nextBlack == 0) {
+                return WIN;
+            }
+            // black to move is white to move on rotated board
+            byte next = result(Integer.reverse(nextBlack), Integer.reverse(nextWhite), Integer.reverse(nextKings));
+            if (next == LOSS) {
+                return WIN;
+            }
+            allLose &= next == WIN;
+        }
+        // no move loses too
+        return allLose ? LOSS : UNKNOWN;
+    }
+
+    private byte result(int white, int black, int kings) {
+        Tablebase.Slice slice = solved.slice(white, black, kings);
+        long index = Tablebase.index(slice, white, black, kings);
+        for (int i = 0; i < group.length; i++) {
+            if (group[i].key == slice.key) {
+                return groupResults[i][(int) index];
+            }
+        }
+        return (byte) solved.value(slice, index);
+    }
+
+    // writes results of solved slice to the file, returns numbers of draws, wins and losses
+    private long[] pack(Tablebase.Slice slice, byte[] results) {
+        long[] counts = new long[3];
+        for (int index = 0; index < results.length; index++) {
+            int result = results[index];
+            if (result == NOT_POSITION) {
+                continue;
+            }
+            counts[result]++;
+            file[(int) (slice.offset + (index >> 2))] |= (byte) (result << ((index & 3) << 1));
+        }
+        return counts;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int maxPieces = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        Path path = Paths.get(args.length > 1 ? args[1] : "tablebase.dat");
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        long start = System.nanoTime();
+        byte[] content = generate(maxPieces, threads);
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.write(temporary, content);
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        System.out.printf("Tablebase of positions with up to %d pieces written to %s, %,d bytes in %,d ms%n",
+                maxPieces, path, content.length, (System.nanoTime() - start) / 1_000_000);
+    }
+}
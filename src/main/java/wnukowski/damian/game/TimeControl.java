@@ -0,0 +1,117 @@
+package wnukowski.damian.game;
+
+/**
+ * Time control of a game - base time of each player and increment added after every move (Fischer clock).
+ * Written as {@code minutes+seconds}, e.g. {@code 10+0} or {@code 3+2}.
+ */
+public final class TimeControl {
+    private static final int MAX_BASE_MINUTES = 24 * 60;
+    private static final int MAX_INCREMENT_SECONDS = 60 * 60;
+
+    /**
+     * Used by rooms created without explicit time control, configurable with {@code -DtimeControl=3+2}.
+     */
+    public static final TimeControl DEFAULT = defaultTimeControl();
+
+    private final int baseMinutes;
+    private final int incrementSeconds;
+    private final long baseMillis;
+    private final long incrementMillis;
+    private final String name;
+
+    private TimeControl(int baseMinutes, int incrementSeconds) {
+        this.baseMinutes = baseMinutes;
+        this.incrementSeconds = incrementSeconds;
+        this.baseMillis = baseMinutes * 60 * 1000L;
+        this.incrementMillis = incrementSeconds * 1000L;
+        this.name = baseMinutes + "+" + incrementSeconds;
+    }
+
+    /**
+     * @return time control or null if values are out of range
+     */
+    public static TimeControl of(int baseMinutes, int incrementSeconds) {
+        if (baseMinutes <= 0 || baseMinutes > MAX_BASE_MINUTES
+                || incrementSeconds < 0 || incrementSeconds > MAX_INCREMENT_SECONDS) {
+            return null;
+        }
+        return new TimeControl(baseMinutes, incrementSeconds);
+    }
+
+    /**
+     * @param timeControl like 10+0
+     * @return parsed time control or null if format is invalid or values are out of range
+     */
+    public static TimeControl parse(String timeControl) {
+        int plus = timeControl.indexOf('+');
+        if (plus <= 0 || plus == timeControl.length() - 1) {
+            return null;
+        }
+        int baseMinutes = parseNumber(timeControl, 0, plus);
+        int incrementSeconds = parseNumber(timeControl, plus + 1, timeControl.length());
+        return of(baseMinutes, incrementSeconds);
+    }
+
+    // digits only, -1 if there is anything else or number is too long
+    private static int parseNumber(String text, int from, int to) {
+        if (to - from > 6) {
+            return -1;
+        }
+        int number = 0;
+        for (int i = from; i < to; i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            number = number * 10 + (c - '0');
+        }
+        return number;
+    }
+
+    private static TimeControl defaultTimeControl() {
+        String property = System.getProperty("timeControl", "10+0");
+        TimeControl timeControl = parse(property);
+        if (timeControl == null) {
+            throw new IllegalArgumentException("Invalid timeControl property: " + property);
+        }
+        return timeControl;
+    }
+
+    public int getBaseMinutes() {
+        return baseMinutes;
+    }
+
+    public int getIncrementSeconds() {
+        return incrementSeconds;
+    }
+
+    public long getBaseMillis() {
+        return baseMillis;
+    }
+
+    public long getIncrementMillis() {
+        return incrementMillis;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof TimeControl)) {
+            return false;
+        }
+        TimeControl other = (TimeControl) o;
+        return baseMinutes == other.baseMinutes && incrementSeconds == other.incrementSeconds;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * baseMinutes + incrementSeconds;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
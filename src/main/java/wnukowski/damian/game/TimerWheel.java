@@ -0,0 +1,148 @@
+package wnukowski.damian.game;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hashed timer wheel shared by all rooms. Timeouts are linked into one of {@code slots} buckets by their deadline
+ * tick, single daemon thread walks the buckets every tick and runs expired tasks. Scheduling and cancelling is O(1)
+ * and doesn't allocate - {@link Timeout} objects are owned by callers and reused between schedules.
+ * <p>
+ * Tasks may fire up to one tick late and, when rescheduled concurrently with expiry, once too early - they should
+ * check the condition they wait for. They run on the wheel thread and delay every later timeout, so they shouldn't
+ * block - I/O and other slow work should be handed over to another thread.
+ */
+public final class TimerWheel {
+    private static final Logger log = LoggerFactory.getLogger(TimerWheel.class);
+
+    private final long tickNanos;
+    private final int mask;
+    private final Timeout[] buckets;
+    private final long startNanos = System.nanoTime();
+    private final ReentrantLock lock = new ReentrantLock();
+    // tick being or last processed, written only by the wheel thread, guarded by lock
+    private long currentTick = 0;
+
+    /**
+     * @param slots rounded up to power of two
+     */
+    public TimerWheel(String threadName, long tickMillis, int slots) {
+        this.tickNanos = tickMillis * 1_000_000;
+        int size = Integer.highestOneBit(Math.max(1, slots - 1)) << 1;
+        this.mask = size - 1;
+        this.buckets = new Timeout[size];
+        Thread thread = new Thread(this::run, threadName);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Schedules timeout to fire after given delay, replacing its previous schedule.
+     */
+    public void schedule(Timeout timeout, long delayMillis) {
+        long deadlineNanos = System.nanoTime() + Math.max(0, delayMillis) * 1_000_000;
+        // ceil, timeout never fires before its deadline
+        long deadlineTick = (deadlineNanos - startNanos + tickNanos - 1) / tickNanos;
+        lock.lock();
+        try {
+            unlink(timeout);
+            timeout.deadlineTick = Math.max(deadlineTick, currentTick + 1);
+            int bucket = (int) (timeout.deadlineTick & mask);
+            timeout.bucket = bucket;
+            timeout.next = buckets[bucket];
+            if (timeout.next != null) {
+                timeout.next.previous = timeout;
+            }
+            buckets[bucket] = timeout;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void cancel(Timeout timeout) {
+        lock.lock();
+        try {
+            unlink(timeout);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.bucket == Timeout.NOT_SCHEDULED) {
+            return;
+        }
+        if (timeout.previous != null) {
+            timeout.previous.next = timeout.next;
+        } else {
+            buckets[timeout.bucket] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.previous = timeout.previous;
+        }
+        timeout.previous = null;
+        timeout.next = null;
+        timeout.bucket = Timeout.NOT_SCHEDULED;
+    }
+
+    private void run() {
+        while (true) {
+            long tick = currentTick + 1;
+            long sleepNanos = startNanos + tick * tickNanos - System.nanoTime();
+            if (sleepNanos > 0) {
+                LockSupport.parkNanos(this, sleepNanos);
+                continue;
+            }
+            lock.lock();
+            try {
+                currentTick = tick; // from now on timeouts are scheduled to later ticks
+            } finally {
+                lock.unlock();
+            }
+            Timeout expired;
+            while ((expired = pollExpired(tick)) != null) {
+                try {
+                    expired.task.run();
+                } catch (Throwable e) {
+                    log.error("Timer task failed", e);
+                }
+            }
+        }
+    }
+
+    // removes single timeout with deadline not later than tick from the bucket of the tick
+    private Timeout pollExpired(long tick) {
+        lock.lock();
+        try {
+            for (Timeout timeout = buckets[(int) (tick & mask)]; timeout != null; timeout = timeout.next) {
+                if (timeout.deadlineTick <= tick) {
+                    unlink(timeout);
+                    return timeout;
+                }
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reusable handle of scheduled task, guarded by the wheel lock.
+     */
+    public static final class Timeout {
+        private static final int NOT_SCHEDULED = -1;
+
+        private final Runnable task;
+        private long deadlineTick;
+        private int bucket = NOT_SCHEDULED;
+        private Timeout previous;
+        private Timeout next;
+
+        public Timeout(Runnable task) {
+            this.task = task;
+        }
+    }
+}
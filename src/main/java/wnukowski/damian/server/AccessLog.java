@@ -0,0 +1,37 @@
+package wnukowski.damian.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Sampled access log - protocol, command and processing time of one in {@code -DaccessLogSampling=N} requests on
+ * average. Only the command name is written, not its arguments. Disabled by default.
+ */
+final class AccessLog {
+    private static final Logger log = LoggerFactory.getLogger(AccessLog.class);
+    private static int sampling = Integer.getInteger("accessLogSampling", 0);
+
+    private AccessLog() {
+    }
+
+    /**
+     * @return true if request which is about to be processed should be recorded
+     */
+    static boolean isSampled() {
+        return sampling > 0 && (sampling == 1 || ThreadLocalRandom.current().nextInt(sampling) == 0)
+                && log.isInfoEnabled();
+    }
+
+    static void record(String protocol, Object command, long durationNanos) {
+        log.info("{} {} {} us", protocol, command, durationNanos / 1000);
+    }
+
+    /**
+     * @param sampling 0 disables the log, 1 records every request
+     */
+    static void setSampling(int sampling) {
+        AccessLog.sampling = sampling;
+    }
+}
@@ -0,0 +1,178 @@
+package wnukowski.damian.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import wnukowski.damian.game.BitBoard;
+import wnukowski.damian.game.Engine;
+import wnukowski.damian.game.GameRoom;
+import wnukowski.damian.game.MoveGenerator;
+import wnukowski.damian.game.MoveList;
+import wnukowski.damian.game.RoomListener;
+import wnukowski.damian.game.RoomSnapshot;
+
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Computer opponent of a room created by {@code CREATE_VS_AI}. It is one of the players of the room and listens to
+ * its changes - once it's its turn, search is submitted to the AI worker pool and the chosen move is played as
+ * move of any other player. Searches work on the immutable {@link RoomSnapshot}, so the room lock isn't held while
+ * thinking and threads of clients never run the search.
+ * <p>
+ * Pool has {@code aiThreads} workers (number of processors by default) and queue of {@code aiQueueSize} searches,
+ * each worker owns one {@link Engine} with transposition table of {@code aiTableKilobytes}, so memory used by
+ * searches depends on the number of workers, not games. When the queue is full the first legal move is played
+ * at once. AI doesn't answer draw requests.
+ * <p>
+ * Computer color and search limits are kept by the room, so the AI joins again when the room is recovered from the
+ * journal or taken over from another cluster node.
+ */
+final class AiPlayer implements RoomListener {
+    private static final Logger log = LoggerFactory.getLogger(AiPlayer.class);
+    private static final int defaultDepth = Integer.getInteger("aiDepth", 10);
+    private static final long maxMillis = Long.getLong("aiMaxMillis", 5000);
+    private static final int tableBytes = Integer.getInteger("aiTableKilobytes", 4096) * 1024;
+    // part of remaining clock one move may use, so AI doesn't lose on time
+    private static final int CLOCK_SHARE = 20;
+    private static final ThreadPoolExecutor workers = createWorkers(
+            Integer.getInteger("aiThreads", Runtime.getRuntime().availableProcessors()),
+            Integer.getInteger("aiQueueSize", 1024));
+    private static final ThreadLocal<Engine> engines = ThreadLocal.withInitial(() -> new Engine(tableBytes));
+
+    private final GameRoom room;
+    private final UUID colorUUID;
+    private final GameRoom.Color color;
+    private final int depth;
+    private final long millis;
+    // search is submitted or running, changes of the room meanwhile don't start another one
+    private final AtomicBoolean thinking = new AtomicBoolean();
+
+    private AiPlayer(GameRoom room, UUID colorUUID, int depth, long millis) {
+        this.room = room;
+        this.colorUUID = colorUUID;
+        this.color = colorUUID.equals(room.getWhiteUUID()) ? GameRoom.Color.WHITE : GameRoom.Color.BLACK;
+        this.depth = depth;
+        this.millis = millis;
+    }
+
+    /**
+     * Joins the room as the player of given color, it should be the last free color of the room.
+     *
+     * @param depth  maximal depth of search, 0 for default
+     * @param millis maximal time of search, 0 for default
+     */
+    static void play(GameRoom room, UUID colorUUID, int depth, long millis) {
+        AiPlayer player = new AiPlayer(room, colorUUID,
+                depth > 0 ? depth : millis > 0 ? Engine.MAX_DEPTH : defaultDepth,
+                millis > 0 ? Math.min(millis, maxMillis) : maxMillis);
+        room.setComputerPlayer(player.color, player.depth, player.millis);
+        player.join();
+    }
+
+    /**
+     * Joins recovered or taken over room again if computer played in it and the game isn't finished.
+     */
+    static void rejoin(GameRoom room) {
+        GameRoom.Color color = room.getComputerColor();
+        GameRoom.State state = room.getGameState();
+        if (color == null || (state != GameRoom.State.WAITING && state != GameRoom.State.PLAYING)) {
+            return;
+        }
+        UUID colorUUID = color == GameRoom.Color.WHITE ? room.getWhiteUUID() : room.getBlackUUID();
+        new AiPlayer(room, colorUUID, room.getComputerDepth(), room.getComputerMillis()).join();
+    }
+
+    private void join() {
+        room.addListener(this);
+        room.join(room.getRoomUUID(), colorUUID);
+    }
+
+    @Override
+    public void roomChanged(GameRoom changed) {
+        if (!isOnMove() || !thinking.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            workers.execute(this::think);
+        } catch (RejectedExecutionException e) {
+            log.warn("AI worker queue is full, playing first legal move in room [{}]", room.getRoomUUID());
+            Metrics.recordAiFallback();
+            long version = room.getVersion();
+            try {
+                playFirstMove();
+            } finally {
+                moveFinished(version);
+            }
+        }
+    }
+
+    private boolean isOnMove() {
+        RoomSnapshot snapshot = room.getSnapshot();
+        return snapshot.getState(System.nanoTime()) == GameRoom.State.PLAYING && snapshot.getTurn() == color;
+    }
+
+    private void think() {
+        RoomSnapshot snapshot = room.getSnapshot();
+        try {
+            long now = System.nanoTime();
+            if (snapshot.getState(now) != GameRoom.State.PLAYING || snapshot.getTurn() != color) {
+                return;
+            }
+            long budgetMillis = Math.min(millis, snapshot.getMillis(color, now) / CLOCK_SHARE);
+            Engine.Result result = engines.get().search(snapshot.getWhite(), snapshot.getBlack(), snapshot.getKings(),
+                    color, depth, now + TimeUnit.MILLISECONDS.toNanos(budgetMillis));
+            if (result == null) {
+                return; // no legal move, AI loses on time
+            }
+            Metrics.recordAiSearch(result.getNodes());
+            log.debug("AI move in room [{}]: depth [{}], score [{}], nodes [{}]",
+                    room.getRoomUUID(), result.getDepth(), result.getScore(), result.getNodes());
+            room.move(result.getSquares(), result.getSquares().length, colorUUID);
+        } catch (RuntimeException e) {
+            log.error("AI move failed in room [{}]", room.getRoomUUID(), e);
+        } finally {
+            moveFinished(snapshot.getVersion());
+        }
+    }
+
+    private void playFirstMove() {
+        RoomSnapshot snapshot = room.getSnapshot();
+        BitBoard board = new BitBoard();
+        board.set(snapshot.getWhite(), snapshot.getBlack(), snapshot.getKings());
+        MoveList moves = new MoveList();
+        if (MoveGenerator.generate(board, color, moves) == 0) {
+            return;
+        }
+        int[] squares = new int[moves.pathLength(0)];
+        for (int i = 0; i < squares.length; i++) {
+            squares[i] = moves.square(0, i);
+        }
+        room.move(squares, squares.length, colorUUID);
+    }
+
+    /**
+     * Changes made while thinking were skipped by {@link #roomChanged(GameRoom)}, room is checked once more unless it
+     * is still in the version the move was searched for - then there is no legal move or the move failed.
+     */
+    private void moveFinished(long searchedVersion) {
+        thinking.set(false);
+        if (room.getVersion() != searchedVersion && isOnMove()) {
+            roomChanged(room);
+        }
+    }
+
+    private static ThreadPoolExecutor createWorkers(int threads, int queueSize) {
+        AtomicInteger number = new AtomicInteger();
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueSize),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "ai-worker-" + number.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+}
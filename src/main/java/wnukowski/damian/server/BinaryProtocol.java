@@ -0,0 +1,149 @@
+package wnukowski.damian.server;
+
+import wnukowski.damian.game.ArchivedGame;
+import wnukowski.damian.game.GameRoom;
+import wnukowski.damian.game.RoomSnapshot;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+import static wnukowski.damian.server.ServerCodes.*;
+
+/**
+ * Binary alternative of the text protocol. Client chooses it by sending {@link #MAGIC} and {@link #VERSION} bytes
+ * right after TLS handshake - text commands never start with non ASCII byte. Then each request and response is
+ * a frame: unsigned 16 bit big endian length followed by that many bytes of payload.
+ * <p>
+ * Request payload is opcode followed by arguments, response payload is status code (index of {@link ServerCodes}
+ * constant in {@link #STATUS_CODES}) followed by values. UUIDs are 16 bytes (most significant long first),
+ * squares are indices used by {@link wnukowski.damian.game.BitBoard}, state is written by
+ * {@link RoomSnapshot#writeTo(ByteBuffer, long)}.
+ */
+final class BinaryProtocol {
+    static final int MAGIC = 0xB1;
+    static final int VERSION = 1;
+    static final int MAX_REQUEST_LENGTH = 255;
+    // length prefix and the longest payload - ROOM_CREATED
+    static final int MAX_FRAME_LENGTH = 2 + 1 + 3 * 16 + 2 * 2;
+
+    // room UUID, color UUID
+    static final byte JOIN = 1;
+    // optional: unsigned 16 bit base minutes and increment seconds
+    static final byte CREATE = 2;
+    static final byte GET_STATE = 3;
+    // version, responds with STATUS_NOT_MODIFIED and version or STATUS_OK and state
+    static final byte GET_STATE_SINCE = 4;
+    // number of squares, squares
+    static final byte MOVE = 5;
+    static final byte LEAVE = 6;
+    static final byte REQUEST_A_DRAW = 7;
+    static final byte CANCEL_DRAW_REQUEST = 8;
+    static final byte SUBSCRIBE = 9;
+    static final byte UNSUBSCRIBE = 10;
+    static final byte QUIT = 11;
+    // room UUID, responds with WATCH_OK and state
+    static final byte WATCH = 12;
+    static final byte UNWATCH = 13;
+    // optional: unsigned 16 bit base minutes and increment seconds, pair is pushed as ROOM_JOINED with room UUID,
+    // color UUID, base minutes and increment seconds
+    static final byte QUEUE = 14;
+    static final byte UNQUEUE = 15;
+    // optional: unsigned 8 bit search depth and unsigned 16 bit search milliseconds of the computer player, 0 is
+    // default, responds with ROOM_CREATED with room UUID, color UUID, base minutes and increment seconds
+    static final byte CREATE_VS_AI = 16;
+    // room UUID, color UUID, responds with ROOM_JOINED and state
+    static final byte RESUME = 17;
+    // room or player UUID, responds with GAME_OK and game archived by GameArchive or GAME_NOT_FOUND
+    static final byte GET_GAME = 18;
+    // white, black and kings masks, color on move (0 - black, 1 - white), responds with PROBE_OK and result for
+    // the player on move (0 - draw, 1 - win, 2 - loss) or PROBE_NOT_FOUND
+    static final byte PROBE = 19;
+
+    static final String[] STATUS_CODES = {
+            SERVER_ERROR, INVALID_SYNTAX, ROOM_NOT_FOUND,
+            ROOM_JOINED, ROOM_LEFT, ROOM_CREATED,
+            MOVE_OK, MOVE_FAIL,
+            DRAW_OK, DRAW_FAIL, DRAW_CANCEL_OK, DRAW_CANCEL_FAIL,
+            STATUS_OK, STATUS_NOT_MODIFIED, STATUS_DELTA,
+            SUBSCRIBE_OK, UNSUBSCRIBE_OK, STATE_UPDATE,
+            WATCH_OK, UNWATCH_OK, QUEUED, UNQUEUE_OK,
+            REDIRECT, GAME_OK, GAME_NOT_FOUND, PROBE_OK, PROBE_NOT_FOUND
+    };
+
+    // names of opcodes used in logs, indexed by opcode
+    private static final TextCommand.Opcode[] OPCODE_NAMES = {
+            TextCommand.Opcode.UNKNOWN, TextCommand.Opcode.JOIN, TextCommand.Opcode.CREATE,
+            TextCommand.Opcode.GET_STATE, TextCommand.Opcode.GET_STATE_SINCE, TextCommand.Opcode.MOVE,
+            TextCommand.Opcode.LEAVE, TextCommand.Opcode.REQUEST_A_DRAW, TextCommand.Opcode.CANCEL_DRAW_REQUEST,
+            TextCommand.Opcode.SUBSCRIBE, TextCommand.Opcode.UNSUBSCRIBE, TextCommand.Opcode.QUIT,
+            TextCommand.Opcode.WATCH, TextCommand.Opcode.UNWATCH, TextCommand.Opcode.QUEUE,
+            TextCommand.Opcode.UNQUEUE, TextCommand.Opcode.CREATE_VS_AI,
+            TextCommand.Opcode.RESUME, TextCommand.Opcode.GET_GAME, TextCommand.Opcode.PROBE
+    };
+
+    private BinaryProtocol() {
+    }
+
+    static TextCommand.Opcode opcodeName(byte opcode) {
+        return opcode > 0 && opcode < OPCODE_NAMES.length ? OPCODE_NAMES[opcode] : TextCommand.Opcode.UNKNOWN;
+    }
+
+    static byte statusCode(String code) {
+        for (int i = 0; i < STATUS_CODES.length; i++) {
+            if (STATUS_CODES[i].equals(code)) {
+                return (byte) i;
+            }
+        }
+        throw new IllegalArgumentException("No binary status code for " + code);
+    }
+
+    /**
+     * Starts frame in cleared buffer, length is filled by {@link #endFrame(ByteBuffer)}.
+     */
+    static ByteBuffer beginFrame(ByteBuffer buffer, String code) {
+        buffer.clear();
+        return buffer.putShort((short) 0).put(statusCode(code));
+    }
+
+    /**
+     * @return buffer flipped for reading
+     */
+    static ByteBuffer endFrame(ByteBuffer buffer) {
+        buffer.putShort(0, (short) (buffer.position() - 2));
+        buffer.flip();
+        return buffer;
+    }
+
+    static ByteBuffer stateFrame(ByteBuffer buffer, String code, GameRoom gameRoom) {
+        beginFrame(buffer, code);
+        gameRoom.getSnapshot().writeTo(buffer, System.nanoTime());
+        return endFrame(buffer);
+    }
+
+    /**
+     * REDIRECT response: unsigned 16 bit port and host of the node (UTF-8, rest of the frame).
+     */
+    static ByteBuffer redirectFrame(ByteBuffer buffer, Cluster.Node node) {
+        beginFrame(buffer, REDIRECT);
+        buffer.putShort((short) node.getPort()).put(node.getHostBytes());
+        return endFrame(buffer);
+    }
+
+    /**
+     * GAME_OK response: body of the archived game as described by {@link ArchivedGame}, longer than other frames,
+     * so it has its own buffer.
+     */
+    static ByteBuffer gameFrame(ArchivedGame game) {
+        ByteBuffer buffer = beginFrame(ByteBuffer.allocate(3 + game.getLength()), GAME_OK);
+        game.writeTo(buffer);
+        return endFrame(buffer);
+    }
+
+    static void putUUID(ByteBuffer buffer, UUID uuid) {
+        buffer.putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits());
+    }
+
+    static UUID getUUID(ByteBuffer buffer) {
+        return new UUID(buffer.getLong(), buffer.getLong());
+    }
+}
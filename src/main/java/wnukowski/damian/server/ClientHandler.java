@@ -2,67 +2,144 @@ package wnukowski.damian.server;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import wnukowski.damian.game.ArchivedGame;
+import wnukowski.damian.game.Engine;
+import wnukowski.damian.game.GameArchive;
 import wnukowski.damian.game.GameRoom;
+import wnukowski.damian.game.MoveList;
+import wnukowski.damian.game.RoomListener;
+import wnukowski.damian.game.Tablebase;
+import wnukowski.damian.game.TimeControl;
 
 import java.io.*;
 import java.net.Socket;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
-import java.util.List;
 import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 import static wnukowski.damian.server.ServerCodes.*;
 
 public class ClientHandler implements Runnable {
     private static final Logger log = LoggerFactory.getLogger(ClientHandler.class);
     private static final Charset COMMUNICATION_CHARSET = StandardCharsets.UTF_8;
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(COMMUNICATION_CHARSET);
+    static final int MAX_LINE_LENGTH = 64 * 1024;
+    // maximal TLS record, responses of one batch of pipelined requests are sent together up to this size
+    private static final int OUTPUT_BUFFER_SIZE = 16 * 1024;
+    private static final String ALREADY_PAIRED_NOTE = " - opponent was already found, you are in the room";
+    // writer of pushed messages is a platform thread per connection, unless server passes its own executor
+    private static final Executor PUSH_WRITERS = runnable -> {
+        Thread thread = new Thread(runnable, "push-writer");
+        thread.setDaemon(true);
+        thread.start();
+    };
 
     private final ClientState state = new ClientState();
     private final Socket socket;
-    private final BufferedReader bufferedReader;
-    private final PrintWriter printWriter;
+    private final InputStream inputStream;
+    private final OutputStream outputStream;
+    // responses and pushes are written from different threads
+    private final ReentrantLock outputLock = new ReentrantLock();
+    // sends encoded line or frame to the client from any thread, used for messages not being response to a request
+    private final PushChannel pushChannel;
+    // push channel of the connection with its own thread, null otherwise
+    private final PushQueue pushQueue;
+    // runs GET_GAME off the calling thread and sends its response, null if the connection has its own thread
+    private final Consumer<Supplier<byte[]>> diskReads;
+    // response of the last request is sent by diskReads
+    private boolean responseDeferred = false;
+    private final RoomListener stateUpdatePusher = this::pushState;
+    private GameRoom subscribedRoom;
+    private SpectatorGroup watchedGroup;
+    // place in matchmaking queue, null if client is not queued
+    private Matchmaker.Ticket queueTicket;
     private boolean shouldBeRunning = true;
+    private volatile boolean binary = false;
     private final Random random = new Random();
+    // reused by binary protocol, response is written before next request is processed
+    private final ByteBuffer frameResponse = ByteBuffer.allocate(BinaryProtocol.MAX_FRAME_LENGTH);
+    private final int[] moveSquares = new int[MoveList.MAX_PATH_LENGTH];
+    // reused by text protocol in the same way
+    private final TextCommand command = new TextCommand();
+    private final StringBuilder textResponse = new StringBuilder(256);
+    private char[] responseChars = new char[256];
+    private ByteBuffer lineResponse = ByteBuffer.allocate(256);
 
     public ClientHandler(Socket socket) throws IOException {
+        this(socket, PUSH_WRITERS);
+    }
+
+    /**
+     * @param pushWriters runs writer of messages pushed to the client, for as long as connection is open
+     */
+    public ClientHandler(Socket socket, Executor pushWriters) throws IOException {
         this.socket = socket;
-        this.bufferedReader = new BufferedReader(
-                new InputStreamReader(socket.getInputStream(), COMMUNICATION_CHARSET));
-        this.printWriter = new PrintWriter(
-                new OutputStreamWriter(socket.getOutputStream(), COMMUNICATION_CHARSET),
-                true);
+        // responses are flushed once per batch of requests, Nagle's algorithm would only delay them
+        socket.setTcpNoDelay(true);
+        this.inputStream = new BufferedInputStream(socket.getInputStream());
+        this.outputStream = new BufferedOutputStream(socket.getOutputStream(), OUTPUT_BUFFER_SIZE);
+        this.pushQueue = new PushQueue(bytes -> {
+            write(bytes, 0, bytes.length);
+            flush();
+        }, pushWriters, this::closeSocket);
+        this.pushChannel = pushQueue;
+        this.diskReads = null;
+        Metrics.connectionOpened();
+    }
+
+    /**
+     * Handler without its own socket - I/O is done by {@link NioServer} event loop which feeds
+     * {@link #processLine(byte[], int, int)} with received lines or {@link #processFrame(ByteBuffer)} with frames and calls
+     * {@link #disconnect()} on close.
+     *
+     * @param diskReads runs reading of the archived game on another thread and sends the response, requests return
+     *                  null response meanwhile; null to read on the calling thread
+     */
+    ClientHandler(PushChannel pushChannel, Consumer<Supplier<byte[]>> diskReads) {
+        this.socket = null;
+        this.inputStream = null;
+        this.outputStream = null;
+        this.pushQueue = null;
+        this.pushChannel = pushChannel;
+        this.diskReads = diskReads;
+    }
+
+    ClientHandler(PushChannel pushChannel) {
+        this(pushChannel, null);
+    }
+
+    ClientHandler() {
+        this((message, stateUpdate) -> {
+        });
     }
 
     @Override
     public void run() {
         try {
-            while (shouldBeRunning) {
-                String command;
-                try {
-                    command = bufferedReader.readLine();
-                    if (command == null) {
-                        shouldBeRunning = false;
-                        break;
-                    }
-                    printWriter.println(processCommand(command));
-                } catch (IOException ioException) {
-                    log.error("IO EXCEPTION, connection closing", ioException);
-                    shouldBeRunning = false;
-                } catch (Throwable e) {
-                    log.error("Unexpected server error", e);
-                    printWriter.println(SERVER_ERROR);
-                }
+            inputStream.mark(1);
+            int firstByte = inputStream.read();
+            inputStream.reset();
+            if (firstByte == BinaryProtocol.MAGIC) {
+                runBinary();
+            } else if (firstByte != -1) {
+                runText();
             }
+        } catch (IOException ioException) {
+            log.error("IO EXCEPTION, connection closing", ioException);
         } finally {
+            Metrics.connectionClosed();
             try {
                 log.info("Closing socket connection");
-                if (state.getRoomID() != null) {
-                    ServerState.gameRooms.get(state.getRoomID()).leave(state.getColorID());
-                    state.setColorID(null);
-                    state.setRoomID(null);
-                }
+                disconnect();
+                pushQueue.close();
                 socket.close();
             } catch (IOException ioException) {
                 log.warn("Error during connection close", ioException);
@@ -71,111 +148,961 @@ public class ClientHandler implements Runnable {
     }
 
     /**
+     * Reads lines ending with \n, \r or \r\n, as {@link BufferedReader#readLine()} did, into reused buffer.
+     * Requests sent without waiting for responses (pipelined) are all processed before responses are flushed.
+     */
+    private void runText() throws IOException {
+        byte[] input = new byte[OUTPUT_BUFFER_SIZE];
+        byte[] line = new byte[128];
+        int length = 0;
+        boolean skipLineFeed = false;
+        try {
+            while (shouldBeRunning) {
+                flushIfNothingToRead();
+                int read = inputStream.read(input);
+                if (read == -1) {
+                    return;
+                }
+                for (int i = 0; i < read && shouldBeRunning; i++) {
+                    byte b = input[i];
+                    if (skipLineFeed) {
+                        skipLineFeed = false;
+                        if (b == '\n') {
+                            continue;
+                        }
+                    }
+                    if (b == '\n' || b == '\r') {
+                        skipLineFeed = b == '\r';
+                        ByteBuffer response = processLine(line, 0, length);
+                        write(response.array(), 0, response.limit());
+                        length = 0;
+                        continue;
+                    }
+                    if (length == line.length) {
+                        if (length >= MAX_LINE_LENGTH) {
+                            log.warn("Line too long, connection closing");
+                            return;
+                        }
+                        line = Arrays.copyOf(line, length * 2);
+                    }
+                    line[length++] = b;
+                }
+            }
+        } finally {
+            flush();
+        }
+    }
+
+    private void runBinary() throws IOException {
+        DataInputStream input = new DataInputStream(inputStream);
+        input.readUnsignedByte(); // magic
+        int version = input.readUnsignedByte();
+        if (!startBinary(version)) {
+            return;
+        }
+        byte[] request = new byte[BinaryProtocol.MAX_REQUEST_LENGTH];
+        try {
+            while (shouldBeRunning) {
+                flushIfNothingToRead();
+                int length;
+                try {
+                    length = input.readUnsignedShort();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (length == 0 || length > BinaryProtocol.MAX_REQUEST_LENGTH) {
+                    log.warn("Invalid binary frame length [{}], connection closing", length);
+                    break;
+                }
+                input.readFully(request, 0, length);
+                ByteBuffer response = processFrame(ByteBuffer.wrap(request, 0, length));
+                write(response.array(), 0, response.limit());
+            }
+        } finally {
+            flush();
+        }
+    }
+
+    /**
+     * Flushes buffered responses before read would block - client waits for them before sending more, while
+     * requests already received are processed first, so responses to all of them go out in one TLS record.
+     */
+    private void flushIfNothingToRead() throws IOException {
+        if (inputStream.available() == 0) {
+            flush();
+        }
+    }
+
+    boolean isRunning() {
+        return shouldBeRunning;
+    }
+
+    /**
+     * Switches to binary protocol, called once client sent magic byte and protocol version.
+     *
+     * @return false if version isn't supported, connection should be closed
+     */
+    boolean startBinary(int version) {
+        if (version != BinaryProtocol.VERSION) {
+            log.warn("Unsupported binary protocol version [{}], connection closing", version);
+            shouldBeRunning = false;
+            return false;
+        }
+        binary = true;
+        return true;
+    }
+
+    /**
+     * Leaves the room client is in, should be called once connection is closed.
+     */
+    void disconnect() {
+        shouldBeRunning = false;
+        unsubscribe();
+        unwatch();
+        cancelQueue(); // if client was already paired, the room is left below
+        if (state.getRoomID() != null) {
+            GameRoom gameRoom = ServerState.gameRooms.get(state.getRoomID());
+            if (gameRoom != null) {
+                leaveRoom(gameRoom);
+            } else {
+                ServerState.players.remove(state.getColorID(), this);
+            }
+            state.setColorID(null);
+            state.setRoomID(null);
+        }
+    }
+
+    /**
+     * Processes line of the text protocol.
+     *
+     * @param line   bytes of the line, without line separator
+     * @param offset index of first byte of the line
+     * @param length number of bytes in the line
+     * @return whole response line with line separator, valid until next call, null if it is sent later by
+     * {@code diskReads}
+     */
+    ByteBuffer processLine(byte[] line, int offset, int length) {
+        long startNanos = System.nanoTime();
+        try {
+            if (log.isDebugEnabled()) {
+                log.debug("Request for room with id [{}] and color uuid [{}]: [{}]",
+                        state.getRoomID(), state.getColorID(), new String(line, offset, length, COMMUNICATION_CHARSET));
+            }
+            command.parse(line, offset, length);
+            textResponse.setLength(0);
+            processTextCommand(textResponse);
+        } catch (RuntimeException e) {
+            log.error("Unexpected server error", e);
+            textResponse.setLength(0);
+            textResponse.append(SERVER_ERROR);
+        }
+        ByteBuffer response = takeResponseDeferred() ? null : encodeResponse(textResponse);
+        long durationNanos = System.nanoTime() - startNanos;
+        Metrics.recordRequest(command.getOpcode(), durationNanos);
+        if (AccessLog.isSampled()) {
+            AccessLog.record("text", command.getOpcode(), durationNanos);
+        }
+        return response;
+    }
+
+    /**
+     * Same as {@link #processLine(byte[], int, int)} for already decoded line.
+     *
      * @return command to send back
      */
-    private String processCommand(String command) {
-        log.info("Request for room with id [{}] for and color uuid [{}]: " + System.lineSeparator() + "[{}]",
-                state.getRoomID(), state.getColorID(), command);
-        if (command.equals("QUIT")) {
+    String processCommand(String line) {
+        byte[] bytes = line.getBytes(COMMUNICATION_CHARSET);
+        command.parse(bytes, 0, bytes.length);
+        textResponse.setLength(0);
+        processTextCommand(textResponse);
+        return textResponse.toString();
+    }
+
+    private void processTextCommand(StringBuilder response) {
+        TextCommand.Opcode opcode = command.getOpcode();
+        if (opcode == TextCommand.Opcode.QUIT && command.isValid()) {
             shouldBeRunning = false;
         }
+        takeMatch();
 
+        if (opcode == TextCommand.Opcode.GET_GAME && command.isValid()) {
+            UUID uuid = new UUID(command.getRoomMostSigBits(), command.getRoomLeastSigBits());
+            if (diskReads != null) {
+                findGameLater(uuid);
+            } else {
+                appendGame(response, uuid);
+            }
+            return;
+        }
+        if (opcode == TextCommand.Opcode.PROBE && command.isValid()) {
+            Tablebase.Result result = probe(command.getBoardWhite(), command.getBoardBlack(),
+                    command.getBoardKings(), command.getTurn());
+            if (result == null) {
+                response.append(PROBE_NOT_FOUND);
+            } else {
+                response.append(PROBE_OK).append(" RESULT=").append(result);
+            }
+            return;
+        }
         if (state.getRoomID() == null) {
-            if (command.startsWith("JOIN")) {
-                String[] commandFragments = command.split(" ");
-                if (commandFragments.length != 3) {
-                    return INVALID_SYNTAX;
+            if (command.isValid() && (opcode == TextCommand.Opcode.JOIN || opcode == TextCommand.Opcode.CREATE
+                    || opcode == TextCommand.Opcode.CREATE_VS_AI || opcode == TextCommand.Opcode.RESUME
+                    || opcode == TextCommand.Opcode.QUEUE || opcode == TextCommand.Opcode.UNQUEUE)
+                    && !cancelQueue()) {
+                response.append(INVALID_SYNTAX + ALREADY_PAIRED_NOTE);
+                return;
+            }
+            if (command.isValid() && (opcode == TextCommand.Opcode.JOIN || opcode == TextCommand.Opcode.RESUME
+                    || opcode == TextCommand.Opcode.WATCH)) {
+                Cluster.Node node = Cluster.redirect(
+                        new UUID(command.getRoomMostSigBits(), command.getRoomLeastSigBits()));
+                if (node != null) {
+                    response.append(REDIRECT).append(" NODE=").append(node);
+                    return;
                 }
-                try {
-                    UUID room = UUID.fromString(commandFragments[1]);
-                    UUID color = UUID.fromString(commandFragments[2]);
-                    GameRoom gameRoom = ServerState.gameRooms.get(room);
-                    if (gameRoom != null && gameRoom.join(room, color)) {
-                        this.state.setRoomID(room);
-                        this.state.setColorID(color);
-                        return ROOM_JOINED;
-                    } else {
-                        return ROOM_NOT_FOUND;
-                    }
-                } catch (Exception E) {
-                    return INVALID_SYNTAX;
-                }
-            }
-            if (command.startsWith("CREATE")) {
-                if (!command.equals("CREATE")) {
-                    return INVALID_SYNTAX; // CREATE doesn't take any arguments, should be explicitly CREATE
-                }
-                GameRoom gameRoom = new GameRoom();
-                this.state.setRoomID(gameRoom.getRoomUUID());
-                if (random.nextBoolean()) {
-                    this.state.setColorID(gameRoom.getWhiteUUID());
-                    gameRoom.join(gameRoom.getRoomUUID(), gameRoom.getWhiteUUID());
-                    log.debug("Enemy join command: JOIN {} {}", gameRoom.getRoomUUID(), gameRoom.getBlackUUID());
-                    return ROOM_CREATED + " ROOM_ID=" + gameRoom.getRoomUUID() +
-                            " PLAYER_COLOR_ID=" + gameRoom.getWhiteUUID() +
-                            " ENEMY_COLOR_ID=" + gameRoom.getBlackUUID();
-                } else {
-                    this.state.setColorID(gameRoom.getBlackUUID());
-                    gameRoom.join(gameRoom.getRoomUUID(), gameRoom.getBlackUUID());
-                    log.debug("Enemy join command: JOIN {} {}", gameRoom.getRoomUUID(), gameRoom.getWhiteUUID());
-                    return ROOM_CREATED + " ROOM_ID=" + gameRoom.getRoomUUID() +
-                            " PLAYER_COLOR_ID=" + gameRoom.getBlackUUID() +
-                            " ENEMY_COLOR_ID=" + gameRoom.getWhiteUUID();
+            }
+            if (opcode == TextCommand.Opcode.JOIN) {
+                if (!command.isValid()) {
+                    response.append(INVALID_SYNTAX);
+                    return;
                 }
+                response.append(join(new UUID(command.getRoomMostSigBits(), command.getRoomLeastSigBits()),
+                        new UUID(command.getColorMostSigBits(), command.getColorLeastSigBits())));
+                return;
             }
-            return INVALID_SYNTAX + " - please join or create room";
-        } else {
+            if (opcode == TextCommand.Opcode.RESUME) {
+                if (!command.isValid()) {
+                    response.append(INVALID_SYNTAX);
+                    return;
+                }
+                GameRoom gameRoom = resume(new UUID(command.getRoomMostSigBits(), command.getRoomLeastSigBits()),
+                        new UUID(command.getColorMostSigBits(), command.getColorLeastSigBits()));
+                if (gameRoom == null) {
+                    response.append(ROOM_NOT_FOUND);
+                    return;
+                }
+                response.append(ROOM_JOINED).append(' ');
+                gameRoom.appendWholeRoomState(response);
+                return;
+            }
+            if (opcode == TextCommand.Opcode.CREATE) {
+                TimeControl timeControl = commandTimeControl();
+                if (timeControl == null) {
+                    response.append(INVALID_SYNTAX); // only argument of CREATE is time control like 3+2
+                    return;
+                }
+                GameRoom gameRoom = create(timeControl);
+                response.append(ROOM_CREATED).append(" ROOM_ID=").append(gameRoom.getRoomUUID())
+                        .append(" PLAYER_COLOR_ID=").append(state.getColorID())
+                        .append(" ENEMY_COLOR_ID=").append(enemyColorID(gameRoom))
+                        .append(" TIME_CONTROL=").append(timeControl);
+                return;
+            }
+            if (opcode == TextCommand.Opcode.CREATE_VS_AI) {
+                if (!command.isValid()) {
+                    response.append(INVALID_SYNTAX); // only argument is depth like 8 or time like 500ms
+                    return;
+                }
+                GameRoom gameRoom = createVsAi(command.getAiDepth(), command.getAiMillis());
+                response.append(ROOM_CREATED).append(" ROOM_ID=").append(gameRoom.getRoomUUID())
+                        .append(" PLAYER_COLOR_ID=").append(state.getColorID())
+                        .append(" TIME_CONTROL=").append(gameRoom.getTimeControl());
+                return;
+            }
+            if (opcode == TextCommand.Opcode.WATCH && command.isValid()) {
+                GameRoom gameRoom = watch(new UUID(command.getRoomMostSigBits(), command.getRoomLeastSigBits()));
+                if (gameRoom == null) {
+                    response.append(ROOM_NOT_FOUND);
+                    return;
+                }
+                response.append(WATCH_OK).append(' ');
+                gameRoom.appendWholeRoomState(response);
+                return;
+            }
+            if (opcode == TextCommand.Opcode.UNWATCH && command.isValid()) {
+                unwatch();
+                response.append(UNWATCH_OK);
+                return;
+            }
+            if (opcode == TextCommand.Opcode.QUEUE) {
+                TimeControl timeControl = commandTimeControl();
+                if (timeControl == null) {
+                    response.append(INVALID_SYNTAX);
+                    return;
+                }
+                queueTicket = Matchmaker.enqueue(this, timeControl);
+                response.append(QUEUED).append(" TIME_CONTROL=").append(timeControl);
+                return;
+            }
+            if (opcode == TextCommand.Opcode.UNQUEUE && command.isValid()) {
+                response.append(UNQUEUE_OK);
+                return;
+            }
+            response.append(INVALID_SYNTAX + " - please join or create room");
+            return;
+        }
+
+        if (opcode == TextCommand.Opcode.GET_STATE_SINCE && !command.isValid()) {
+            response.append(INVALID_SYNTAX);
+            return;
+        }
+        if (!command.isValid()) {
+            opcode = TextCommand.Opcode.UNKNOWN;
+        }
+        switch (opcode) {
             // Returns state of the play
-            if (command.equals("GET_STATE")) {
-                GameRoom gameRoom = ServerState.gameRooms.get(state.getRoomID());
+            case GET_STATE: {
+                GameRoom gameRoom = currentRoom();
                 if (gameRoom == null) {
-                    return ROOM_NOT_FOUND;
+                    response.append(ROOM_NOT_FOUND);
+                    return;
                 }
-                return STATUS_OK + " " + gameRoom.getWholeRoomStateAsString();
+                response.append(STATUS_OK).append(' ');
+                gameRoom.appendWholeRoomState(response);
+                return;
             }
-            if (command.startsWith("MOVE")) {
-                GameRoom gameRoom = ServerState.gameRooms.get(state.getRoomID());
-                List<String> commands = Arrays.asList(command.split(" "));
-                boolean result = gameRoom.move(commands.subList(1, commands.size()), state.getColorID());
-                if (result) {
-                    return MOVE_OK;
-                } else {
-                    return MOVE_FAIL + " - please check if move is indeed legal for current position";
+            case GET_STATE_SINCE: {
+                GameRoom gameRoom = currentRoom();
+                if (gameRoom == null) {
+                    response.append(ROOM_NOT_FOUND);
+                    return;
                 }
+                gameRoom.appendRoomStateSince(response, command.getSinceVersion());
+                return;
             }
-            if (command.equals("LEAVE")) {
-                GameRoom gameRoom = ServerState.gameRooms.get(state.getRoomID());
+            case MOVE: {
+                GameRoom gameRoom = currentRoom();
                 if (gameRoom == null) {
-                    return ROOM_NOT_FOUND;
+                    response.append(ROOM_NOT_FOUND);
+                    return;
+                }
+                boolean moved = gameRoom.move(command.getSquares(), command.getSquareCount(), state.getColorID());
+                Metrics.recordMove(moved);
+                if (moved) {
+                    response.append(MOVE_OK);
+                } else {
+                    response.append(MOVE_FAIL + " - please check if move is indeed legal for current position");
                 }
-                gameRoom.leave(state.getColorID());
-                state.setRoomID(null);
-                state.setColorID(null);
-                return ROOM_LEFT;
+                return;
             }
+            case SUBSCRIBE:
+                response.append(subscribe());
+                return;
+            case UNSUBSCRIBE:
+                unsubscribe();
+                response.append(UNSUBSCRIBE_OK);
+                return;
+            case LEAVE:
+                response.append(leave());
+                return;
+            case REQUEST_A_DRAW:
+                response.append(requestADraw());
+                return;
+            case CANCEL_DRAW_REQUEST:
+                response.append(cancelDrawRequest());
+                return;
+            default:
+                response.append(INVALID_SYNTAX + " - please input a valid command for the ROOM you are in");
+        }
+    }
 
-            if (command.equals("REQUEST_A_DRAW")) {
-                GameRoom gameRoom = ServerState.gameRooms.get(state.getRoomID());
+    /**
+     * Processes request of {@link BinaryProtocol}.
+     *
+     * @param request payload of the frame, without length
+     * @return whole response frame, valid until next call, null if it is sent later by {@code diskReads}
+     */
+    ByteBuffer processFrame(ByteBuffer request) {
+        long startNanos = System.nanoTime();
+        TextCommand.Opcode opcode = request.hasRemaining()
+                ? BinaryProtocol.opcodeName(request.get(request.position())) : TextCommand.Opcode.UNKNOWN;
+        ByteBuffer response = processFrameSafely(request);
+        if (takeResponseDeferred()) {
+            response = null;
+        }
+        long durationNanos = System.nanoTime() - startNanos;
+        Metrics.recordRequest(opcode, durationNanos);
+        if (AccessLog.isSampled()) {
+            AccessLog.record("binary", opcode, durationNanos);
+        }
+        return response;
+    }
+
+    private ByteBuffer processFrameSafely(ByteBuffer request) {
+        try {
+            return processRequest(request);
+        } catch (BufferUnderflowException e) {
+            return BinaryProtocol.endFrame(BinaryProtocol.beginFrame(frameResponse, INVALID_SYNTAX));
+        } catch (RuntimeException e) {
+            log.error("Unexpected server error", e);
+            return BinaryProtocol.endFrame(BinaryProtocol.beginFrame(frameResponse, SERVER_ERROR));
+        }
+    }
+
+    private ByteBuffer processRequest(ByteBuffer request) {
+        byte opcode = request.get();
+        if (log.isDebugEnabled()) {
+            log.debug("Binary request [{}] for room with id [{}] and color uuid [{}]",
+                    opcode, state.getRoomID(), state.getColorID());
+        }
+        if (opcode == BinaryProtocol.QUIT) {
+            shouldBeRunning = false;
+            frameResponse.clear().flip();
+            return frameResponse; // nothing is sent back, as in text protocol
+        }
+        takeMatch();
+
+        if (opcode == BinaryProtocol.GET_GAME) {
+            UUID uuid = BinaryProtocol.getUUID(request);
+            if (diskReads != null) {
+                findGameLater(uuid);
+                return frameResponse;
+            }
+            return gameFrame(frameResponse, uuid);
+        }
+        if (opcode == BinaryProtocol.PROBE) {
+            int white = request.getInt();
+            int black = request.getInt();
+            int kings = request.getInt();
+            int turn = request.get();
+            if ((turn & ~1) != 0) {
+                return status(INVALID_SYNTAX);
+            }
+            Tablebase.Result result = probe(white, black, kings, GameRoom.Color.values()[turn]);
+            if (result == null) {
+                return status(PROBE_NOT_FOUND);
+            }
+            return BinaryProtocol.endFrame(
+                    BinaryProtocol.beginFrame(frameResponse, PROBE_OK).put((byte) result.ordinal()));
+        }
+        if (state.getRoomID() == null) {
+            if ((opcode == BinaryProtocol.JOIN || opcode == BinaryProtocol.CREATE
+                    || opcode == BinaryProtocol.CREATE_VS_AI || opcode == BinaryProtocol.RESUME
+                    || opcode == BinaryProtocol.QUEUE || opcode == BinaryProtocol.UNQUEUE) && !cancelQueue()) {
+                return status(INVALID_SYNTAX);
+            }
+            if ((opcode == BinaryProtocol.JOIN || opcode == BinaryProtocol.RESUME || opcode == BinaryProtocol.WATCH)
+                    && request.remaining() >= 16) {
+                Cluster.Node node = Cluster.redirect(
+                        new UUID(request.getLong(request.position()), request.getLong(request.position() + 8)));
+                if (node != null) {
+                    return BinaryProtocol.redirectFrame(frameResponse, node);
+                }
+            }
+            if (opcode == BinaryProtocol.JOIN) {
+                return status(join(BinaryProtocol.getUUID(request), BinaryProtocol.getUUID(request)));
+            }
+            if (opcode == BinaryProtocol.RESUME) {
+                GameRoom gameRoom = resume(BinaryProtocol.getUUID(request), BinaryProtocol.getUUID(request));
+                if (gameRoom == null) {
+                    return status(ROOM_NOT_FOUND);
+                }
+                return BinaryProtocol.stateFrame(frameResponse, ROOM_JOINED, gameRoom);
+            }
+            if (opcode == BinaryProtocol.CREATE) {
+                TimeControl timeControl = TimeControl.DEFAULT;
+                if (request.hasRemaining()) {
+                    timeControl = TimeControl.of(request.getShort() & 0xFFFF, request.getShort() & 0xFFFF);
+                    if (timeControl == null) {
+                        return status(INVALID_SYNTAX);
+                    }
+                }
+                GameRoom gameRoom = create(timeControl);
+                ByteBuffer response = BinaryProtocol.beginFrame(frameResponse, ROOM_CREATED);
+                BinaryProtocol.putUUID(response, gameRoom.getRoomUUID());
+                BinaryProtocol.putUUID(response, state.getColorID());
+                BinaryProtocol.putUUID(response, enemyColorID(gameRoom));
+                response.putShort((short) timeControl.getBaseMinutes()).putShort((short) timeControl.getIncrementSeconds());
+                return BinaryProtocol.endFrame(response);
+            }
+            if (opcode == BinaryProtocol.CREATE_VS_AI) {
+                int depth = request.hasRemaining() ? request.get() & 0xFF : 0;
+                int millis = request.hasRemaining() ? request.getShort() & 0xFFFF : 0;
+                if (depth > Engine.MAX_DEPTH) {
+                    return status(INVALID_SYNTAX);
+                }
+                GameRoom gameRoom = createVsAi(depth, millis);
+                TimeControl timeControl = gameRoom.getTimeControl();
+                ByteBuffer response = BinaryProtocol.beginFrame(frameResponse, ROOM_CREATED);
+                BinaryProtocol.putUUID(response, gameRoom.getRoomUUID());
+                BinaryProtocol.putUUID(response, state.getColorID());
+                response.putShort((short) timeControl.getBaseMinutes()).putShort((short) timeControl.getIncrementSeconds());
+                return BinaryProtocol.endFrame(response);
+            }
+            if (opcode == BinaryProtocol.WATCH) {
+                GameRoom gameRoom = watch(BinaryProtocol.getUUID(request));
                 if (gameRoom == null) {
-                    return ROOM_NOT_FOUND;
+                    return status(ROOM_NOT_FOUND);
                 }
-                if (gameRoom.requestADraw(state.getColorID())) {
-                    return DRAW_OK;
+                return BinaryProtocol.stateFrame(frameResponse, WATCH_OK, gameRoom);
+            }
+            if (opcode == BinaryProtocol.UNWATCH) {
+                unwatch();
+                return status(UNWATCH_OK);
+            }
+            if (opcode == BinaryProtocol.QUEUE) {
+                TimeControl timeControl = TimeControl.DEFAULT;
+                if (request.hasRemaining()) {
+                    timeControl = TimeControl.of(request.getShort() & 0xFFFF, request.getShort() & 0xFFFF);
+                    if (timeControl == null) {
+                        return status(INVALID_SYNTAX);
+                    }
                 }
-                return DRAW_FAIL;
+                queueTicket = Matchmaker.enqueue(this, timeControl);
+                return status(QUEUED);
+            }
+            if (opcode == BinaryProtocol.UNQUEUE) {
+                return status(UNQUEUE_OK);
             }
+            return status(INVALID_SYNTAX);
+        }
 
-            if (command.equals("CANCEL_DRAW_REQUEST")) {
-                GameRoom gameRoom = ServerState.gameRooms.get(state.getRoomID());
+        switch (opcode) {
+            case BinaryProtocol.GET_STATE: {
+                GameRoom gameRoom = currentRoom();
+                if (gameRoom == null) {
+                    return status(ROOM_NOT_FOUND);
+                }
+                return BinaryProtocol.stateFrame(frameResponse, STATUS_OK, gameRoom);
+            }
+            case BinaryProtocol.GET_STATE_SINCE: {
+                long sinceVersion = request.getLong();
+                GameRoom gameRoom = currentRoom();
                 if (gameRoom == null) {
-                    return ROOM_NOT_FOUND;
+                    return status(ROOM_NOT_FOUND);
                 }
-                if (gameRoom.cancelDrawRequest(state.getColorID())) {
-                    return DRAW_CANCEL_OK;
+                if (gameRoom.getVersion() == sinceVersion) {
+                    return BinaryProtocol.endFrame(
+                            BinaryProtocol.beginFrame(frameResponse, STATUS_NOT_MODIFIED).putLong(sinceVersion));
                 }
-                return DRAW_CANCEL_FAIL;
+                return BinaryProtocol.stateFrame(frameResponse, STATUS_OK, gameRoom);
             }
-            return INVALID_SYNTAX + " - please input a valid command for the ROOM you are in";
+            case BinaryProtocol.MOVE: {
+                int length = request.get() & 0xFF;
+                if (length > moveSquares.length) {
+                    Metrics.recordMove(false);
+                    return status(MOVE_FAIL);
+                }
+                for (int i = 0; i < length; i++) {
+                    moveSquares[i] = request.get();
+                }
+                GameRoom gameRoom = currentRoom();
+                if (gameRoom == null) {
+                    return status(ROOM_NOT_FOUND);
+                }
+                boolean moved = gameRoom.move(moveSquares, length, state.getColorID());
+                Metrics.recordMove(moved);
+                return status(moved ? MOVE_OK : MOVE_FAIL);
+            }
+            case BinaryProtocol.SUBSCRIBE:
+                return status(subscribe());
+            case BinaryProtocol.UNSUBSCRIBE:
+                unsubscribe();
+                return status(UNSUBSCRIBE_OK);
+            case BinaryProtocol.LEAVE:
+                return status(leave());
+            case BinaryProtocol.REQUEST_A_DRAW:
+                return status(requestADraw());
+            case BinaryProtocol.CANCEL_DRAW_REQUEST:
+                return status(cancelDrawRequest());
+            default:
+                return status(INVALID_SYNTAX);
+        }
+    }
+
+    private static ByteBuffer gameFrame(ByteBuffer frame, UUID uuid) {
+        ArchivedGame game = findGame(uuid);
+        if (game != null) {
+            return BinaryProtocol.gameFrame(game);
+        }
+        Cluster.Node node = Cluster.redirect(uuid);
+        return node != null ? BinaryProtocol.redirectFrame(frame, node)
+                : BinaryProtocol.endFrame(BinaryProtocol.beginFrame(frame, GAME_NOT_FOUND));
+    }
+
+    private static void appendGame(StringBuilder response, UUID uuid) {
+        ArchivedGame game = findGame(uuid);
+        if (game != null) {
+            response.append(GAME_OK).append(' ');
+            game.appendTo(response);
+            return;
+        }
+        Cluster.Node node = Cluster.redirect(uuid);
+        if (node != null) {
+            response.append(REDIRECT).append(" NODE=").append(node);
+            return;
+        }
+        response.append(GAME_NOT_FOUND);
+    }
+
+    /**
+     * Hands GET_GAME over to {@code diskReads}, the response is built on its thread with buffers of its own.
+     */
+    private void findGameLater(UUID uuid) {
+        boolean binaryResponse = binary;
+        responseDeferred = true;
+        diskReads.accept(() -> {
+            try {
+                if (binaryResponse) {
+                    ByteBuffer frame = gameFrame(ByteBuffer.allocate(BinaryProtocol.MAX_FRAME_LENGTH), uuid);
+                    return Arrays.copyOf(frame.array(), frame.limit());
+                }
+                StringBuilder response = new StringBuilder(256);
+                appendGame(response, uuid);
+                return encodeLine(response.toString());
+            } catch (RuntimeException e) {
+                log.error("Unexpected server error", e);
+                if (binaryResponse) {
+                    ByteBuffer frame = BinaryProtocol.endFrame(BinaryProtocol.beginFrame(
+                            ByteBuffer.allocate(BinaryProtocol.MAX_FRAME_LENGTH), SERVER_ERROR));
+                    return Arrays.copyOf(frame.array(), frame.limit());
+                }
+                return encodeLine(SERVER_ERROR);
+            }
+        });
+    }
+
+    private boolean takeResponseDeferred() {
+        boolean deferred = responseDeferred;
+        responseDeferred = false;
+        return deferred;
+    }
+
+    /**
+     * Games are archived by the node which kept the room, so game not found here may be on the node owning the
+     * uuid - caller redirects there.
+     *
+     * @return archived game of the room or player uuid or null if this node doesn't have it
+     */
+    private static ArchivedGame findGame(UUID uuid) {
+        try {
+            return GameArchive.find(uuid);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Can't read archived game " + uuid, e);
+        }
+    }
+
+    /**
+     * @return result for the player on move or null if tablebase isn't loaded or doesn't have the position
+     */
+    private static Tablebase.Result probe(int white, int black, int kings, GameRoom.Color turn) {
+        Tablebase tablebase = Tablebase.getCurrent();
+        return tablebase == null ? null : tablebase.probe(white, black, kings, turn);
+    }
+
+    private ByteBuffer status(String code) {
+        return BinaryProtocol.endFrame(BinaryProtocol.beginFrame(frameResponse, code));
+    }
+
+    private String join(UUID room, UUID color) {
+        GameRoom gameRoom = ServerState.gameRooms.get(room);
+        if (gameRoom != null && gameRoom.join(room, color)) {
+            unwatch();
+            ServerState.players.put(color, this);
+            this.state.setRoomID(room);
+            this.state.setColorID(color);
+            return ROOM_JOINED;
+        }
+        return ROOM_NOT_FOUND;
+    }
+
+    /**
+     * Joins the room like JOIN, but also when the color is still in the room - previous connection of the client
+     * might not be closed yet. That connection stops being the player, its commands get {@code ROOM_NOT_FOUND} and
+     * closing it doesn't leave the room.
+     *
+     * @return room or null if it doesn't exist or uuids don't match
+     */
+    private GameRoom resume(UUID room, UUID color) {
+        GameRoom gameRoom = ServerState.gameRooms.get(room);
+        if (gameRoom == null) {
+            return null;
+        }
+        // color is taken over under the room lock, so leaveRoom() of previous connection sees the new player
+        if (!gameRoom.resume(room, color, () -> ServerState.players.put(color, this))) {
+            return null;
+        }
+        unwatch();
+        state.setRoomID(room);
+        state.setColorID(color);
+        return gameRoom;
+    }
+
+    /**
+     * Leaves the room, unless another connection took the color over with RESUME.
+     */
+    private void leaveRoom(GameRoom gameRoom) {
+        UUID color = state.getColorID();
+        gameRoom.leave(color, () -> ServerState.players.remove(color, this) || !ServerState.players.containsKey(color));
+    }
+
+    /**
+     * Creates room and joins it with random color.
+     */
+    private GameRoom create(TimeControl timeControl) {
+        unwatch();
+        GameRoom gameRoom = new GameRoom(timeControl);
+        this.state.setRoomID(gameRoom.getRoomUUID());
+        this.state.setColorID(random.nextBoolean() ? gameRoom.getWhiteUUID() : gameRoom.getBlackUUID());
+        gameRoom.join(gameRoom.getRoomUUID(), state.getColorID());
+        ServerState.players.put(state.getColorID(), this);
+        log.debug("Enemy join command: JOIN {} {}", gameRoom.getRoomUUID(), enemyColorID(gameRoom));
+        return gameRoom;
+    }
+
+    /**
+     * Creates room with default time control, joins it with random color and lets {@link AiPlayer} play the other
+     * one.
+     *
+     * @param depth  search depth, 0 for default
+     * @param millis search time, 0 for default
+     */
+    private GameRoom createVsAi(int depth, long millis) {
+        GameRoom gameRoom = create(TimeControl.DEFAULT);
+        AiPlayer.play(gameRoom, enemyColorID(gameRoom), depth, millis);
+        return gameRoom;
+    }
+
+    /**
+     * @return time control given to CREATE or QUEUE, default if there is none, null if command is invalid
+     */
+    private TimeControl commandTimeControl() {
+        if (!command.isValid()) {
+            return null;
+        }
+        if (!command.hasTimeControl()) {
+            return TimeControl.DEFAULT;
+        }
+        return TimeControl.of(command.getBaseMinutes(), command.getIncrementSeconds());
+    }
+
+    /**
+     * Moves client into the room found by {@link Matchmaker}, client state is changed only by the handler's own
+     * thread.
+     */
+    private void takeMatch() {
+        if (queueTicket == null || queueTicket.getRoom() == null) {
+            return;
+        }
+        unwatch();
+        state.setRoomID(queueTicket.getRoom().getRoomUUID());
+        state.setColorID(queueTicket.getColorUUID());
+        ServerState.players.put(queueTicket.getColorUUID(), this);
+        queueTicket = null;
+    }
+
+    /**
+     * Leaves matchmaking queue.
+     *
+     * @return false if client was paired in the meantime and is in the room now
+     */
+    private boolean cancelQueue() {
+        if (queueTicket == null) {
+            return true;
+        }
+        if (queueTicket.cancel()) {
+            queueTicket = null;
+            return true;
+        }
+        takeMatch();
+        return false;
+    }
+
+    /**
+     * Tells the client it was paired by {@link Matchmaker}, called by matchmaker thread.
+     */
+    void pushMatched(GameRoom gameRoom, UUID colorUUID) {
+        TimeControl timeControl = gameRoom.getTimeControl();
+        if (binary) {
+            ByteBuffer frame = BinaryProtocol.beginFrame(ByteBuffer.allocate(BinaryProtocol.MAX_FRAME_LENGTH), ROOM_JOINED);
+            BinaryProtocol.putUUID(frame, gameRoom.getRoomUUID());
+            BinaryProtocol.putUUID(frame, colorUUID);
+            frame.putShort((short) timeControl.getBaseMinutes()).putShort((short) timeControl.getIncrementSeconds());
+            BinaryProtocol.endFrame(frame);
+            pushChannel.push(Arrays.copyOf(frame.array(), frame.limit()), false);
+        } else {
+            pushChannel.push(encodeLine(ROOM_JOINED + " ROOM_ID=" + gameRoom.getRoomUUID()
+                    + " PLAYER_COLOR_ID=" + colorUUID + " TIME_CONTROL=" + timeControl), false);
+        }
+    }
+
+    private UUID enemyColorID(GameRoom gameRoom) {
+        return gameRoom.getWhiteUUID().equals(state.getColorID()) ? gameRoom.getBlackUUID() : gameRoom.getWhiteUUID();
+    }
+
+    private String subscribe() {
+        GameRoom gameRoom = currentRoom();
+        if (gameRoom == null) {
+            return ROOM_NOT_FOUND;
+        }
+        unsubscribe();
+        subscribedRoom = gameRoom;
+        gameRoom.addListener(stateUpdatePusher);
+        return SUBSCRIBE_OK;
+    }
+
+    private String leave() {
+        GameRoom gameRoom = currentRoom();
+        if (gameRoom == null) {
+            return ROOM_NOT_FOUND;
+        }
+        unsubscribe();
+        leaveRoom(gameRoom);
+        state.setRoomID(null);
+        state.setColorID(null);
+        return ROOM_LEFT;
+    }
+
+    private String requestADraw() {
+        GameRoom gameRoom = currentRoom();
+        if (gameRoom == null) {
+            return ROOM_NOT_FOUND;
+        }
+        return gameRoom.requestADraw(state.getColorID()) ? DRAW_OK : DRAW_FAIL;
+    }
+
+    private String cancelDrawRequest() {
+        GameRoom gameRoom = currentRoom();
+        if (gameRoom == null) {
+            return ROOM_NOT_FOUND;
         }
+        return gameRoom.cancelDrawRequest(state.getColorID()) ? DRAW_CANCEL_OK : DRAW_CANCEL_FAIL;
+    }
+
+    /**
+     * @return room client is in or null if room was removed by {@link RoomReaper} or the game was resumed by
+     * another connection - client is then moved out of the room, so it can join or create another one
+     */
+    private GameRoom currentRoom() {
+        GameRoom gameRoom = ServerState.gameRooms.get(state.getRoomID());
+        if (gameRoom == null || ServerState.players.get(state.getColorID()) != this) {
+            unsubscribe();
+            ServerState.players.remove(state.getColorID(), this);
+            state.setRoomID(null);
+            state.setColorID(null);
+            return null;
+        }
+        return gameRoom;
+    }
+
+    private void unsubscribe() {
+        if (subscribedRoom != null) {
+            subscribedRoom.removeListener(stateUpdatePusher);
+            subscribedRoom = null;
+        }
+    }
+
+    /**
+     * Starts watching the room instead of the one watched so far.
+     *
+     * @return watched room, null if it doesn't exist
+     */
+    private GameRoom watch(UUID roomUUID) {
+        unwatch();
+        GameRoom gameRoom = ServerState.gameRooms.get(roomUUID);
+        if (gameRoom == null) {
+            return null;
+        }
+        watchedGroup = SpectatorGroup.watch(gameRoom, this);
+        return watchedGroup != null ? gameRoom : null;
+    }
+
+    private void unwatch() {
+        if (watchedGroup != null) {
+            watchedGroup.unwatch(this);
+            watchedGroup = null;
+        }
+    }
+
+    /**
+     * Pushes state update encoded once for all spectators by {@link SpectatorGroup}, bytes are not modified.
+     */
+    void pushEncoded(byte[] line, byte[] frame) {
+        pushChannel.push(binary ? frame : line, true);
+    }
+
+    private void pushState(GameRoom gameRoom) {
+        if (binary) {
+            ByteBuffer frame = BinaryProtocol.stateFrame(
+                    ByteBuffer.allocate(BinaryProtocol.MAX_FRAME_LENGTH), STATE_UPDATE, gameRoom);
+            pushChannel.push(Arrays.copyOf(frame.array(), frame.limit()), true);
+        } else {
+            pushChannel.push(encodeLine(STATE_UPDATE + " " + gameRoom.getWholeRoomStateAsString()), true);
+        }
+    }
+
+    /**
+     * Encodes response into reused buffer - responses are ASCII, so chars are written as bytes.
+     */
+    private ByteBuffer encodeResponse(StringBuilder response) {
+        int length = response.length();
+        if (responseChars.length < length) {
+            responseChars = new char[Math.max(length, responseChars.length * 2)];
+        }
+        if (lineResponse.capacity() < length + LINE_SEPARATOR.length) {
+            lineResponse = ByteBuffer.allocate(Math.max(length + LINE_SEPARATOR.length, lineResponse.capacity() * 2));
+        }
+        response.getChars(0, length, responseChars, 0);
+        byte[] bytes = lineResponse.array();
+        int allChars = 0;
+        for (int i = 0; i < length; i++) {
+            char c = responseChars[i];
+            allChars |= c;
+            bytes[i] = (byte) c;
+        }
+        if (allChars >= 0x80) {
+            return ByteBuffer.wrap(encodeLine(response.toString()));
+        }
+        System.arraycopy(LINE_SEPARATOR, 0, bytes, length, LINE_SEPARATOR.length);
+        lineResponse.clear().limit(length + LINE_SEPARATOR.length);
+        return lineResponse;
+    }
+
+    static byte[] encodeLine(String line) {
+        byte[] bytes = line.getBytes(COMMUNICATION_CHARSET);
+        byte[] encoded = Arrays.copyOf(bytes, bytes.length + LINE_SEPARATOR.length);
+        System.arraycopy(LINE_SEPARATOR, 0, encoded, bytes.length, LINE_SEPARATOR.length);
+        return encoded;
+    }
+
+    /**
+     * Buffers bytes for the client, they are sent by {@link #flush()} or once buffer is full.
+     */
+    private void write(byte[] bytes, int offset, int length) throws IOException {
+        outputLock.lock();
+        try {
+            outputStream.write(bytes, offset, length);
+        } finally {
+            outputLock.unlock();
+        }
+    }
+
+    private void flush() throws IOException {
+        outputLock.lock();
+        try {
+            outputStream.flush();
+        } finally {
+            outputLock.unlock();
+        }
+    }
+
+    // unblocks the connection thread, which cleans up after the connection
+    private void closeSocket() {
+        try {
+            socket.close();
+        } catch (IOException ioException) {
+            log.warn("Error during connection close", ioException);
+        }
+    }
+
+    /**
+     * Sends messages which aren't responses to the client, called from any thread. It shouldn't block - rooms, timer
+     * and spectator broadcast push to many clients.
+     */
+    interface PushChannel {
+        /**
+         * @param stateUpdate message is a whole state of the room, so it can be dropped when newer one is pushed
+         */
+        void push(byte[] message, boolean stateUpdate);
     }
 }
@@ -0,0 +1,491 @@
+package wnukowski.damian.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import wnukowski.damian.game.GameJournal;
+import wnukowski.damian.game.GameRoom;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Several server processes sharing rooms. Every node is started with the same {@code clusterNodes} list of
+ * {@code host:port:clusterPort} entries (port for clients and port of the internal link) and with its own
+ * {@code host:port} as {@code clusterNode}. Room UUIDs are hashed onto a ring with {@code clusterVirtualNodes}
+ * points per node and the node of the next point clockwise owns the room. New rooms get only UUIDs owned by the
+ * creating node, {@code JOIN}, {@code RESUME} and {@code WATCH} of a room kept by another node are answered with
+ * {@code REDIRECT} to that node.
+ * <p>
+ * Nodes ping each other over the internal link every {@code clusterHeartbeatMillis}, node which misses
+ * {@code clusterMissedHeartbeats} pings in a row is down. Rooms of a node which is down belong to the next live node
+ * of the list. When journals of all nodes are kept in shared {@code clusterJournalRoot} directory, that node takes
+ * the rooms over from the journal of the lost node, and once the node is back the rooms are handed back through
+ * a file in its journal directory. Without shared journals rooms of a lost node are unavailable until it's back.
+ * <p>
+ * Missed pings don't prove the node is gone - it may be cut off by the network or paused. Journal is taken over
+ * only once its lock ({@link GameJournal#tryLock(Path)}) is acquired, which happens after the process holding it
+ * ends, so a node still serving its rooms is never robbed of its journal - its rooms are unavailable through other
+ * nodes until it ends or is reachable again. The shared directory must support file locks across machines
+ * (e.g. NFSv4).
+ */
+final class Cluster {
+    private static final Logger log = LoggerFactory.getLogger(Cluster.class);
+    // longest host which fits binary REDIRECT response: status code, port and host
+    static final int MAX_HOST_LENGTH = BinaryProtocol.MAX_FRAME_LENGTH - 2 - 1 - 2;
+    private static final String PING = "PING";
+    private static final String PONG = "PONG";
+    private static final String HAND_OVER_PREFIX = "handover-";
+    private static final String HAND_OVER_SUFFIX = ".dat";
+
+    // null when server runs alone
+    private static volatile Cluster current;
+
+    private final Node[] nodes;
+    private final Node self;
+    // points of the ring in ascending order and index of the node owning each point
+    private final long[] ringPoints;
+    private final int[] ringNodes;
+    private final long heartbeatMillis;
+    private final int maxMissedHeartbeats;
+    // null when rooms can't be moved between nodes
+    private final Path journalRoot;
+    private final ServerSocket linkSocket;
+
+    private Cluster(Node[] nodes, Node self, int virtualNodes, long heartbeatMillis, int maxMissedHeartbeats,
+                    Path journalRoot) throws IOException {
+        this.nodes = nodes;
+        this.self = self;
+        this.heartbeatMillis = heartbeatMillis;
+        this.maxMissedHeartbeats = maxMissedHeartbeats;
+        this.journalRoot = journalRoot;
+
+        List<long[]> points = new ArrayList<>(nodes.length * virtualNodes);
+        for (Node node : nodes) {
+            for (int i = 0; i < virtualNodes; i++) {
+                // name based uuid is the same on every node, so is the ring
+                UUID point = UUID.nameUUIDFromBytes((node + "#" + i).getBytes(StandardCharsets.UTF_8));
+                points.add(new long[]{hash(point), node.index});
+            }
+        }
+        points.sort(Comparator.comparingLong(point -> point[0]));
+        ringPoints = new long[points.size()];
+        ringNodes = new int[points.size()];
+        for (int i = 0; i < ringPoints.length; i++) {
+            ringPoints[i] = points.get(i)[0];
+            ringNodes[i] = (int) points.get(i)[1];
+        }
+        linkSocket = new ServerSocket(self.clusterPort);
+    }
+
+    /**
+     * Starts internal link of the node configured by {@code clusterNodes} and {@code clusterNode} properties,
+     * so other nodes see it alive while it recovers its journal. Pings are started by {@link #startHeartbeats()}.
+     *
+     * @param serverPort port of this server, it has to match {@code clusterNode}
+     * @return null if {@code clusterNodes} isn't set
+     * @throws IllegalArgumentException if the properties are invalid
+     */
+    static Cluster startFromProperties(int serverPort) throws IOException {
+        String nodeList = System.getProperty("clusterNodes");
+        if (nodeList == null) {
+            return null;
+        }
+        String selfAddress = System.getProperty("clusterNode");
+        String[] entries = nodeList.split(",");
+        Node[] nodes = new Node[entries.length];
+        Node self = null;
+        for (int i = 0; i < entries.length; i++) {
+            nodes[i] = Node.parse(i, entries[i].trim());
+            if (nodes[i].toString().equals(selfAddress)) {
+                self = nodes[i];
+            }
+        }
+        if (self == null || self.port != serverPort) {
+            throw new IllegalArgumentException("clusterNode [" + selfAddress + "] with port [" + serverPort
+                    + "] isn't on clusterNodes list [" + nodeList + "]");
+        }
+        String journalRoot = System.getProperty("clusterJournalRoot");
+        Cluster cluster = new Cluster(nodes, self,
+                Integer.getInteger("clusterVirtualNodes", 128),
+                Long.getLong("clusterHeartbeatMillis", 500),
+                Integer.getInteger("clusterMissedHeartbeats", 3),
+                journalRoot == null ? null : Paths.get(journalRoot));
+        Thread link = new Thread(cluster::runLink, "cluster-link");
+        link.setDaemon(true);
+        link.start();
+        current = cluster;
+        ServerState.ownsRoom = roomUUID -> cluster.route(roomUUID) == cluster.self;
+        log.info("Cluster node [{}] of [{}] nodes, internal link on port [{}]", self, nodes.length, self.clusterPort);
+        return cluster;
+    }
+
+    /**
+     * @return journal directory of this node in {@code clusterJournalRoot}, null if it isn't set
+     */
+    Path getJournalDirectory() {
+        return journalRoot == null ? null : journalRoot.resolve(self.directoryName());
+    }
+
+    /**
+     * Starts pinging other nodes, rooms are taken over and handed over by the heartbeat thread. Should be called
+     * once the journal is opened, so moved rooms are journaled.
+     */
+    void startHeartbeats() {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "cluster-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                heartbeat();
+            } catch (RuntimeException e) {
+                log.error("Cluster heartbeat failed", e);
+            }
+        }, heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return node the client should ask for the room instead of this one, null if the room is kept here,
+     * belongs here or server runs alone
+     */
+    static Node redirect(UUID roomUUID) {
+        Cluster cluster = current;
+        if (cluster == null || ServerState.gameRooms.containsKey(roomUUID)) {
+            return null;
+        }
+        Node node = cluster.route(roomUUID);
+        if (node == cluster.self) {
+            return null;
+        }
+        Metrics.recordRedirect();
+        return node;
+    }
+
+    /**
+     * @return number of nodes considered alive, this one included, 0 if server runs alone
+     */
+    static int liveNodes() {
+        Cluster cluster = current;
+        if (cluster == null) {
+            return 0;
+        }
+        int live = 0;
+        for (Node node : cluster.nodes) {
+            live += node.alive ? 1 : 0;
+        }
+        return live;
+    }
+
+    /**
+     * @return owner of the room on the ring or, when it's down, the next live node of the list
+     */
+    Node route(UUID roomUUID) {
+        int point = Arrays.binarySearch(ringPoints, hash(roomUUID));
+        if (point < 0) {
+            point = -point - 1;
+        }
+        int owner = ringNodes[point == ringPoints.length ? 0 : point];
+        return liveNodeFrom(owner);
+    }
+
+    private Node liveNodeFrom(int index) {
+        for (int i = 0; i < nodes.length; i++) {
+            Node node = nodes[(index + i) % nodes.length];
+            if (node.alive) {
+                return node;
+            }
+        }
+        return self;
+    }
+
+    private static long hash(UUID uuid) {
+        long hash = uuid.getMostSignificantBits() ^ Long.rotateLeft(uuid.getLeastSignificantBits(), 32);
+        hash = (hash ^ (hash >>> 33)) * 0xff51afd7ed558ccdL;
+        hash = (hash ^ (hash >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return hash ^ (hash >>> 33);
+    }
+
+    /**
+     * Answers pings of other nodes, one at a time - each takes a single line exchange.
+     */
+    private void runLink() {
+        while (!linkSocket.isClosed()) {
+            try (Socket socket = linkSocket.accept()) {
+                socket.setSoTimeout((int) heartbeatMillis);
+                BufferedReader input = new BufferedReader(
+                        new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+                if (PING.equals(input.readLine())) {
+                    OutputStream output = socket.getOutputStream();
+                    output.write((PONG + "\n").getBytes(StandardCharsets.US_ASCII));
+                    output.flush();
+                }
+            } catch (IOException e) {
+                log.debug("Cluster link connection failed", e);
+            }
+        }
+    }
+
+    private void heartbeat() {
+        boolean changed = false;
+        for (Node node : nodes) {
+            if (node == self) {
+                continue;
+            }
+            if (ping(node)) {
+                node.missedHeartbeats = 0;
+                node.journalLocked = false;
+                if (!node.alive) {
+                    node.alive = true;
+                    changed = true;
+                    log.info("Cluster node [{}] is up", node);
+                }
+            } else if (++node.missedHeartbeats >= maxMissedHeartbeats && node.alive) {
+                node.alive = false;
+                changed = true;
+                log.warn("Cluster node [{}] is down", node);
+            }
+        }
+        if (journalRoot == null) {
+            return;
+        }
+        // retried every heartbeat while the lost node still holds its journal
+        for (Node node : nodes) {
+            if (!node.alive && liveNodeFrom(node.index) == self) {
+                takeOver(node);
+            }
+        }
+        if (changed) {
+            handOver();
+        }
+        receiveHandedOver();
+    }
+
+    private boolean ping(Node node) {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(node.host, node.clusterPort), (int) heartbeatMillis);
+            socket.setSoTimeout((int) heartbeatMillis);
+            OutputStream output = socket.getOutputStream();
+            output.write((PING + "\n").getBytes(StandardCharsets.US_ASCII));
+            output.flush();
+            BufferedReader input = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+            return PONG.equals(input.readLine());
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Loads rooms from the journal of the lost node and moves its directory aside, so the node starts with empty
+     * journal when it's back and gets its rooms handed over instead of restoring stale ones. Nothing is done while
+     * the journal is locked by the node's process.
+     */
+    private void takeOver(Node lost) {
+        Path directory = journalRoot.resolve(lost.directoryName());
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        FileLock lock;
+        try {
+            lock = GameJournal.tryLock(directory);
+        } catch (IOException e) {
+            log.error("Can't lock journal of cluster node [{}]", lost, e);
+            return;
+        }
+        if (lock == null) {
+            if (!lost.journalLocked) {
+                lost.journalLocked = true;
+                log.warn("Cluster node [{}] doesn't answer, but still holds its journal - rooms aren't taken over",
+                        lost);
+            }
+            return;
+        }
+        lost.journalLocked = false;
+        try {
+            Map<UUID, GameRoom> rooms = new HashMap<>();
+            GameJournal.load(directory, rooms);
+            for (Path file : handedOverFiles(directory)) {
+                for (GameRoom room : GameJournal.readRooms(file)) {
+                    rooms.merge(room.getRoomUUID(), room, (first, second) ->
+                            first.getVersion() >= second.getVersion() ? first : second);
+                }
+            }
+            // the node can't open the journal while it is locked, after the move it starts with a new one
+            Files.move(directory, directory.resolveSibling(
+                    directory.getFileName() + ".taken-over-" + System.currentTimeMillis()));
+            log.info("Took over [{}] rooms of cluster node [{}]", addRooms(rooms.values()), lost);
+        } catch (IOException | RuntimeException e) {
+            log.error("Can't take over rooms of cluster node [{}]", lost, e);
+        } finally {
+            try {
+                lock.channel().close();
+            } catch (IOException e) {
+                log.warn("Can't unlock journal of cluster node [{}]", lost, e);
+            }
+        }
+    }
+
+    /**
+     * Moves rooms which belong to another live node to its journal directory. Rooms are removed before they are
+     * written, so no change is lost - if the file can't be written, rooms are handed over to this node instead
+     * and restored by the next heartbeat.
+     */
+    private void handOver() {
+        Map<Node, List<GameRoom>> moving = new HashMap<>();
+        for (GameRoom room : ServerState.gameRooms.values()) {
+            Node node = route(room.getRoomUUID());
+            if (node != self) {
+                moving.computeIfAbsent(node, key -> new ArrayList<>()).add(room);
+            }
+        }
+        for (Map.Entry<Node, List<GameRoom>> entry : moving.entrySet()) {
+            List<GameRoom> removed = new ArrayList<>();
+            for (GameRoom room : entry.getValue()) {
+                if (RoomReaper.evict(room.getRoomUUID(), room)) {
+                    removed.add(room);
+                }
+            }
+            if (!writeHandOver(entry.getKey(), removed) && !writeHandOver(self, removed)) {
+                log.error("[{}] rooms of cluster node [{}] are lost", removed.size(), entry.getKey());
+                continue;
+            }
+            log.info("Handed [{}] rooms over to cluster node [{}]", removed.size(), entry.getKey());
+        }
+    }
+
+    private boolean writeHandOver(Node node, List<GameRoom> rooms) {
+        Path directory = journalRoot.resolve(node.directoryName());
+        try {
+            Files.createDirectories(directory);
+            GameJournal.writeRooms(directory.resolve(HAND_OVER_PREFIX + self.directoryName() + "-"
+                    + System.currentTimeMillis() + HAND_OVER_SUFFIX), rooms);
+            return true;
+        } catch (IOException e) {
+            log.error("Can't hand rooms over to cluster node [{}]", node, e);
+            return false;
+        }
+    }
+
+    private void receiveHandedOver() {
+        Path directory = getJournalDirectory();
+        try {
+            for (Path file : handedOverFiles(directory)) {
+                int added = addRooms(GameJournal.readRooms(file));
+                Files.delete(file);
+                log.info("Received [{}] rooms from [{}]", added, file.getFileName());
+            }
+        } catch (IOException | RuntimeException e) {
+            log.error("Can't receive handed over rooms", e);
+        }
+    }
+
+    private static List<Path> handedOverFiles(Path directory) throws IOException {
+        List<Path> files = new ArrayList<>();
+        if (!Files.isDirectory(directory)) {
+            return files;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory,
+                HAND_OVER_PREFIX + "*" + HAND_OVER_SUFFIX)) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        return files;
+    }
+
+    /**
+     * @return number of rooms added, rooms already kept by this node are skipped
+     */
+    private static int addRooms(Collection<GameRoom> rooms) {
+        int added = 0;
+        for (GameRoom room : rooms) {
+            if (ServerState.gameRooms.putIfAbsent(room.getRoomUUID(), room) == null) {
+                AiPlayer.rejoin(room);
+                added++;
+            }
+        }
+        if (added > 0) {
+            // rooms aren't in this node's journal until its next snapshot
+            GameJournal.requestCurrentSnapshot();
+            Metrics.recordRoomsReceived(added);
+        }
+        return added;
+    }
+
+    /**
+     * Server of the cluster, {@code host:port} is the address given to clients.
+     */
+    static final class Node {
+        private final int index;
+        private final String host;
+        private final byte[] hostBytes;
+        private final int port;
+        private final int clusterPort;
+        // this node is always alive, others until they miss heartbeats
+        private volatile boolean alive = true;
+        // used by heartbeat thread only
+        private int missedHeartbeats;
+        private boolean journalLocked;
+
+        private Node(int index, String host, int port, int clusterPort) {
+            this.index = index;
+            this.host = host;
+            this.hostBytes = host.getBytes(StandardCharsets.UTF_8);
+            this.port = port;
+            this.clusterPort = clusterPort;
+        }
+
+        private static Node parse(int index, String entry) {
+            String[] parts = entry.split(":");
+            if (parts.length != 3) {
+                throw new IllegalArgumentException("Cluster node [" + entry + "] isn't host:port:clusterPort");
+            }
+            Node node = new Node(index, parts[0], Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+            if (node.hostBytes.length > MAX_HOST_LENGTH) {
+                throw new IllegalArgumentException("Host of cluster node [" + entry + "] is longer than "
+                        + MAX_HOST_LENGTH + " bytes");
+            }
+            return node;
+        }
+
+        byte[] getHostBytes() {
+            return hostBytes;
+        }
+
+        int getPort() {
+            return port;
+        }
+
+        private String directoryName() {
+            return host + "_" + port;
+        }
+
+        @Override
+        public String toString() {
+            return host + ":" + port;
+        }
+    }
+}
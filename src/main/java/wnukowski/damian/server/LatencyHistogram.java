@@ -0,0 +1,83 @@
+package wnukowski.damian.server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of durations in nanoseconds. As in HdrHistogram every power of two range is split into
+ * {@link #SUB_BUCKETS} linear buckets, so recorded values are kept with at most 12.5% error - up to about 68 seconds,
+ * longer durations are counted in the last bucket.
+ */
+final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 36;
+    static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder totalNanos = new LongAdder();
+
+    void record(long nanos) {
+        counts.incrementAndGet(bucket(nanos));
+        totalNanos.add(nanos);
+    }
+
+    /**
+     * @return copy of bucket counts, used by {@link #valueAt(long[], double)}
+     */
+    long[] counts() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+        }
+        return copy;
+    }
+
+    long getTotalNanos() {
+        return totalNanos.sum();
+    }
+
+    static long count(long[] counts) {
+        long count = 0;
+        for (long bucketCount : counts) {
+            count += bucketCount;
+        }
+        return count;
+    }
+
+    /**
+     * @return highest value of the bucket holding given quantile, 0 if nothing was recorded
+     */
+    static long valueAt(long[] counts, double quantile) {
+        long rank = (long) Math.ceil(quantile * count(counts));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank && seen > 0) {
+                return bucketUpperBound(i);
+            }
+        }
+        return 0;
+    }
+
+    static int bucket(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) Math.max(nanos, 0);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int shift = exponent - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((nanos >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    static long bucketUpperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long subBucket = SUB_BUCKETS + bucket % SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,196 @@
+package wnukowski.damian.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import wnukowski.damian.game.GameRoom;
+import wnukowski.damian.game.TimeControl;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Pairs clients waiting for an opponent ({@code QUEUE}). Clients are added to a queue of their time
+ * control, the matchmaker thread drains all queues every {@code matchmakingPeriodMillis} (20 by default) and pairs
+ * clients in order of arrival, so a burst of requests is paired in one batch. Queue of a time control is removed
+ * once nobody waits in it, so custom time controls don't accumulate. Both clients of a pair are joined to
+ * a new room before they get {@code ROOM_JOINED} push.
+ * <p>
+ * Queue is added only by {@link ConcurrentHashMap#compute} of a client and removed only by
+ * {@link ConcurrentHashMap#computeIfPresent} of the matchmaker thread when it is empty. Both run atomically for
+ * the time control, so a ticket is added either before removal - the queue isn't empty and stays - or after it,
+ * to a new queue drained in the next batch. The queue drained by a batch is always the mapped one: a client replaces
+ * nothing but a missing queue.
+ * <p>
+ * Clients are paired by time control only. Rating bands are left out on purpose - the server keeps no ratings.
+ */
+final class Matchmaker {
+    private static final Logger log = LoggerFactory.getLogger(Matchmaker.class);
+    private static final long periodMillis = Long.getLong("matchmakingPeriodMillis", 20);
+    private static final ConcurrentHashMap<TimeControl, Queue<Ticket>> queues = new ConcurrentHashMap<>();
+    // client left without opponent by previous batch, used only by matchmaker thread
+    private static final Map<TimeControl, Ticket> unpaired = new HashMap<>();
+
+    private static ScheduledExecutorService executor;
+
+    private Matchmaker() {
+    }
+
+    static Ticket enqueue(ClientHandler client, TimeControl timeControl) {
+        start();
+        Ticket ticket = new Ticket(client, timeControl);
+        // added inside compute, so it can't go to a queue being removed by matchmaker thread
+        queues.compute(timeControl, (key, queue) -> {
+            if (queue == null) {
+                queue = new ConcurrentLinkedQueue<>();
+            }
+            queue.add(ticket);
+            return queue;
+        });
+        return ticket;
+    }
+
+    private static synchronized void start() {
+        if (executor != null) {
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "matchmaker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                matchAll();
+            } catch (RuntimeException e) {
+                log.error("Matchmaking failed", e);
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Pairs all queued clients, called by the matchmaker thread.
+     */
+    static void matchAll() {
+        for (Map.Entry<TimeControl, Queue<Ticket>> entry : queues.entrySet()) {
+            match(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private static void match(TimeControl timeControl, Queue<Ticket> queue) {
+        Ticket waiting = unpaired.remove(timeControl);
+        Ticket next;
+        while ((next = queue.poll()) != null) {
+            if (waiting == null || !waiting.isWaiting()) {
+                waiting = next;
+            } else if (pair(waiting, next)) {
+                waiting = null;
+            } else if (!waiting.isWaiting()) {
+                waiting = next; // cancelled in the meantime, next might still wait
+            }
+        }
+        if (waiting != null && waiting.isWaiting()) {
+            unpaired.put(timeControl, waiting);
+        } else {
+            // drop queue of time control nobody waits for, unless a client was added in the meantime
+            queues.computeIfPresent(timeControl, (key, current) -> current.isEmpty() ? null : current);
+        }
+    }
+
+    /**
+     * Creates room for both clients and joins them, unless one of them left the queue.
+     *
+     * @return true if clients were paired
+     */
+    private static boolean pair(Ticket first, Ticket second) {
+        GameRoom room;
+        // tickets are locked only by their clients and this thread, so there is no lock ordering problem
+        first.lock.lock();
+        second.lock.lock();
+        try {
+            if (!first.isWaiting() || !second.isWaiting()) {
+                return false;
+            }
+            room = new GameRoom(first.timeControl);
+            boolean firstIsWhite = ThreadLocalRandom.current().nextBoolean();
+            first.matched(room, firstIsWhite ? room.getWhiteUUID() : room.getBlackUUID());
+            second.matched(room, firstIsWhite ? room.getBlackUUID() : room.getWhiteUUID());
+        } finally {
+            second.lock.unlock();
+            first.lock.unlock();
+        }
+        first.client.pushMatched(room, first.colorUUID);
+        second.client.pushMatched(room, second.colorUUID);
+        return true;
+    }
+
+    /**
+     * Place of a client in the queue.
+     */
+    static final class Ticket {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final ClientHandler client;
+        private final TimeControl timeControl;
+        // written under lock
+        private volatile boolean cancelled;
+        // set together once client is paired and joined to the room
+        private volatile GameRoom room;
+        private volatile UUID colorUUID;
+
+        private Ticket(ClientHandler client, TimeControl timeControl) {
+            this.client = client;
+            this.timeControl = timeControl;
+        }
+
+        private boolean isWaiting() {
+            return !cancelled && room == null;
+        }
+
+        private void matched(GameRoom room, UUID colorUUID) {
+            room.join(room.getRoomUUID(), colorUUID);
+            this.colorUUID = colorUUID;
+            this.room = room;
+        }
+
+        /**
+         * Removes client from the queue.
+         *
+         * @return false if client was already paired, then it is in {@link #getRoom()}
+         */
+        boolean cancel() {
+            lock.lock();
+            try {
+                if (room != null) {
+                    return false;
+                }
+                cancelled = true;
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * @return room client was paired into, null while waiting
+         */
+        GameRoom getRoom() {
+            return room;
+        }
+
+        UUID getColorUUID() {
+            return colorUUID;
+        }
+
+        TimeControl getTimeControl() {
+            return timeControl;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package wnukowski.damian.server;
+
+import wnukowski.damian.game.GameRoom;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms of the whole server, always on - recording is a few lock-free increments, the
+ * cost is paid by {@link #writePrometheus(StringBuilder)} when metrics are scraped.
+ */
+final class Metrics {
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final TextCommand.Opcode[] OPCODES = TextCommand.Opcode.values();
+
+    private static final LongAdder connectionsOpened = new LongAdder();
+    private static final LongAdder connectionsClosed = new LongAdder();
+    private static final LongAdder movesAccepted = new LongAdder();
+    private static final LongAdder movesRejected = new LongAdder();
+    private static final LongAdder spectators = new LongAdder();
+    private static final LongAdder aiSearches = new LongAdder();
+    private static final LongAdder aiNodes = new LongAdder();
+    private static final LongAdder aiFallbacks = new LongAdder();
+    private static final LongAdder clusterRedirects = new LongAdder();
+    private static final LongAdder clusterRoomsReceived = new LongAdder();
+    // indexed by opcode ordinal, text and binary requests together
+    private static final LatencyHistogram[] requestDurations = new LatencyHistogram[OPCODES.length];
+
+    static {
+        for (int i = 0; i < requestDurations.length; i++) {
+            requestDurations[i] = new LatencyHistogram();
+        }
+    }
+
+    private Metrics() {
+    }
+
+    static void connectionOpened() {
+        connectionsOpened.increment();
+    }
+
+    static void connectionClosed() {
+        connectionsClosed.increment();
+    }
+
+    static void spectatorAdded() {
+        spectators.increment();
+    }
+
+    static void spectatorRemoved() {
+        spectators.decrement();
+    }
+
+    static void recordMove(boolean accepted) {
+        (accepted ? movesAccepted : movesRejected).increment();
+    }
+
+    static void recordAiSearch(long nodes) {
+        aiSearches.increment();
+        aiNodes.add(nodes);
+    }
+
+    static void recordAiFallback() {
+        aiFallbacks.increment();
+    }
+
+    static void recordRedirect() {
+        clusterRedirects.increment();
+    }
+
+    static void recordRoomsReceived(int rooms) {
+        clusterRoomsReceived.add(rooms);
+    }
+
+    static void recordRequest(TextCommand.Opcode opcode, long durationNanos) {
+        requestDurations[opcode.ordinal()].record(durationNanos);
+    }
+
+    /**
+     * Appends all metrics in Prometheus text exposition format.
+     */
+    static void writePrometheus(StringBuilder out) {
+        long opened = connectionsOpened.sum();
+        header(out, "checkers_connections_active", "gauge", "Currently connected clients.");
+        sample(out, "checkers_connections_active", null, opened - connectionsClosed.sum());
+        header(out, "checkers_connections_total", "counter", "Accepted connections since start.");
+        sample(out, "checkers_connections_total", null, opened);
+
+        header(out, "checkers_spectators", "gauge", "Clients watching a room.");
+        sample(out, "checkers_spectators", null, spectators.sum());
+
+        header(out, "checkers_rooms", "gauge", "Rooms kept in memory.");
+        sample(out, "checkers_rooms", null, ServerState.gameRooms.mappingCount());
+        header(out, "checkers_rooms_evicted_total", "counter", "Rooms removed by the room reaper.");
+        sample(out, "checkers_rooms_evicted_total", "reason=\"finished\"", RoomReaper.getEvictedFinished());
+        sample(out, "checkers_rooms_evicted_total", "reason=\"idle\"", RoomReaper.getEvictedIdle());
+        sample(out, "checkers_rooms_evicted_total", "reason=\"over_limit\"", RoomReaper.getEvictedOverLimit());
+
+        header(out, "checkers_moves_total", "counter", "Moves answered with MOVE_OK or MOVE_FAIL.");
+        sample(out, "checkers_moves_total", "result=\"accepted\"", movesAccepted.sum());
+        sample(out, "checkers_moves_total", "result=\"rejected\"", movesRejected.sum());
+
+        header(out, "checkers_room_lock_waits_total", "counter",
+                "Room lock acquisitions which had to wait for another thread.");
+        sample(out, "checkers_room_lock_waits_total", null, GameRoom.getLockWaits());
+        header(out, "checkers_room_lock_wait_seconds_total", "counter", "Time spent waiting for room locks.");
+        sample(out, "checkers_room_lock_wait_seconds_total", null, seconds(GameRoom.getLockWaitNanos()));
+
+        header(out, "checkers_ai_searches_total", "counter", "Moves searched by the computer player.");
+        sample(out, "checkers_ai_searches_total", null, aiSearches.sum());
+        header(out, "checkers_ai_nodes_total", "counter", "Positions visited by searches of the computer player.");
+        sample(out, "checkers_ai_nodes_total", null, aiNodes.sum());
+        header(out, "checkers_ai_fallback_moves_total", "counter",
+                "Moves played without search because AI worker queue was full.");
+        sample(out, "checkers_ai_fallback_moves_total", null, aiFallbacks.sum());
+
+        header(out, "checkers_cluster_nodes_up", "gauge", "Cluster nodes considered alive, 0 when not clustered.");
+        sample(out, "checkers_cluster_nodes_up", null, Cluster.liveNodes());
+        header(out, "checkers_cluster_redirects_total", "counter", "Requests answered with REDIRECT to another node.");
+        sample(out, "checkers_cluster_redirects_total", null, clusterRedirects.sum());
+        header(out, "checkers_cluster_rooms_received_total", "counter",
+                "Rooms taken over from a lost node or handed over by another node.");
+        sample(out, "checkers_cluster_rooms_received_total", null, clusterRoomsReceived.sum());
+
+        header(out, "checkers_jvm_threads", "gauge", "Live threads of the server JVM.");
+        sample(out, "checkers_jvm_threads", null, ManagementFactory.getThreadMXBean().getThreadCount());
+        header(out, "checkers_jvm_heap_used_bytes", "gauge", "Used heap of the server JVM, including garbage.");
+        sample(out, "checkers_jvm_heap_used_bytes", null,
+                ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+
+        header(out, "checkers_request_duration_seconds", "summary",
+                "Time from parsed request to encoded response, since start.");
+        for (TextCommand.Opcode opcode : OPCODES) {
+            LatencyHistogram histogram = requestDurations[opcode.ordinal()];
+            long[] counts = histogram.counts();
+            long count = LatencyHistogram.count(counts);
+            if (count == 0) {
+                continue;
+            }
+            String command = "command=\"" + opcode + "\"";
+            for (double quantile : QUANTILES) {
+                sample(out, "checkers_request_duration_seconds", command + ",quantile=\"" + quantile + "\"",
+                        seconds(LatencyHistogram.valueAt(counts, quantile)));
+            }
+            sample(out, "checkers_request_duration_seconds_sum", command, seconds(histogram.getTotalNanos()));
+            sample(out, "checkers_request_duration_seconds_count", command, count);
+        }
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, long value) {
+        sampleName(out, name, labels).append(value).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, double value) {
+        sampleName(out, name, labels).append(value).append('\n');
+    }
+
+    private static StringBuilder sampleName(StringBuilder out, String name, String labels) {
+        out.append(name);
+        if (labels != null) {
+            out.append('{').append(labels).append('}');
+        }
+        return out.append(' ');
+    }
+
+    private static double seconds(long nanos) {
+        return nanos / (double) TimeUnit.SECONDS.toNanos(1);
+    }
+}
@@ -0,0 +1,64 @@
+package wnukowski.damian.server;
+
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+
+/**
+ * Plain HTTP endpoint serving {@link Metrics} at {@code /metrics} for Prometheus. Enabled by
+ * {@code -DmetricsPort}, listens only on {@code metricsHost} (127.0.0.1 by default) - it isn't protected by TLS.
+ */
+final class MetricsEndpoint {
+    private static final Logger log = LoggerFactory.getLogger(MetricsEndpoint.class);
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private MetricsEndpoint() {
+    }
+
+    /**
+     * Starts the endpoint if {@code metricsPort} is set. Failure is logged only, the game server works without it.
+     */
+    static void startFromProperties() {
+        Integer port = Integer.getInteger("metricsPort");
+        if (port == null) {
+            return;
+        }
+        String host = System.getProperty("metricsHost", "127.0.0.1");
+        try {
+            HttpServer server = HttpServer.create(new InetSocketAddress(host, port), 0);
+            server.createContext("/metrics", exchange -> {
+                try {
+                    if (!exchange.getRequestMethod().equals("GET")) {
+                        exchange.sendResponseHeaders(405, -1);
+                        return;
+                    }
+                    StringBuilder metrics = new StringBuilder(4096);
+                    Metrics.writePrometheus(metrics);
+                    byte[] body = metrics.toString().getBytes(StandardCharsets.UTF_8);
+                    exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+                    exchange.sendResponseHeaders(200, body.length);
+                    try (OutputStream responseBody = exchange.getResponseBody()) {
+                        responseBody.write(body);
+                    }
+                } finally {
+                    exchange.close();
+                }
+            });
+            server.setExecutor(Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "metrics-endpoint");
+                thread.setDaemon(true);
+                return thread;
+            }));
+            server.start();
+            log.info("Metrics available at http://{}:{}/metrics", host, port);
+        } catch (IOException | RuntimeException e) {
+            log.error("Can't start metrics endpoint, server runs without it", e);
+        }
+    }
+}
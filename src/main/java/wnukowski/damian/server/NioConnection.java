@@ -0,0 +1,460 @@
+package wnukowski.damian.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.function.Supplier;
+
+/**
+ * Single TLS connection served by {@link NioServer.EventLoop}. All methods must be called from the event loop
+ * thread owning the connection. Decrypted input is split into lines (\n, \r or \r\n, as in
+ * {@link java.io.BufferedReader#readLine()}) which are passed to {@link ClientHandler#processLine(byte[], int, int)},
+ * or into frames passed to {@link ClientHandler#processFrame(ByteBuffer)} if the client chose
+ * {@link BinaryProtocol}.
+ * <p>
+ * Output waiting for the client is limited to about {@code maxPendingOutputBytes} (256 KiB by default). Requests
+ * aren't processed while the limit is exceeded, pushed state update waits for space, replaced by newer one if it
+ * comes, and other pushed message closes the connection - client which doesn't read can't fill the heap.
+ */
+class NioConnection {
+    private static final Logger log = LoggerFactory.getLogger(NioConnection.class);
+    private static final int PROTOCOL_UNKNOWN = 0;
+    private static final int PROTOCOL_TEXT = 1;
+    private static final int PROTOCOL_BINARY = 2;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    private static final int MAX_PENDING_OUTPUT = Integer.getInteger("maxPendingOutputBytes", 256 * 1024);
+
+    private final NioServer.EventLoop eventLoop;
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final ClientHandler handler = new ClientHandler(this::push, this::readDisk);
+    private SelectionKey key;
+
+    // all buffers are kept in write mode between calls
+    private ByteBuffer netIn;
+    private ByteBuffer appIn;
+    private ByteBuffer netOut;
+    private ByteBuffer appOut;
+
+    // chosen by first byte sent by the client
+    private int protocol = PROTOCOL_UNKNOWN;
+    private boolean binaryVersionRead = false;
+    // line or frames being received
+    private byte[] line = new byte[128];
+    private int lineLength = 0;
+    private boolean skipLineFeed = false;
+    private boolean closeAfterFlush = false;
+    private boolean closed = false;
+    // delegated handshake tasks run on handshake pool, input isn't read until they finish
+    private boolean handshakeTasksRunning = false;
+    // request reading the disk runs on disk read pool, following requests wait for its response
+    private boolean awaitingResponse = false;
+    // latest pushed state update which didn't fit into output, null if none
+    private byte[] heldStateUpdate;
+
+    NioConnection(NioServer.EventLoop eventLoop, SocketChannel channel, SSLEngine engine) {
+        this.eventLoop = eventLoop;
+        this.channel = channel;
+        this.engine = engine;
+        int packetSize = engine.getSession().getPacketBufferSize();
+        int applicationSize = engine.getSession().getApplicationBufferSize();
+        this.netIn = ByteBuffer.allocate(packetSize);
+        this.netOut = ByteBuffer.allocate(packetSize);
+        this.appIn = ByteBuffer.allocate(applicationSize);
+        this.appOut = ByteBuffer.allocate(1024);
+        Metrics.connectionOpened();
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    void beginHandshake() throws SSLException {
+        engine.beginHandshake();
+    }
+
+    void handle(SelectionKey key) {
+        try {
+            if (key.isReadable()) {
+                read();
+            }
+            if (!closed && key.isWritable()) {
+                boolean inputPaused = outputFull();
+                flush();
+                if (inputPaused && !outputFull() && !closed) {
+                    processBufferedInput(); // requests received before the output was full
+                }
+            }
+        } catch (IOException ioException) {
+            log.error("IO EXCEPTION, connection closing", ioException);
+            close();
+        }
+    }
+
+    private void read() throws IOException {
+        int read = channel.read(netIn);
+        if (read < 0) {
+            try {
+                engine.closeInbound();
+            } catch (SSLException ignored) {
+                // peer didn't send close_notify, connection is closed anyway
+            }
+            close();
+            return;
+        }
+        processBufferedInput();
+    }
+
+    private void unwrap() throws IOException {
+        netIn.flip();
+        try {
+            while (netIn.hasRemaining() && !closeAfterFlush && !handshakeTasksRunning && !awaitingResponse
+                    && !outputFull()) {
+                SSLEngineResult result = engine.unwrap(netIn, appIn);
+                switch (result.getStatus()) {
+                    case BUFFER_OVERFLOW:
+                        appIn = enlarge(appIn, engine.getSession().getApplicationBufferSize());
+                        continue;
+                    case BUFFER_UNDERFLOW:
+                        if (netIn.remaining() == netIn.capacity()) {
+                            // record bigger than buffer, keep buffer in read mode for compact in finally block
+                            ByteBuffer bigger = ByteBuffer.allocate(
+                                    Math.max(netIn.capacity() * 2, engine.getSession().getPacketBufferSize()));
+                            bigger.put(netIn).flip();
+                            netIn = bigger;
+                        }
+                        return;
+                    case CLOSED:
+                        closeAfterFlush = true;
+                        return;
+                    default:
+                        break;
+                }
+                processApplicationData();
+                handleHandshake();
+                if (result.bytesConsumed() == 0 && result.bytesProduced() == 0
+                        && engine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NEED_UNWRAP) {
+                    return;
+                }
+            }
+        } finally {
+            netIn.compact();
+        }
+    }
+
+    private void handleHandshake() throws IOException {
+        while (true) {
+            switch (engine.getHandshakeStatus()) {
+                case NEED_TASK:
+                    if (!handshakeTasksRunning) {
+                        handshakeTasksRunning = true;
+                        eventLoop.runHandshakeTasks(engine, this::handshakeTasksFinished);
+                    }
+                    return;
+                case NEED_WRAP:
+                    SSLEngineResult result = engine.wrap(EMPTY, netOut);
+                    if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                        netOut = enlarge(netOut, engine.getSession().getPacketBufferSize());
+                    } else if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                        return;
+                    }
+                    break;
+                default:
+                    return;
+            }
+        }
+    }
+
+    private void handshakeTasksFinished() {
+        handshakeTasksRunning = false;
+        if (closed) {
+            return;
+        }
+        try {
+            handleHandshake();
+            unwrap(); // input received before the tasks were started
+            flush();
+        } catch (IOException ioException) {
+            log.error("IO EXCEPTION, connection closing", ioException);
+            close();
+        }
+    }
+
+    private void processApplicationData() {
+        appIn.flip();
+        if (protocol == PROTOCOL_UNKNOWN && appIn.hasRemaining()) {
+            protocol = (appIn.get(appIn.position()) & 0xFF) == BinaryProtocol.MAGIC ? PROTOCOL_BINARY : PROTOCOL_TEXT;
+        }
+        if (protocol == PROTOCOL_BINARY) {
+            processFrames();
+        } else {
+            processLines();
+        }
+        appIn.compact();
+    }
+
+    private void processLines() {
+        while (appIn.hasRemaining() && !closeAfterFlush && !awaitingResponse && !outputFull()) {
+            byte b = appIn.get();
+            if (skipLineFeed) {
+                skipLineFeed = false;
+                if (b == '\n') {
+                    continue;
+                }
+            }
+            if (b == '\n' || b == '\r') {
+                skipLineFeed = b == '\r';
+                onLine();
+                lineLength = 0;
+                continue;
+            }
+            if (lineLength == line.length) {
+                if (lineLength >= ClientHandler.MAX_LINE_LENGTH) {
+                    log.warn("Line too long, connection closing");
+                    closeAfterFlush = true;
+                    break;
+                }
+                line = Arrays.copyOf(line, line.length * 2);
+            }
+            line[lineLength++] = b;
+        }
+    }
+
+    private void processFrames() {
+        // frames left in the buffer while awaiting response are processed even if nothing new arrived
+        do {
+            int count = Math.min(appIn.remaining(), line.length - lineLength);
+            if (count == 0 && appIn.hasRemaining()) {
+                // buffer holds less than one whole frame, frames are limited so it grows only few times
+                line = Arrays.copyOf(line, line.length * 2);
+                continue;
+            }
+            appIn.get(line, lineLength, count);
+            lineLength += count;
+            int offset = 0;
+            if (!binaryVersionRead) {
+                if (lineLength < 2) {
+                    continue;
+                }
+                binaryVersionRead = true;
+                offset = 2;
+                if (!handler.startBinary(line[1] & 0xFF)) {
+                    closeAfterFlush = true;
+                    return;
+                }
+            }
+            while (lineLength - offset >= 2 && !closeAfterFlush && !awaitingResponse && !outputFull()) {
+                int length = ((line[offset] & 0xFF) << 8) | (line[offset + 1] & 0xFF);
+                if (length == 0 || length > BinaryProtocol.MAX_REQUEST_LENGTH) {
+                    log.warn("Invalid binary frame length [{}], connection closing", length);
+                    closeAfterFlush = true;
+                    return;
+                }
+                if (lineLength - offset - 2 < length) {
+                    break;
+                }
+                onFrame(ByteBuffer.wrap(line, offset + 2, length));
+                offset += 2 + length;
+            }
+            System.arraycopy(line, offset, line, 0, lineLength - offset);
+            lineLength -= offset;
+        } while (appIn.hasRemaining() && !closeAfterFlush && !awaitingResponse && !outputFull());
+    }
+
+    private void onFrame(ByteBuffer request) {
+        ByteBuffer response = handler.processFrame(request);
+        if (response != null) {
+            send(response.array(), 0, response.limit());
+        }
+        if (!handler.isRunning()) {
+            closeAfterFlush = true;
+        }
+    }
+
+    private void onLine() {
+        ByteBuffer response = handler.processLine(line, 0, lineLength);
+        if (response != null) {
+            send(response.array(), 0, response.limit());
+        }
+        if (!handler.isRunning()) {
+            closeAfterFlush = true;
+        }
+    }
+
+    /**
+     * Sends encoded line or frame from any thread, it is written by the event loop.
+     */
+    private void push(byte[] message, boolean stateUpdate) {
+        eventLoop.execute(() -> {
+            if (closed) {
+                return;
+            }
+            int held = heldStateUpdate == null ? 0 : heldStateUpdate.length;
+            if (stateUpdate && (held > 0 || appOut.position() + message.length > MAX_PENDING_OUTPUT)) {
+                heldStateUpdate = message; // sent by flush() once there is space, state is sent whole
+                return;
+            }
+            if (appOut.position() + held + message.length > MAX_PENDING_OUTPUT) {
+                log.warn("Client doesn't read pushed messages, connection closing");
+                close();
+                return;
+            }
+            if (heldStateUpdate != null) {
+                send(heldStateUpdate, 0, heldStateUpdate.length); // keeps order of pushes
+                heldStateUpdate = null;
+            }
+            send(message, 0, message.length);
+            try {
+                flush();
+            } catch (IOException ioException) {
+                log.error("IO EXCEPTION, connection closing", ioException);
+                close();
+            }
+        });
+    }
+
+    /**
+     * Reads the disk on disk read pool, called by the handler instead of responding. Input isn't processed until
+     * the response is sent, so responses stay in order of requests.
+     */
+    private void readDisk(Supplier<byte[]> response) {
+        awaitingResponse = true;
+        eventLoop.readDisk(response, this::diskReadFinished);
+    }
+
+    private void diskReadFinished(byte[] response) {
+        awaitingResponse = false;
+        if (closed) {
+            return;
+        }
+        send(response, 0, response.length);
+        if (!handler.isRunning()) {
+            closeAfterFlush = true;
+        }
+        try {
+            processBufferedInput(); // requests received while the disk was read
+        } catch (IOException ioException) {
+            log.error("IO EXCEPTION, connection closing", ioException);
+            close();
+        }
+    }
+
+    // processes input until it's all done or output waits for the client to read
+    private void processBufferedInput() throws IOException {
+        boolean outputWasFull;
+        do {
+            processApplicationData();
+            unwrap();
+            outputWasFull = outputFull();
+            flush();
+        } while (outputWasFull && !outputFull() && !closed);
+    }
+
+    private boolean outputFull() {
+        return appOut.position() >= MAX_PENDING_OUTPUT;
+    }
+
+    private void send(byte[] bytes, int offset, int length) {
+        if (appOut.remaining() < length) {
+            appOut = enlarge(appOut, appOut.position() + length);
+        }
+        appOut.put(bytes, offset, length);
+    }
+
+    private void flush() throws IOException {
+        if (heldStateUpdate != null
+                && (appOut.position() == 0 || appOut.position() + heldStateUpdate.length <= MAX_PENDING_OUTPUT)) {
+            send(heldStateUpdate, 0, heldStateUpdate.length);
+            heldStateUpdate = null;
+        }
+        if (engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+            appOut.flip();
+            try {
+                while (appOut.hasRemaining()) {
+                    SSLEngineResult result = engine.wrap(appOut, netOut);
+                    if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                        if (!writeNetOut()) {
+                            break; // socket buffer is full, continue when channel becomes writable
+                        }
+                        if (netOut.position() == 0 && netOut.capacity() < engine.getSession().getPacketBufferSize()) {
+                            netOut = enlarge(netOut, engine.getSession().getPacketBufferSize());
+                        }
+                    } else if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                        break;
+                    }
+                }
+            } finally {
+                appOut.compact();
+            }
+        }
+
+        boolean everythingWritten = writeNetOut();
+        if (everythingWritten && appOut.position() == 0 && heldStateUpdate != null) {
+            flush(); // held state update didn't fit before the output was written
+            return;
+        }
+        if (closeAfterFlush && everythingWritten && appOut.position() == 0) {
+            close();
+            return;
+        }
+        int interestOps = handshakeTasksRunning || awaitingResponse || outputFull() ? 0 : SelectionKey.OP_READ;
+        key.interestOps(everythingWritten ? interestOps : interestOps | SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * @return true if all encrypted data was written to the socket
+     */
+    private boolean writeNetOut() throws IOException {
+        netOut.flip();
+        try {
+            channel.write(netOut);
+            return !netOut.hasRemaining();
+        } finally {
+            netOut.compact();
+        }
+    }
+
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        Metrics.connectionClosed();
+        log.info("Closing socket connection");
+        try {
+            handler.disconnect();
+        } catch (Throwable e) {
+            log.warn("Error during leaving the room", e);
+        }
+        try {
+            engine.closeOutbound();
+            handleHandshake(); // produces close_notify
+            writeNetOut();
+        } catch (IOException ignored) {
+            // best effort, peer might be already gone
+        }
+        try {
+            if (key != null) {
+                key.cancel();
+            }
+            channel.close();
+        } catch (IOException ioException) {
+            log.warn("Error during connection close", ioException);
+        }
+    }
+
+    private static ByteBuffer enlarge(ByteBuffer buffer, int minimalCapacity) {
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, minimalCapacity));
+        buffer.flip();
+        bigger.put(buffer);
+        return bigger;
+    }
+}
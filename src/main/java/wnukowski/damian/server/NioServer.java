@@ -0,0 +1,194 @@
+package wnukowski.damian.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Selector based server. Accepting is done by the thread calling {@link #run()}, accepted connections are
+ * distributed round robin between fixed number of event loops, each owning single {@link Selector}.
+ * TLS is handled by {@link SSLEngine} per connection, see {@link NioConnection}. CPU heavy parts of TLS handshakes
+ * (delegated tasks of the engine) run on a separate bounded pool, so a burst of (re)connecting clients doesn't stall
+ * event loops serving clients already connected. When the pool queue is full the task runs on the event loop.
+ * Requests reading the disk ({@code GET_GAME}) run on another small pool in the same way.
+ */
+public class NioServer {
+    private static final Logger log = LoggerFactory.getLogger(NioServer.class);
+
+    private static final int HANDSHAKE_QUEUE_SIZE = 1024;
+    private static final int DISK_READ_QUEUE_SIZE = 1024;
+
+    private final int port;
+    private final SSLContext sslContext;
+    private final EventLoop[] eventLoops;
+    private final Executor handshakeExecutor;
+    private final Executor diskReadExecutor;
+
+    public NioServer(int port, SSLContext sslContext, int eventLoopCount) {
+        this(port, sslContext, eventLoopCount, eventLoopCount, 2);
+    }
+
+    public NioServer(int port, SSLContext sslContext, int eventLoopCount, int handshakeThreads,
+                     int diskReadThreads) {
+        this.port = port;
+        this.sslContext = sslContext;
+        this.eventLoops = new EventLoop[Math.max(1, eventLoopCount)];
+        this.handshakeExecutor = newExecutor("tls-handshake-", Math.max(1, handshakeThreads), HANDSHAKE_QUEUE_SIZE);
+        this.diskReadExecutor = newExecutor("disk-read-", Math.max(1, diskReadThreads), DISK_READ_QUEUE_SIZE);
+    }
+
+    private static Executor newExecutor(String namePrefix, int threads, int queueSize) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueSize), runnable -> {
+            Thread thread = new Thread(runnable, namePrefix + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    public void run() throws IOException {
+        for (int i = 0; i < eventLoops.length; i++) {
+            eventLoops[i] = new EventLoop(Selector.open(), handshakeExecutor, diskReadExecutor);
+            Thread thread = new Thread(eventLoops[i], "nio-event-loop-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
+            int next = 0;
+            while (serverChannel.isOpen()) {
+                SocketChannel channel = serverChannel.accept();
+                log.info("Connected with socket {}", channel.getRemoteAddress());
+                try {
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+                    SSLEngine engine = sslContext.createSSLEngine();
+                    engine.setUseClientMode(false);
+                    EventLoop eventLoop = eventLoops[next];
+                    next = (next + 1) % eventLoops.length;
+                    eventLoop.register(channel, engine);
+                } catch (IOException e) {
+                    log.warn("Can't register accepted connection", e);
+                    channel.close();
+                }
+            }
+        }
+    }
+
+    static class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final Executor handshakeExecutor;
+        private final Executor diskReadExecutor;
+
+        EventLoop(Selector selector, Executor handshakeExecutor, Executor diskReadExecutor) {
+            this.selector = selector;
+            this.handshakeExecutor = handshakeExecutor;
+            this.diskReadExecutor = diskReadExecutor;
+        }
+
+        void register(SocketChannel channel, SSLEngine engine) {
+            execute(() -> {
+                try {
+                    NioConnection connection = new NioConnection(this, channel, engine);
+                    connection.setKey(channel.register(selector, SelectionKey.OP_READ, connection));
+                    connection.beginHandshake();
+                } catch (IOException e) {
+                    log.warn("Can't register connection in selector", e);
+                    closeQuietly(channel);
+                }
+            });
+        }
+
+        /**
+         * Runs delegated tasks of the engine on the handshake pool, finished is run on this event loop afterwards.
+         */
+        void runHandshakeTasks(SSLEngine engine, Runnable finished) {
+            handshakeExecutor.execute(() -> {
+                try {
+                    Runnable task;
+                    while ((task = engine.getDelegatedTask()) != null) {
+                        task.run();
+                    }
+                } finally {
+                    execute(finished);
+                }
+            });
+        }
+
+        /**
+         * Gets response on the disk read pool, finished gets it on this event loop afterwards. Response must not
+         * throw.
+         */
+        void readDisk(Supplier<byte[]> response, Consumer<byte[]> finished) {
+            diskReadExecutor.execute(() -> {
+                byte[] bytes = response.get();
+                execute(() -> finished.accept(bytes));
+            });
+        }
+
+        /**
+         * Runs task on the event loop thread, safe to call from any thread.
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (selector.isOpen()) {
+                try {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        NioConnection connection = (NioConnection) key.attachment();
+                        if (!key.isValid()) {
+                            connection.close();
+                            continue;
+                        }
+                        connection.handle(key);
+                    }
+                } catch (Throwable e) {
+                    log.error("Unexpected error in event loop", e);
+                }
+            }
+        }
+
+        private static void closeQuietly(SocketChannel channel) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // nothing to do, connection is dropped anyway
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package wnukowski.damian.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Messages pushed to a connection served by its own thread ({@code blocking}, {@code virtual} and {@code bounded}
+ * modes). They are written by the writer of the connection, started with the first push, so threads changing rooms,
+ * the flag timer and the spectator broadcast only enqueue - a client which doesn't read blocks only its own writer.
+ * <p>
+ * At most {@code maxPushQueue} messages (64 by default) wait for the writer. When the queue is full, a state update
+ * replaces the state updates already queued - state is sent whole, so the client only skips versions - and any other
+ * message closes the connection.
+ */
+final class PushQueue implements ClientHandler.PushChannel {
+    private static final Logger log = LoggerFactory.getLogger(PushQueue.class);
+    private static final int MAX_QUEUED = Integer.getInteger("maxPushQueue", 64);
+
+    private final Output output;
+    private final Executor writers;
+    private final Runnable closeConnection;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    // following fields are guarded by lock
+    private final ArrayDeque<Message> messages = new ArrayDeque<>();
+    private boolean writerStarted = false;
+    private boolean closed = false;
+
+    /**
+     * @param output          writes message to the connection, may block
+     * @param writers         runs the writer, which stays until the queue is closed
+     * @param closeConnection called when the queue overflows
+     */
+    PushQueue(Output output, Executor writers, Runnable closeConnection) {
+        this.output = output;
+        this.writers = writers;
+        this.closeConnection = closeConnection;
+    }
+
+    @Override
+    public void push(byte[] message, boolean stateUpdate) {
+        boolean startWriter = false;
+        boolean overflow = false;
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            if (messages.size() >= MAX_QUEUED && !(stateUpdate && messages.removeIf(queued -> queued.stateUpdate))) {
+                overflow = true;
+                closed = true;
+                messages.clear();
+                notEmpty.signal();
+            } else {
+                messages.add(new Message(message, stateUpdate));
+                notEmpty.signal();
+                startWriter = !writerStarted;
+                writerStarted = true;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (overflow) {
+            log.warn("Client doesn't read pushed messages, connection closing");
+            closeConnection.run();
+        } else if (startWriter) {
+            writers.execute(this::runWriter);
+        }
+    }
+
+    /**
+     * Drops queued messages and stops the writer once it finishes message being written.
+     */
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            messages.clear();
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void runWriter() {
+        while (true) {
+            Message message;
+            lock.lock();
+            try {
+                while (messages.isEmpty() && !closed) {
+                    notEmpty.awaitUninterruptibly();
+                }
+                if (closed) {
+                    return;
+                }
+                message = messages.poll();
+            } finally {
+                lock.unlock();
+            }
+            try {
+                output.write(message.bytes);
+            } catch (IOException ioException) {
+                log.warn("Can't push message to the client", ioException);
+            }
+        }
+    }
+
+    interface Output {
+        void write(byte[] message) throws IOException;
+    }
+
+    private static final class Message {
+        private final byte[] bytes;
+        private final boolean stateUpdate;
+
+        private Message(byte[] bytes, boolean stateUpdate) {
+            this.bytes = bytes;
+            this.stateUpdate = stateUpdate;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package wnukowski.damian.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import wnukowski.damian.game.GameRoom;
+import wnukowski.damian.game.RoomSnapshot;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Periodically removes rooms nobody is going to use from {@link ServerState#gameRooms}:
+ * <ul>
+ * <li>finished games (won, lost or drawn) after {@code finishedRoomSeconds} since the end,</li>
+ * <li>rooms waiting for the opponent or with both players offline after {@code roomIdleSeconds} without change,</li>
+ * <li>when there are more than {@code maxRooms} rooms - finished, waiting and abandoned rooms first, least recently
+ * changed first, until the limit is met.</li>
+ * </ul>
+ * Games in progress with a player online are evicted only by the limit.
+ */
+public class RoomReaper {
+    private static final Logger log = LoggerFactory.getLogger(RoomReaper.class);
+    private static final long finishedRoomNanos = TimeUnit.SECONDS.toNanos(
+            Long.parseLong(System.getProperty("finishedRoomSeconds", "300")));
+    private static final long idleRoomNanos = TimeUnit.SECONDS.toNanos(
+            Long.parseLong(System.getProperty("roomIdleSeconds", "1800")));
+    private static final int maxRooms = Integer.parseInt(System.getProperty("maxRooms", "100000"));
+    private static final long reaperPeriodSeconds = Long.parseLong(System.getProperty("roomReaperPeriodSeconds", "30"));
+
+    private static final AtomicLong evictedFinished = new AtomicLong();
+    private static final AtomicLong evictedIdle = new AtomicLong();
+    private static final AtomicLong evictedOverLimit = new AtomicLong();
+
+    private static ScheduledExecutorService executor;
+
+    public static synchronized void start() {
+        if (executor != null) {
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "room-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                reap();
+            } catch (RuntimeException e) {
+                log.error("Room reaper failed", e);
+            }
+        }, reaperPeriodSeconds, reaperPeriodSeconds, TimeUnit.SECONDS);
+    }
+
+    static void reap() {
+        long now = System.nanoTime();
+        long finished = 0;
+        long idle = 0;
+        for (Map.Entry<UUID, GameRoom> entry : ServerState.gameRooms.entrySet()) {
+            RoomSnapshot snapshot = entry.getValue().getSnapshot();
+            long idleNanos = now - snapshot.getCreatedNanos();
+            if (isFinished(snapshot, now)) {
+                if (idleNanos > finishedRoomNanos && evict(entry.getKey(), entry.getValue())) {
+                    finished++;
+                }
+            } else if (isAbandoned(snapshot, now) && idleNanos > idleRoomNanos && evict(entry.getKey(), entry.getValue())) {
+                idle++;
+            }
+        }
+
+        long overLimit = 0;
+        int excess = ServerState.gameRooms.size() - maxRooms;
+        if (excess > 0) {
+            // snapshots are captured once, rooms can change while being sorted
+            List<Candidate> candidates = new ArrayList<>(ServerState.gameRooms.size());
+            for (GameRoom room : ServerState.gameRooms.values()) {
+                candidates.add(new Candidate(room, room.getSnapshot(), now));
+            }
+            candidates.sort(Comparator.comparing((Candidate candidate) -> candidate.inProgress)
+                    .thenComparingLong(candidate -> -candidate.idleNanos));
+            for (int i = 0; i < candidates.size() && overLimit < excess; i++) {
+                GameRoom room = candidates.get(i).room;
+                if (evict(room.getRoomUUID(), room)) {
+                    overLimit++;
+                }
+            }
+        }
+
+        evictedFinished.addAndGet(finished);
+        evictedIdle.addAndGet(idle);
+        evictedOverLimit.addAndGet(overLimit);
+        if (finished + idle + overLimit > 0) {
+            log.info("Evicted rooms: [{}] finished, [{}] idle, [{}] over limit of [{}], [{}] rooms left",
+                    finished, idle, overLimit, maxRooms, ServerState.gameRooms.size());
+        }
+    }
+
+    /**
+     * Removes the room from the server, also used when room is handed over to another cluster node.
+     *
+     * @return false if the room was already removed
+     */
+    static boolean evict(UUID roomUUID, GameRoom room) {
+        if (!ServerState.gameRooms.remove(roomUUID, room)) {
+            return false; // both players left in the meantime
+        }
+        room.evict();
+        SpectatorGroup.roomRemoved(room);
+        return true;
+    }
+
+    private static boolean isFinished(RoomSnapshot snapshot, long now) {
+        GameRoom.State state = snapshot.getState(now);
+        return state != GameRoom.State.WAITING && state != GameRoom.State.PLAYING;
+    }
+
+    private static boolean isAbandoned(RoomSnapshot snapshot, long now) {
+        return snapshot.getState(now) == GameRoom.State.WAITING || (!snapshot.isWhiteOnline() && !snapshot.isBlackOnline());
+    }
+
+    private static boolean isInProgress(RoomSnapshot snapshot, long now) {
+        return !isFinished(snapshot, now) && !isAbandoned(snapshot, now);
+    }
+
+    private static class Candidate {
+        private final GameRoom room;
+        private final boolean inProgress;
+        private final long idleNanos;
+
+        private Candidate(GameRoom room, RoomSnapshot snapshot, long now) {
+            this.room = room;
+            this.inProgress = isInProgress(snapshot, now);
+            this.idleNanos = now - snapshot.getCreatedNanos();
+        }
+    }
+
+    public static long getEvictedFinished() {
+        return evictedFinished.get();
+    }
+
+    public static long getEvictedIdle() {
+        return evictedIdle.get();
+    }
+
+    public static long getEvictedOverLimit() {
+        return evictedOverLimit.get();
+    }
+}
@@ -3,13 +3,27 @@ package wnukowski.damian.server;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import wnukowski.damian.game.GameArchive;
+import wnukowski.damian.game.GameJournal;
+import wnukowski.damian.game.GameRoom;
+import wnukowski.damian.game.Tablebase;
+
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
-import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLSessionContext;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.file.Path;
 import java.security.KeyStore;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 public class Server {
@@ -17,10 +31,58 @@ public class Server {
     private static final int PORT = Integer.parseInt(System.getProperty("serverPort", "44322"));
     private static final String jksFilePath = System.getProperty("jksFilePath", "ssl/certificate.jks");
     private static final String jksPassPhrase = System.getProperty("jksPassPhrase", "passphrase");
+    // blocking - thread per connection, virtual - virtual thread per connection, bounded - fixed thread pool,
+    // nio - selector based event loops
+    private static final String serverMode = System.getProperty("serverMode", "blocking");
+    // used by virtual and bounded modes, accept() waits when limit of connections is reached
+    private static final int maxConnections = Integer.parseInt(System.getProperty("maxConnections", "10000"));
+    private static final int nioEventLoops = Integer.parseInt(
+            System.getProperty("nioEventLoops", String.valueOf(Runtime.getRuntime().availableProcessors())));
+    // delegated TLS handshake tasks of nio mode run on this many threads instead of event loops
+    private static final int tlsHandshakeThreads = Integer.parseInt(
+            System.getProperty("tlsHandshakeThreads", String.valueOf(Runtime.getRuntime().availableProcessors())));
+    // GET_GAME of nio mode reads the archive on this many threads instead of event loops
+    private static final int diskReadThreads = Integer.parseInt(System.getProperty("diskReadThreads", "2"));
+    // sessions kept for resumption by reconnecting clients
+    private static final int sslSessionCacheSize = Integer.parseInt(System.getProperty("sslSessionCacheSize", "20000"));
+    private static final int sslSessionTimeoutSeconds = Integer.parseInt(
+            System.getProperty("sslSessionTimeoutSeconds", "3600"));
+    // stateless resumption (TLS 1.3 tickets, Java 13+), with false resumed sessions come from the cache only
+    private static final String sslSessionTickets = System.getProperty("sslSessionTickets", "true");
     private static final boolean shouldRun = true;
 
     public static void start() {
-        log.info("Starting server on port: [{}]",  PORT);
+        log.info("Starting server on port: [{}] in [{}] mode", PORT, serverMode);
+        Cluster cluster;
+        try {
+            cluster = Cluster.startFromProperties(PORT);
+        } catch (IOException | IllegalArgumentException e) {
+            log.error("Can't start cluster node, application stops", e);
+            return;
+        }
+        // rooms recovered from the journal are adjudicated by the tablebase as well
+        try {
+            Tablebase.openFromProperties();
+        } catch (IOException e) {
+            log.error("Can't load tablebase, application stops", e);
+            return;
+        }
+        if (!openJournal(cluster) || !openArchive()) {
+            return;
+        }
+        if (cluster != null) {
+            cluster.startHeartbeats();
+        }
+        RoomReaper.start();
+        MetricsEndpoint.startFromProperties();
+        if (serverMode.equals("nio")) {
+            startNio();
+            return;
+        }
+        if (serverMode.equals("virtual") || serverMode.equals("bounded")) {
+            startWithExecutor();
+            return;
+        }
         try (ServerSocket serverSocket = getSslServerSocket(PORT, jksFilePath, jksPassPhrase)) {
             while (shouldRun) {
                 String socketAddress = null;
@@ -36,26 +98,164 @@ public class Server {
         }
     }
 
+    /**
+     * Restores rooms saved by previous run if journal is enabled, computer players join their rooms again. Journal
+     * is flushed on JVM shutdown. Node of a cluster with {@code clusterJournalRoot} keeps its journal there.
+     *
+     * @return false if journal is enabled but can't be opened
+     */
+    private static boolean openJournal(Cluster cluster) {
+        try {
+            Path clusterDirectory = cluster == null ? null : cluster.getJournalDirectory();
+            GameJournal journal = clusterDirectory == null ? GameJournal.openFromProperties()
+                    : GameJournal.openFromProperties(clusterDirectory);
+            if (journal != null) {
+                for (GameRoom room : ServerState.gameRooms.values()) {
+                    AiPlayer.rejoin(room);
+                }
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    try {
+                        journal.close();
+                    } catch (IOException e) {
+                        log.warn("Error during journal close", e);
+                    }
+                }, "journal-shutdown"));
+            }
+            return true;
+        } catch (Exception e) {
+            log.error("Can't open journal, application stops", e);
+            return false;
+        }
+    }
+
+    /**
+     * Opens archive of ended games if it is enabled, segment being written is sealed on JVM shutdown.
+     *
+     * @return false if archive is enabled but can't be opened
+     */
+    private static boolean openArchive() {
+        try {
+            GameArchive archive = GameArchive.openFromProperties();
+            if (archive != null) {
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    try {
+                        archive.close();
+                    } catch (IOException e) {
+                        log.warn("Error during archive close", e);
+                    }
+                }, "archive-shutdown"));
+            }
+            return true;
+        } catch (Exception e) {
+            log.error("Can't open archive, application stops", e);
+            return false;
+        }
+    }
+
+    /**
+     * Same accept loop as blocking mode, but handlers are run by executor. Permit is taken before each accept()
+     * and given back when handler finishes, so new connections wait in the backlog when limit is reached.
+     */
+    private static void startWithExecutor() {
+        Semaphore connectionPermits = new Semaphore(maxConnections);
+        ExecutorService executor = serverMode.equals("virtual") ? newVirtualThreadExecutor() : null;
+        if (executor == null) {
+            executor = newBoundedExecutor(maxConnections);
+        }
+        try (ServerSocket serverSocket = getSslServerSocket(PORT, jksFilePath, jksPassPhrase)) {
+            while (shouldRun) {
+                connectionPermits.acquire();
+                Socket socket;
+                try {
+                    socket = serverSocket.accept();
+                    log.info("Connected with socket {}:{}", socket.getInetAddress().getHostAddress(), socket.getPort());
+                    // virtual threads write pushed messages too, bounded mode keeps its threads for requests
+                    ClientHandler clientHandler = serverMode.equals("virtual")
+                            ? new ClientHandler(socket, executor) : new ClientHandler(socket);
+                    executor.execute(() -> {
+                        try {
+                            clientHandler.run();
+                        } finally {
+                            connectionPermits.release();
+                        }
+                    });
+                } catch (Exception e) {
+                    connectionPermits.release();
+                    throw e;
+                }
+            }
+        } catch (Exception e) {
+            log.error("Unexpected error occurred", e);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Virtual threads are looked up reflectively so the project still builds and runs on Java 8.
+     *
+     * @return virtual thread per task executor or null if running JVM doesn't support virtual threads
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            log.warn("Virtual threads are not supported by this JVM, falling back to bounded thread pool");
+            return null;
+        }
+    }
+
+    private static ExecutorService newBoundedExecutor(int maxThreads) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), runnable -> new Thread(runnable, "client-handler-" + threadNumber.incrementAndGet()));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static void startNio() {
+        try {
+            new NioServer(PORT, getSslContext(jksFilePath, jksPassPhrase), nioEventLoops, tlsHandshakeThreads,
+                    diskReadThreads).run();
+        } catch (Exception e) {
+            log.error("Unexpected error occurred", e);
+        }
+    }
+
     private static ServerSocket getSslServerSocket(int port, String jksLocation, String jksPassPhrase) throws Exception {
         try {
-            SSLServerSocketFactory ssf;
+            return getSslContext(jksLocation, jksPassPhrase).getServerSocketFactory().createServerSocket(port);
+        } catch (Exception e) {
+            throw new Exception("Can't create ssl server socket, application stops", e);
+        }
+    }
+
+    static SSLContext getSslContext(String jksLocation, String jksPassPhrase) throws Exception {
+        try {
             SSLContext ctx;
             KeyManagerFactory kmf;
             KeyStore ks;
             char[] passphrase = jksPassPhrase.toCharArray();
 
+            // read by JSSE once, so it has to be set before the first context is created
+            if (System.getProperty("jdk.tls.server.enableSessionTicketExtension") == null) {
+                System.setProperty("jdk.tls.server.enableSessionTicketExtension", sslSessionTickets);
+            }
             ctx = SSLContext.getInstance("TLS");
             kmf = KeyManagerFactory.getInstance("SunX509");
             ks = KeyStore.getInstance("JKS");
 
-            ks.load(new FileInputStream(jksLocation), passphrase);
+            try (FileInputStream keyStoreStream = new FileInputStream(jksLocation)) {
+                ks.load(keyStoreStream, passphrase);
+            }
             kmf.init(ks, passphrase);
             ctx.init(kmf.getKeyManagers(), null, null);
-
-            ssf = ctx.getServerSocketFactory();
-            return ssf.createServerSocket(port);
+            SSLSessionContext sessions = ctx.getServerSessionContext();
+            sessions.setSessionCacheSize(sslSessionCacheSize);
+            sessions.setSessionTimeout(sslSessionTimeoutSeconds);
+            return ctx;
         } catch (Exception e) {
-            throw new Exception("Can't create ssl server socket, application stops", e);
+            throw new Exception("Can't create ssl context, application stops", e);
         }
     }
 }
@@ -13,6 +13,29 @@ public class ServerCodes {
     public final static String DRAW_FAIL = "DRAW_FAIL";
 
     public final static String STATUS_OK = "STATUS_OK";
+    public final static String STATUS_NOT_MODIFIED = "STATUS_NOT_MODIFIED";
+    public final static String STATUS_DELTA = "STATUS_DELTA";
+
+    public final static String SUBSCRIBE_OK = "SUBSCRIBE_OK";
+    public final static String UNSUBSCRIBE_OK = "UNSUBSCRIBE_OK";
+    // sent by server without request to subscribed clients
+    public final static String STATE_UPDATE = "STATE_UPDATE";
+
+    public final static String WATCH_OK = "WATCH_OK";
+    public final static String UNWATCH_OK = "UNWATCH_OK";
+
+    public final static String QUEUED = "QUEUED";
+    public final static String UNQUEUE_OK = "UNQUEUE_OK";
+
+    // room is kept by another node of the cluster
+    public final static String REDIRECT = "REDIRECT";
+
+    public final static String GAME_OK = "GAME_OK";
+    public final static String GAME_NOT_FOUND = "GAME_NOT_FOUND";
+
+    public final static String PROBE_OK = "PROBE_OK";
+    // position isn't in the tablebase or tablebase isn't loaded
+    public final static String PROBE_NOT_FOUND = "PROBE_NOT_FOUND";
 
     public final static String DRAW_CANCEL_OK = "DRAW_CANCEL_OK";
     public final static String DRAW_CANCEL_FAIL = "DRAW_CANCEL_FAIL";
@@ -4,7 +4,12 @@ import wnukowski.damian.game.GameRoom;
 
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
 
 public class ServerState {
     public static ConcurrentHashMap<UUID, GameRoom> gameRooms = new ConcurrentHashMap<>();
+    // connection playing each color uuid, replaced when client reconnects with RESUME
+    static ConcurrentHashMap<UUID, ClientHandler> players = new ConcurrentHashMap<>();
+    // uuids of new rooms are drawn until accepted, cluster accepts only uuids routed to this node
+    public static volatile Predicate<UUID> ownsRoom = roomUUID -> true;
 }
@@ -0,0 +1,139 @@
+package wnukowski.damian.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import wnukowski.damian.game.GameRoom;
+import wnukowski.damian.game.RoomListener;
+import wnukowski.damian.game.RoomSnapshot;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static wnukowski.damian.server.ServerCodes.STATE_UPDATE;
+
+/**
+ * Spectators of one room, added by {@code WATCH}. The group is the only listener registered in the room on behalf of
+ * all its spectators: every update is encoded once - as text line and as binary frame - and the same bytes are pushed
+ * to each spectator from the broadcast thread, so neither the room lock nor the thread which changed the room waits
+ * for the fan-out. The broadcast thread only enqueues - bytes are written by the event loop or the writer of
+ * the connection, so a spectator which doesn't read doesn't delay the others. Changes coming faster than they are sent are coalesced - spectators always get the latest state,
+ * but may skip versions.
+ */
+final class SpectatorGroup implements RoomListener {
+    private static final Logger log = LoggerFactory.getLogger(SpectatorGroup.class);
+    private static final ConcurrentHashMap<UUID, SpectatorGroup> groups = new ConcurrentHashMap<>();
+    // single thread keeps updates of each group in order, pushes only hand bytes over to connections
+    private static final ExecutorService broadcaster = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "spectator-broadcast");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final GameRoom room;
+    // hash set instead of CopyOnWriteArrayList used for room listeners - joining and leaving is O(1) for big audience
+    private final Set<ClientHandler> spectators = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean broadcastScheduled = new AtomicBoolean();
+    // used only by broadcast thread
+    private final StringBuilder line = new StringBuilder(256);
+    private final ByteBuffer frame = ByteBuffer.allocate(BinaryProtocol.MAX_FRAME_LENGTH);
+
+    private SpectatorGroup(GameRoom room) {
+        this.room = room;
+    }
+
+    /**
+     * Adds spectator to the group of given room, creating the group if it's the first one.
+     *
+     * @return group spectator should leave with {@link #unwatch(ClientHandler)}, null if room was removed
+     */
+    static SpectatorGroup watch(GameRoom room, ClientHandler spectator) {
+        // groups are created and dropped inside compute(), so spectator is never added to a dropped group
+        SpectatorGroup group = groups.compute(room.getRoomUUID(), (uuid, existing) -> {
+            SpectatorGroup watched = existing;
+            if (watched == null) {
+                watched = new SpectatorGroup(room);
+                room.addListener(watched);
+            }
+            if (watched.spectators.add(spectator)) {
+                Metrics.spectatorAdded();
+            }
+            return watched;
+        });
+        if (ServerState.gameRooms.get(room.getRoomUUID()) != room) {
+            group.unwatch(spectator); // room was removed in the meantime
+            return null;
+        }
+        return group;
+    }
+
+    void unwatch(ClientHandler spectator) {
+        if (spectators.remove(spectator)) {
+            Metrics.spectatorRemoved();
+        }
+        groups.computeIfPresent(room.getRoomUUID(), (uuid, group) -> {
+            if (group != this || !spectators.isEmpty()) {
+                return group;
+            }
+            room.removeListener(this);
+            return null;
+        });
+    }
+
+    /**
+     * Stops broadcasting updates of removed room, its spectators are left in the group until they unwatch it.
+     */
+    static void roomRemoved(GameRoom room) {
+        groups.computeIfPresent(room.getRoomUUID(), (uuid, group) -> {
+            if (group.room != room) {
+                return group;
+            }
+            room.removeListener(group);
+            return null;
+        });
+    }
+
+    @Override
+    public void roomChanged(GameRoom room) {
+        if (broadcastScheduled.compareAndSet(false, true)) {
+            broadcaster.execute(this::broadcast);
+        }
+    }
+
+    /**
+     * Pushes current state of the room to all spectators, called by the broadcast thread.
+     */
+    void broadcast() {
+        // cleared before reading the snapshot, so a change made during broadcast schedules the next one
+        broadcastScheduled.set(false);
+        long now = System.nanoTime();
+        RoomSnapshot snapshot = room.getSnapshot();
+        line.setLength(0);
+        line.append(STATE_UPDATE).append(' ');
+        snapshot.appendTo(line, now);
+        byte[] textLine = ClientHandler.encodeLine(line.toString());
+        BinaryProtocol.beginFrame(frame, STATE_UPDATE);
+        snapshot.writeTo(frame, now);
+        BinaryProtocol.endFrame(frame);
+        byte[] binaryFrame = Arrays.copyOf(frame.array(), frame.limit());
+        for (ClientHandler spectator : spectators) {
+            try {
+                spectator.pushEncoded(textLine, binaryFrame);
+            } catch (RuntimeException e) {
+                log.warn("Can't push state update to spectator", e);
+            }
+        }
+        if (ServerState.gameRooms.get(room.getRoomUUID()) != room) {
+            roomRemoved(room); // both players left, this was the last update
+        }
+    }
+
+    int size() {
+        return spectators.size();
+    }
+}
@@ -0,0 +1,462 @@
+package wnukowski.damian.server;
+
+import wnukowski.damian.game.BitBoard;
+import wnukowski.damian.game.Engine;
+import wnukowski.damian.game.GameRoom.Color;
+import wnukowski.damian.game.MoveList;
+
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+/**
+ * Command of the text protocol parsed straight from received bytes. One instance is reused by
+ * {@link ClientHandler} for every line, so parsing doesn't allocate - arguments are kept as primitives and UUIDs
+ * are created only when a room has to be looked up. UUIDs in other forms accepted by {@link UUID#fromString(String)},
+ * e.g. without leading zeros, are parsed by it - only these allocate.
+ * <p>
+ * Command name has to be followed by a space or the end of line. Arguments are separated by single spaces.
+ */
+final class TextCommand {
+    enum Opcode {
+        QUIT, JOIN, CREATE, GET_STATE, GET_STATE_SINCE(false), MOVE, LEAVE, REQUEST_A_DRAW, CANCEL_DRAW_REQUEST,
+        SUBSCRIBE, UNSUBSCRIBE, WATCH, UNWATCH, QUEUE, UNQUEUE, CREATE_VS_AI, RESUME, GET_GAME,
+        PROBE, UNKNOWN(false);
+
+        // null if opcode isn't a command name - GET_STATE_SINCE is GET_STATE with argument
+        private final byte[] name;
+
+        Opcode() {
+            this(true);
+        }
+
+        Opcode(boolean commandName) {
+            this.name = commandName ? name().getBytes(StandardCharsets.US_ASCII) : null;
+        }
+    }
+
+    private static final Opcode[] OPCODES = Opcode.values();
+    private static final byte[] SINCE = "SINCE=".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] MILLIS = "ms".getBytes(StandardCharsets.US_ASCII);
+    private static final int[] UUID_GROUP_LENGTHS = {8, 4, 4, 4, 12};
+    private static final byte[] WHITE = "WHITE".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] BLACK = "BLACK".getBytes(StandardCharsets.US_ASCII);
+    private static final int BOARD_LENGTH = 64;
+
+    private Opcode opcode = Opcode.UNKNOWN;
+    // false if command is known but its arguments are not
+    private boolean valid;
+
+    private long roomMostSigBits;
+    private long roomLeastSigBits;
+    private long colorMostSigBits;
+    private long colorLeastSigBits;
+    // -1 if CREATE has no time control
+    private int baseMinutes;
+    private int incrementSeconds;
+    // 0 if CREATE_VS_AI has no such limit
+    private int aiDepth;
+    private int aiMillis;
+    private long sinceVersion;
+    // BitBoard.EMPTY_SQUARE for squares which can't be parsed, at most MoveList.MAX_PATH_LENGTH are stored
+    private final int[] squares = new int[MoveList.MAX_PATH_LENGTH];
+    private int squareCount;
+    // position given to PROBE
+    private int boardWhite;
+    private int boardBlack;
+    private int boardKings;
+    private Color turn;
+
+    // parsing position, valid only during parse
+    private byte[] line;
+    private int position;
+    private int end;
+
+    /**
+     * @param line   bytes of the line, without line separator
+     * @param offset index of first byte of the line
+     * @param length number of bytes in the line
+     */
+    void parse(byte[] line, int offset, int length) {
+        this.line = line;
+        this.position = offset;
+        this.end = offset + length;
+        opcode = parseOpcode();
+        valid = parseArguments();
+        this.line = null;
+    }
+
+    private Opcode parseOpcode() {
+        int nameEnd = position;
+        while (nameEnd < end && line[nameEnd] != ' ') {
+            nameEnd++;
+        }
+        for (Opcode candidate : OPCODES) {
+            if (candidate.name != null && candidate.name.length == nameEnd - position
+                    && matches(candidate.name, position)) {
+                position = nameEnd;
+                return candidate;
+            }
+        }
+        return Opcode.UNKNOWN;
+    }
+
+    private boolean parseArguments() {
+        switch (opcode) {
+            case JOIN:
+            case RESUME:
+                if (!skipSpace() || !parseUUID(false) || !skipSpace() || !parseUUID(true)) {
+                    return false;
+                }
+                while (position < end && line[position] == ' ') {
+                    position++; // trailing spaces were always accepted by JOIN
+                }
+                return position == end;
+            case CREATE:
+            case QUEUE:
+                baseMinutes = -1;
+                incrementSeconds = -1;
+                if (position == end) {
+                    return true;
+                }
+                if (!skipSpace()) {
+                    return false;
+                }
+                baseMinutes = parseNumber('+');
+                if (baseMinutes < 0 || position == end) {
+                    return false;
+                }
+                position++;
+                incrementSeconds = parseNumber(' ');
+                return incrementSeconds >= 0 && position == end;
+            case GET_STATE:
+                if (position == end) {
+                    return true;
+                }
+                if (line[position] == ' ' && matches(SINCE, position + 1)) {
+                    opcode = Opcode.GET_STATE_SINCE;
+                    position += 1 + SINCE.length;
+                    return parseVersion();
+                }
+                return false;
+            case MOVE:
+                parseSquares();
+                return true;
+            case WATCH:
+            case GET_GAME:
+                return skipSpace() && parseUUID(false) && position == end;
+            case CREATE_VS_AI:
+                return parseAiLimit();
+            case PROBE:
+                return skipSpace() && parseBoard() && skipSpace() && parseColor() && position == end;
+            default:
+                return position == end;
+        }
+    }
+
+    // depth like 8 or time like 500ms
+    private boolean parseAiLimit() {
+        aiDepth = 0;
+        aiMillis = 0;
+        if (position == end) {
+            return true;
+        }
+        if (!skipSpace()) {
+            return false;
+        }
+        int limit = parseNumber('m');
+        if (limit <= 0) {
+            return false;
+        }
+        if (position == end) {
+            aiDepth = limit;
+            return limit <= Engine.MAX_DEPTH;
+        }
+        aiMillis = limit;
+        return end - position == MILLIS.length && matches(MILLIS, position);
+    }
+
+    // 64 characters as in BOARD field of the state, light squares have to be empty
+    private boolean parseBoard() {
+        if (end - position < BOARD_LENGTH) {
+            return false;
+        }
+        boardWhite = 0;
+        boardBlack = 0;
+        boardKings = 0;
+        for (int i = 0; i < BOARD_LENGTH; i++) {
+            byte piece = line[position++];
+            int square = BitBoard.square(i / 8, i % 8);
+            if (piece == '0') {
+                continue;
+            }
+            if (square == BitBoard.EMPTY_SQUARE) {
+                return false;
+            }
+            int bit = 1 << square;
+            if (piece == 'w' || piece == 'W') {
+                boardWhite |= bit;
+            } else if (piece == 'b' || piece == 'B') {
+                boardBlack |= bit;
+            } else {
+                return false;
+            }
+            if (piece == 'W' || piece == 'B') {
+                boardKings |= bit;
+            }
+        }
+        return true;
+    }
+
+    private boolean parseColor() {
+        if (end - position == WHITE.length && matches(WHITE, position)) {
+            turn = Color.WHITE;
+        } else if (end - position == BLACK.length && matches(BLACK, position)) {
+            turn = Color.BLACK;
+        } else {
+            return false;
+        }
+        position = end;
+        return true;
+    }
+
+    // squares separated by single spaces, empty tokens are invalid squares but trailing spaces are ignored
+    private void parseSquares() {
+        while (end > position && line[end - 1] == ' ') {
+            end--;
+        }
+        squareCount = 0;
+        while (position < end) {
+            position++; // space before the square
+            int tokenStart = position;
+            while (position < end && line[position] != ' ') {
+                position++;
+            }
+            if (squareCount < squares.length) {
+                squares[squareCount] = position - tokenStart == 2
+                        ? BitBoard.parseSquare((char) line[tokenStart], (char) line[tokenStart + 1])
+                        : BitBoard.EMPTY_SQUARE;
+            }
+            squareCount++;
+        }
+    }
+
+    private boolean parseUUID(boolean color) {
+        int start = position;
+        if (parseCanonicalUUID(color) && (position == end || line[position] == ' ')) {
+            return true;
+        }
+        position = start;
+        return parseOtherUUID(color);
+    }
+
+    // UUID in canonical form, e.g. 123e4567-e89b-12d3-a456-426614174000
+    private boolean parseCanonicalUUID(boolean color) {
+        long mostSigBits = 0;
+        long leastSigBits = 0;
+        for (int group = 0; group < UUID_GROUP_LENGTHS.length; group++) {
+            if (group > 0) {
+                if (position == end || line[position] != '-') {
+                    return false;
+                }
+                position++;
+            }
+            for (int i = 0; i < UUID_GROUP_LENGTHS[group]; i++) {
+                int digit = position < end ? hexDigit(line[position++]) : -1;
+                if (digit < 0) {
+                    return false;
+                }
+                // first 16 hex digits (groups 0 - 2) are most significant bits
+                if (group < 3) {
+                    mostSigBits = mostSigBits << 4 | digit;
+                } else {
+                    leastSigBits = leastSigBits << 4 | digit;
+                }
+            }
+        }
+        setUUID(color, mostSigBits, leastSigBits);
+        return true;
+    }
+
+    // argument up to the next space in any form accepted by UUID.fromString, as before the parser was introduced
+    private boolean parseOtherUUID(boolean color) {
+        int tokenEnd = position;
+        while (tokenEnd < end && line[tokenEnd] != ' ') {
+            tokenEnd++;
+        }
+        UUID uuid;
+        try {
+            uuid = UUID.fromString(new String(line, position, tokenEnd - position, StandardCharsets.US_ASCII));
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        position = tokenEnd;
+        setUUID(color, uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+        return true;
+    }
+
+    private void setUUID(boolean color, long mostSigBits, long leastSigBits) {
+        if (color) {
+            colorMostSigBits = mostSigBits;
+            colorLeastSigBits = leastSigBits;
+        } else {
+            roomMostSigBits = mostSigBits;
+            roomLeastSigBits = leastSigBits;
+        }
+    }
+
+    private static int hexDigit(byte c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        return -1;
+    }
+
+    // up to 6 digits ending at terminator or end of line, -1 if invalid
+    private int parseNumber(char terminator) {
+        int start = position;
+        int number = 0;
+        while (position < end && line[position] != terminator) {
+            byte c = line[position++];
+            if (c < '0' || c > '9' || position - start > 6) {
+                return -1;
+            }
+            number = number * 10 + (c - '0');
+        }
+        return position == start ? -1 : number;
+    }
+
+    // optional sign and digits till the end of line, as accepted by Long.parseLong
+    private boolean parseVersion() {
+        boolean negative = position < end && line[position] == '-';
+        if (negative || (position < end && line[position] == '+')) {
+            position++;
+        }
+        if (position == end) {
+            return false;
+        }
+        long version = 0;
+        while (position < end) {
+            byte c = line[position++];
+            if (c < '0' || c > '9' || version > (Long.MAX_VALUE - (c - '0')) / 10) {
+                return false;
+            }
+            version = version * 10 + (c - '0');
+        }
+        sinceVersion = negative ? -version : version;
+        return true;
+    }
+
+    private boolean skipSpace() {
+        if (position < end && line[position] == ' ') {
+            position++;
+            return true;
+        }
+        return false;
+    }
+
+    private boolean matches(byte[] expected, int from) {
+        if (end - from < expected.length) {
+            return false;
+        }
+        for (int i = 0; i < expected.length; i++) {
+            if (line[from + i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    Opcode getOpcode() {
+        return opcode;
+    }
+
+    boolean isValid() {
+        return valid;
+    }
+
+    long getRoomMostSigBits() {
+        return roomMostSigBits;
+    }
+
+    long getRoomLeastSigBits() {
+        return roomLeastSigBits;
+    }
+
+    long getColorMostSigBits() {
+        return colorMostSigBits;
+    }
+
+    long getColorLeastSigBits() {
+        return colorLeastSigBits;
+    }
+
+    boolean hasTimeControl() {
+        return baseMinutes >= 0;
+    }
+
+    int getBaseMinutes() {
+        return baseMinutes;
+    }
+
+    int getIncrementSeconds() {
+        return incrementSeconds;
+    }
+
+    /**
+     * @return search depth given to CREATE_VS_AI, 0 if not given
+     */
+    int getAiDepth() {
+        return aiDepth;
+    }
+
+    /**
+     * @return search time in milliseconds given to CREATE_VS_AI, 0 if not given
+     */
+    int getAiMillis() {
+        return aiMillis;
+    }
+
+    long getSinceVersion() {
+        return sinceVersion;
+    }
+
+    /**
+     * @return parsed squares, only first {@link #getSquareCount()} are set
+     */
+    int[] getSquares() {
+        return squares;
+    }
+
+    int getBoardWhite() {
+        return boardWhite;
+    }
+
+    int getBoardBlack() {
+        return boardBlack;
+    }
+
+    int getBoardKings() {
+        return boardKings;
+    }
+
+    /**
+     * @return color on move given to PROBE
+     */
+    Color getTurn() {
+        return turn;
+    }
+
+    /**
+     * @return number of squares given to MOVE, may be greater than length of {@link #getSquares()} - such move is
+     * rejected by the room anyway
+     */
+    int getSquareCount() {
+        return squareCount;
+    }
+}
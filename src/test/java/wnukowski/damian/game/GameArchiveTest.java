@@ -0,0 +1,156 @@
+package wnukowski.damian.game;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import wnukowski.damian.game.GameRoom.State;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks lookups of {@link GameArchive} in the segment being written and in sealed segments.
+ */
+public class GameArchiveTest {
+    private static final long FLUSH_MILLIS = 5;
+    private static final long SEGMENT_BYTES = 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private GameArchive archive;
+
+    @After
+    public void closeArchive() throws IOException {
+        if (archive != null) {
+            archive.close();
+        }
+    }
+
+    @Test
+    public void gameIsFoundInSegmentBeingWritten() throws IOException {
+        archive = GameArchive.open(folder.getRoot().toPath(), FLUSH_MILLIS, SEGMENT_BYTES);
+        Game game = new Game();
+        game.end(State.WHITE_WON);
+        awaitArchived(game);
+
+        assertFound(game);
+        assertNull(GameArchive.find(UUID.randomUUID()));
+        StringBuilder sb = new StringBuilder();
+        GameArchive.find(game.room).appendTo(sb);
+        assertTrue(sb.toString(), sb.toString().contains(" RESULT=WHITE_WON "));
+    }
+
+    @Test
+    public void gamesAreFoundInSealedSegments() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        // few segments with more index entries than INDEX_SPACING each
+        archive = GameArchive.open(directory, FLUSH_MILLIS, 32 * 1024);
+        List<Game> games = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            Game game = new Game();
+            game.end(i % 2 == 0 ? State.BLACK_WON : State.DRAW);
+            games.add(game);
+        }
+        awaitArchived(games.get(games.size() - 1));
+        assertTrue("segments are sealed", Files.exists(directory.resolve("archive-1.idx")));
+        for (Game game : games) {
+            assertFound(game);
+        }
+
+        archive.close();
+        archive = GameArchive.open(directory, FLUSH_MILLIS, 32 * 1024);
+        for (Game game : games) {
+            assertFound(game);
+        }
+        assertNull(GameArchive.find(UUID.randomUUID()));
+    }
+
+    @Test
+    public void latestGameOfPlayerIsFound() throws IOException {
+        archive = GameArchive.open(folder.getRoot().toPath(), FLUSH_MILLIS, SEGMENT_BYTES);
+        Game first = new Game();
+        first.end(State.WHITE_WON);
+        awaitArchived(first);
+        archive.close();
+
+        archive = GameArchive.open(folder.getRoot().toPath(), FLUSH_MILLIS, SEGMENT_BYTES);
+        Game second = new Game(first.white);
+        second.end(State.BLACK_WON);
+        awaitArchived(second);
+        assertEquals(second.room, GameArchive.find(first.white).getRoomUUID());
+        assertEquals(first.room, GameArchive.find(first.room).getRoomUUID());
+    }
+
+    @Test
+    public void segmentOfCrashedRunIsSealedOnOpen() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        Game game = new Game();
+        MoveLog moves = new MoveLog();
+        int length = ArchivedGame.bodyLength(moves);
+        ByteBuffer record = ByteBuffer.allocate(length + 8 + 5);
+        record.putInt(length);
+        ArchivedGame.writeBody(record, game.room, game.white, game.black, TimeControl.DEFAULT, State.DRAW,
+                System.currentTimeMillis(), 1000, 1000, moves);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 4, length);
+        record.putInt((int) crc.getValue());
+        // torn record left by the crash
+        record.putInt(length).put((byte) 1);
+        Files.write(directory.resolve("archive-1.dat"), record.array());
+
+        archive = GameArchive.open(directory, FLUSH_MILLIS, SEGMENT_BYTES);
+        assertTrue(Files.exists(directory.resolve("archive-1.idx")));
+        assertFound(game);
+    }
+
+    private static void assertFound(Game game) throws IOException {
+        for (UUID uuid : new UUID[]{game.room, game.white, game.black}) {
+            ArchivedGame found = GameArchive.find(uuid);
+            assertNotNull("game of " + uuid + " is found", found);
+            assertEquals(game.room, found.getRoomUUID());
+        }
+    }
+
+    private static void awaitArchived(Game game) throws IOException {
+        long deadline = System.nanoTime() + 10_000_000_000L;
+        while (GameArchive.find(game.room) == null) {
+            assertTrue("game archived in 10 s", System.nanoTime() < deadline);
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+
+    private static final class Game {
+        private final UUID room = UUID.randomUUID();
+        private final UUID white;
+        private final UUID black = UUID.randomUUID();
+
+        private Game() {
+            this(UUID.randomUUID());
+        }
+
+        private Game(UUID white) {
+            this.white = white;
+        }
+
+        private void end(State result) {
+            GameArchive.gameEnded(room, white, black, TimeControl.DEFAULT, result, 1000, 2000, new MoveLog());
+        }
+    }
+}
@@ -0,0 +1,312 @@
+package wnukowski.damian.game;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import wnukowski.damian.game.GameRoom.Color;
+import wnukowski.damian.server.ServerState;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that rooms recovered by {@link GameJournal} match rooms which were journaled.
+ */
+public class GameJournalTest {
+    private static final long FLUSH_MILLIS = 5;
+    private static final long SNAPSHOT_SECONDS = 3600;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path directory;
+    private GameJournal journal;
+
+    @Before
+    public void openJournal() throws IOException {
+        ServerState.gameRooms.clear();
+        directory = folder.getRoot().toPath();
+        journal = GameJournal.open(directory, FLUSH_MILLIS, SNAPSHOT_SECONDS);
+    }
+
+    @After
+    public void closeJournal() throws IOException {
+        if (journal != null) {
+            journal.close();
+        }
+        ServerState.gameRooms.clear();
+    }
+
+    @Test
+    public void replayRestoresRooms() throws IOException {
+        GameRoom room = startedRoom();
+        assertTrue(room.move(Arrays.asList("a3", "b4"), room.getWhiteUUID()));
+        GameRoom waiting = new GameRoom(TimeControl.of(5, 3));
+
+        Map<UUID, GameRoom> rooms = closeAndLoad();
+        assertEquals(2, rooms.size());
+        assertRestored(room, rooms.get(room.getRoomUUID()));
+        assertRestored(waiting, rooms.get(waiting.getRoomUUID()));
+        assertEquals(TimeControl.of(5, 3), rooms.get(waiting.getRoomUUID()).getTimeControl());
+    }
+
+    @Test
+    public void snapshotIsReplayedWithLaterSegment() throws IOException {
+        GameRoom room = startedRoom();
+        assertTrue(room.move(Arrays.asList("a3", "b4"), room.getWhiteUUID()));
+        journal.requestSnapshot();
+        await(() -> Files.exists(directory.resolve("snapshot-2.dat")));
+        assertFalse("segment before snapshot is deleted", Files.exists(directory.resolve("journal-1.log")));
+
+        assertTrue(room.move(Arrays.asList("b6", "a5"), room.getBlackUUID()));
+        GameRoom created = new GameRoom();
+
+        Map<UUID, GameRoom> rooms = closeAndLoad();
+        assertEquals(2, rooms.size());
+        assertRestored(room, rooms.get(room.getRoomUUID()));
+        assertEquals(Color.WHITE, rooms.get(room.getRoomUUID()).getSnapshot().getTurn());
+        assertRestored(created, rooms.get(created.getRoomUUID()));
+    }
+
+    @Test
+    public void tornLastRecordEndsReplay() throws IOException {
+        GameRoom room = startedRoom();
+        long versionBeforeMove = room.getVersion();
+        assertTrue(room.move(Arrays.asList("a3", "b4"), room.getWhiteUUID()));
+        journal.close();
+        journal = null;
+
+        // last record is the move, without its last bytes
+        Path segment = directory.resolve("journal-1.log");
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 3);
+        }
+        Map<UUID, GameRoom> rooms = load();
+        GameRoom restored = rooms.get(room.getRoomUUID());
+        assertEquals(versionBeforeMove + 1, restored.getVersion());
+        assertEquals(BitBoard.INITIAL_WHITE, restored.getSnapshot().getWhite());
+        assertEquals(Color.WHITE, restored.getSnapshot().getTurn());
+    }
+
+    @Test
+    public void corruptedRecordEndsReplay() throws IOException {
+        GameRoom room = startedRoom();
+        assertTrue(room.move(Arrays.asList("a3", "b4"), room.getWhiteUUID()));
+        journal.close();
+        journal = null;
+
+        // flipped bit in the first record, rooms created after it aren't replayed either
+        Path segment = directory.resolve("journal-1.log");
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            buffer.put(10, (byte) (buffer.get(10) ^ 1));
+            buffer.force();
+        }
+        assertTrue(load().isEmpty());
+
+        // garbage after valid records
+        Files.write(segment, new byte[]{0, 0, 0, 40, 1, 2, 3}, StandardOpenOption.TRUNCATE_EXISTING);
+        assertTrue(load().isEmpty());
+    }
+
+    @Test
+    public void failedWriteIsRetried() throws Exception {
+        Field segmentField = GameJournal.class.getDeclaredField("segment");
+        segmentField.setAccessible(true);
+        FailingChannel failing = new FailingChannel((FileChannel) segmentField.get(journal));
+        // rooms journal under the journal lock, which writer takes before it uses the segment
+        segmentField.set(journal, failing);
+
+        GameRoom room = startedRoom();
+        assertTrue(room.move(Arrays.asList("a3", "b4"), room.getWhiteUUID()));
+        GameRoom waiting = new GameRoom();
+        await(() -> failing.failed);
+
+        Map<UUID, GameRoom> rooms = closeAndLoad();
+        assertEquals(2, rooms.size());
+        assertRestored(room, rooms.get(room.getRoomUUID()));
+        assertRestored(waiting, rooms.get(waiting.getRoomUUID()));
+    }
+
+    @Test
+    public void directoryIsLockedWhileJournalIsOpen() throws IOException {
+        assertNull(GameJournal.tryLock(directory));
+        journal.close();
+        journal = null;
+        FileLock lock = GameJournal.tryLock(directory);
+        assertNotNull(lock);
+        lock.channel().close();
+    }
+
+    private static GameRoom startedRoom() {
+        GameRoom room = new GameRoom();
+        assertTrue(room.join(room.getRoomUUID(), room.getWhiteUUID()));
+        assertTrue(room.join(room.getRoomUUID(), room.getBlackUUID()));
+        return room;
+    }
+
+    private Map<UUID, GameRoom> closeAndLoad() throws IOException {
+        journal.close();
+        journal = null;
+        return load();
+    }
+
+    private Map<UUID, GameRoom> load() throws IOException {
+        Map<UUID, GameRoom> rooms = new HashMap<>();
+        GameJournal.load(directory, rooms);
+        return rooms;
+    }
+
+    private static void assertRestored(GameRoom expected, GameRoom restored) {
+        assertNotNull("room is restored", restored);
+        RoomSnapshot before = expected.getSnapshot();
+        RoomSnapshot after = restored.getSnapshot();
+        assertEquals(expected.getWhiteUUID(), restored.getWhiteUUID());
+        assertEquals(expected.getBlackUUID(), restored.getBlackUUID());
+        assertEquals(expected.getGameState(), restored.getGameState());
+        // players leaving the room when recovery finishes is the next version
+        assertEquals(before.getVersion() + 1, after.getVersion());
+        assertEquals(before.getTurn(), after.getTurn());
+        assertEquals(before.getWhite(), after.getWhite());
+        assertEquals(before.getBlack(), after.getBlack());
+        assertEquals(before.getKings(), after.getKings());
+    }
+
+    private static void await(BooleanSupplier condition) {
+        long deadline = System.nanoTime() + 10_000_000_000L;
+        while (!condition.getAsBoolean()) {
+            assertTrue("condition not met in 10 s", System.nanoTime() < deadline);
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+
+    /**
+     * Segment whose first write stores only half of the records and fails, as on a full disk.
+     */
+    private static final class FailingChannel extends FileChannel {
+        private final FileChannel channel;
+        private volatile boolean failed = false;
+
+        private FailingChannel(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) throws IOException {
+            if (failed) {
+                return channel.write(src, position);
+            }
+            failed = true;
+            ByteBuffer half = src.duplicate();
+            half.limit(src.position() + src.remaining() / 2);
+            src.position(src.position() + channel.write(half, position));
+            throw new IOException("No space left on device");
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            channel.force(metaData);
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            channel.close();
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long position() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public FileChannel position(long newPosition) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long size() throws IOException {
+            return channel.size();
+        }
+
+        @Override
+        public FileChannel truncate(long size) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package wnukowski.damian.game;
+
+import org.junit.Test;
+import wnukowski.damian.game.GameRoom.Color;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks {@link MoveGenerator} and {@link BitBoard#makeMove(MoveList, int, Color)} against known perft numbers of
+ * English draughts starting position.
+ */
+public class PerftTest {
+    private static final int MAX_DEPTH = 8;
+
+    @Test
+    public void startingPositionMatchesReferenceNodes() {
+        BitBoard board = new BitBoard();
+        Perft perft = new Perft(board, MAX_DEPTH);
+        for (int depth = 1; depth <= MAX_DEPTH; depth++) {
+            assertEquals("nodes at depth " + depth, Perft.STARTING_POSITION_NODES[depth],
+                    perft.perft(Color.WHITE, depth));
+        }
+        assertEquals("position is restored", BitBoard.INITIAL_WHITE, board.getWhite());
+        assertEquals("position is restored", BitBoard.INITIAL_BLACK, board.getBlack());
+        assertEquals("position is restored", 0, board.getKings());
+    }
+}
@@ -0,0 +1,267 @@
+package wnukowski.damian.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import wnukowski.damian.Main;
+import wnukowski.damian.game.GameJournal;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509ExtendedTrustManager;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Two cluster nodes sharing journal root in a temporary directory. Nodes are separate processes - rooms and the
+ * cluster are kept in static state, and only the end of a process releases its journal lock as in production.
+ */
+public class ClusterTest {
+    private static final long HEARTBEAT_MILLIS = 100;
+    // node is down after a second, time for the test to lock its journal first
+    private static final int MISSED_HEARTBEATS = 10;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SSLContext clientContext;
+    private Path journalRoot;
+    private final int[] ports = new int[2];
+    private final Process[] nodes = new Process[2];
+    private final List<Client> clients = new ArrayList<>();
+
+    @Before
+    public void startNodes() throws Exception {
+        clientContext = SSLContext.getInstance("TLS");
+        clientContext.init(null, new TrustManager[]{trustAll()}, null);
+        journalRoot = folder.newFolder("cluster").toPath();
+        int[] clusterPorts = new int[2];
+        for (int i = 0; i < 2; i++) {
+            ports[i] = freePort();
+            clusterPorts[i] = freePort();
+        }
+        String nodeList = "localhost:" + ports[0] + ":" + clusterPorts[0]
+                + ",localhost:" + ports[1] + ":" + clusterPorts[1];
+        for (int i = 0; i < 2; i++) {
+            nodes[i] = startNode(i, nodeList);
+        }
+        for (int i = 0; i < 2; i++) {
+            int node = i;
+            await(() -> canConnect(ports[node]));
+        }
+    }
+
+    @After
+    public void stopNodes() throws InterruptedException {
+        for (Client client : clients) {
+            client.close();
+        }
+        for (Process node : nodes) {
+            if (node != null) {
+                node.destroyForcibly().waitFor();
+            }
+        }
+    }
+
+    @Test
+    public void roomOfLostNodeIsRedirectedAndTakenOver() throws Exception {
+        Map<String, String> created = connect(1).fields("CREATE");
+        String room = created.get("ROOM_ID");
+        String enemy = created.get("ENEMY_COLOR_ID");
+
+        Client other = connect(0);
+        assertEquals("REDIRECT NODE=localhost:" + ports[1], other.command("JOIN " + room + " " + enemy));
+        assertEquals("REDIRECT NODE=localhost:" + ports[1], other.command("WATCH " + room));
+        Client owner = connect(1);
+        assertTrue(owner.command("JOIN " + room + " " + enemy).startsWith("ROOM_JOINED"));
+        owner.command("LEAVE");
+        // journal is flushed every journalFlushMillis
+        Thread.sleep(200);
+
+        Path lostJournal = journalRoot.resolve("localhost_" + ports[1]);
+        nodes[1].destroyForcibly().waitFor();
+        // lock of the journal held by a process which isn't a node, as by node which is paused or cut off
+        FileLock lock = GameJournal.tryLock(lostJournal);
+        assertNotNull("journal is unlocked once the node ends", lock);
+        try {
+            Thread.sleep(HEARTBEAT_MILLIS * MISSED_HEARTBEATS * 2);
+            // room belongs to the only live node, which can't take the journal yet
+            assertEquals("ROOM_NOT_FOUND", other.command("RESUME " + room + " " + enemy));
+            assertTrue("locked journal isn't taken over", Files.isDirectory(lostJournal));
+        } finally {
+            lock.channel().close();
+        }
+
+        Map<String, String> state = other.fields("RESUME " + room + " " + enemy);
+        long deadline = System.nanoTime() + 30_000_000_000L;
+        while (!"ROOM_JOINED".equals(state.get(""))) {
+            assertEquals("ROOM_NOT_FOUND", state.get(""));
+            assertTrue("room taken over in 30 s", System.nanoTime() < deadline);
+            Thread.sleep(20);
+            state = other.fields("RESUME " + room + " " + enemy);
+        }
+        // game started by the join journaled on the lost node
+        assertEquals("PLAYING", state.get("STATE"));
+        assertFalse("journal is moved aside", Files.exists(lostJournal));
+        assertEquals(1, takenOverDirectories().size());
+    }
+
+    private Process startNode(int index, String nodeList) throws IOException {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        List<String> command = new ArrayList<>();
+        command.add(java);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("-DserverPort=" + ports[index]);
+        command.add("-DclusterNodes=" + nodeList);
+        command.add("-DclusterNode=localhost:" + ports[index]);
+        command.add("-DclusterJournalRoot=" + journalRoot);
+        command.add("-DclusterHeartbeatMillis=" + HEARTBEAT_MILLIS);
+        command.add("-DclusterMissedHeartbeats=" + MISSED_HEARTBEATS);
+        command.add("-DjournalFlushMillis=5");
+        command.add("-DjksFilePath=" + Paths.get("ssl", "certificate.jks").toAbsolutePath());
+        command.add(Main.class.getName());
+        File log = new File(folder.getRoot(), "node-" + index + ".log");
+        return new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(log).start();
+    }
+
+    private List<Path> takenOverDirectories() throws IOException {
+        List<Path> directories = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(journalRoot, "*.taken-over-*")) {
+            for (Path directory : stream) {
+                directories.add(directory);
+            }
+        }
+        return directories;
+    }
+
+    private Client connect(int node) throws IOException {
+        Client client = new Client(clientContext.getSocketFactory().createSocket("localhost", ports[node]));
+        clients.add(client);
+        return client;
+    }
+
+    private boolean canConnect(int port) {
+        try (Socket socket = clientContext.getSocketFactory().createSocket("localhost", port)) {
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void await(BooleanSupplier condition) {
+        long deadline = System.nanoTime() + 30_000_000_000L;
+        while (!condition.getAsBoolean()) {
+            assertTrue("condition not met in 30 s", System.nanoTime() < deadline);
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+
+    private static TrustManager trustAll() {
+        // certificate in repository is self signed with MD5, extended trust manager skips algorithm constraints
+        return new X509ExtendedTrustManager() {
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain, String authType, Socket socket) {
+            }
+
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain, String authType, SSLEngine engine) {
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain, String authType, Socket socket) {
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain, String authType, SSLEngine engine) {
+            }
+
+            @Override
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+        };
+    }
+
+    private static final class Client {
+        private final Socket socket;
+        private final BufferedReader input;
+        private final OutputStream output;
+
+        private Client(Socket socket) throws IOException {
+            this.socket = socket;
+            socket.setSoTimeout(10_000);
+            this.input = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+            this.output = socket.getOutputStream();
+        }
+
+        private String command(String line) throws IOException {
+            output.write((line + "\n").getBytes(StandardCharsets.US_ASCII));
+            output.flush();
+            return input.readLine();
+        }
+
+        // response code under empty key and its KEY=value fields
+        private Map<String, String> fields(String line) throws IOException {
+            String[] parts = command(line).split(" ");
+            Map<String, String> fields = new HashMap<>();
+            fields.put("", parts[0]);
+            for (int i = 1; i < parts.length; i++) {
+                String[] field = parts[i].split("=", 2);
+                fields.put(field[0], field.length > 1 ? field[1] : "");
+            }
+            return fields;
+        }
+
+        private void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // node may be gone already
+            }
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package wnukowski.damian.server;
+
+import org.junit.Test;
+import wnukowski.damian.server.TextCommand.Opcode;
+
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks which lines {@link TextCommand} accepts and the arguments it parses from them.
+ */
+public class TextCommandTest {
+    private static final String ROOM = "123e4567-e89b-12d3-a456-426614174000";
+    private static final String COLOR = "00000000-0000-0000-0000-00000000abcd";
+
+    private final TextCommand command = new TextCommand();
+
+    @Test
+    public void joinParsesBothUUIDs() {
+        parse("JOIN " + ROOM + " " + COLOR);
+        assertEquals(Opcode.JOIN, command.getOpcode());
+        assertTrue(command.isValid());
+        assertRoom(UUID.fromString(ROOM));
+        assertEquals(0, command.getColorMostSigBits());
+        assertEquals(0xabcd, command.getColorLeastSigBits());
+    }
+
+    @Test
+    public void joinAcceptsUpperCaseAndTrailingSpaces() {
+        parse("JOIN " + ROOM.toUpperCase() + " " + COLOR + "  ");
+        assertTrue(command.isValid());
+        assertRoom(UUID.fromString(ROOM));
+    }
+
+    @Test
+    public void joinAcceptsUUIDWithoutLeadingZeros() {
+        parse("RESUME 123e4567-e89b-12d3-a456-426614174000 0-0-0-0-abcd");
+        assertEquals(Opcode.RESUME, command.getOpcode());
+        assertTrue(command.isValid());
+        assertEquals(0xabcd, command.getColorLeastSigBits());
+
+        parse("WATCH 1-2-3-4-5");
+        assertTrue(command.isValid());
+        assertRoom(UUID.fromString("1-2-3-4-5"));
+    }
+
+    @Test
+    public void joinRejectsInvalidUUIDs() {
+        assertInvalid("JOIN " + ROOM);
+        assertInvalid("JOIN " + ROOM + " " + COLOR + " x");
+        assertInvalid("JOIN " + ROOM + "  " + COLOR);
+        assertInvalid("JOIN " + ROOM.replace('a', 'g') + " " + COLOR);
+        assertInvalid("JOIN " + ROOM.replace("-", "") + " " + COLOR);
+        assertInvalid("JOIN 1-2-3-4 " + COLOR);
+        assertInvalid("JOIN " + ROOM + COLOR);
+    }
+
+    @Test
+    public void commandNameHasToEndWithSpaceOrEndOfLine() {
+        parse("GET_STATE");
+        assertEquals(Opcode.GET_STATE, command.getOpcode());
+        assertTrue(command.isValid());
+
+        parse("GET_STATEX");
+        assertEquals(Opcode.UNKNOWN, command.getOpcode());
+
+        parse("get_state");
+        assertEquals(Opcode.UNKNOWN, command.getOpcode());
+
+        parse("QUIT now");
+        assertEquals(Opcode.QUIT, command.getOpcode());
+        assertFalse(command.isValid());
+    }
+
+    @Test
+    public void getStateSinceParsesVersion() {
+        parse("GET_STATE SINCE=42");
+        assertEquals(Opcode.GET_STATE_SINCE, command.getOpcode());
+        assertTrue(command.isValid());
+        assertEquals(42, command.getSinceVersion());
+
+        assertInvalid("GET_STATE SINCE=");
+        assertInvalid("GET_STATE SINCE=4x");
+        assertInvalid("GET_STATE 42");
+    }
+
+    @Test
+    public void createParsesTimeControl() {
+        parse("CREATE");
+        assertTrue(command.isValid());
+        assertFalse(command.hasTimeControl());
+
+        parse("QUEUE 5+3");
+        assertEquals(Opcode.QUEUE, command.getOpcode());
+        assertTrue(command.isValid());
+        assertTrue(command.hasTimeControl());
+        assertEquals(5, command.getBaseMinutes());
+        assertEquals(3, command.getIncrementSeconds());
+
+        assertInvalid("CREATE 5");
+        assertInvalid("CREATE 5+");
+        assertInvalid("CREATE +3");
+        assertInvalid("CREATE 5+3 ");
+        assertInvalid("CREATE 1234567+0");
+    }
+
+    @Test
+    public void createVsAiParsesDepthOrTime() {
+        parse("CREATE_VS_AI 6");
+        assertTrue(command.isValid());
+        assertEquals(6, command.getAiDepth());
+        assertEquals(0, command.getAiMillis());
+
+        parse("CREATE_VS_AI 500ms");
+        assertTrue(command.isValid());
+        assertEquals(0, command.getAiDepth());
+        assertEquals(500, command.getAiMillis());
+
+        assertInvalid("CREATE_VS_AI 0");
+        assertInvalid("CREATE_VS_AI 500s");
+        assertInvalid("CREATE_VS_AI 1000000");
+    }
+
+    @Test
+    public void moveKeepsInvalidSquaresForTheRoom() {
+        parse("MOVE c3 d4 zz");
+        assertEquals(Opcode.MOVE, command.getOpcode());
+        assertTrue(command.isValid());
+        assertEquals(3, command.getSquareCount());
+    }
+
+    private void parse(String line) {
+        // offset checks that parser doesn't read outside of the line
+        byte[] bytes = ("#" + line + "\n").getBytes(StandardCharsets.US_ASCII);
+        command.parse(bytes, 1, bytes.length - 2);
+    }
+
+    private void assertInvalid(String line) {
+        parse(line);
+        assertFalse(line, command.isValid());
+    }
+
+    private void assertRoom(UUID room) {
+        assertEquals(room.getMostSignificantBits(), command.getRoomMostSigBits());
+        assertEquals(room.getLeastSignificantBits(), command.getRoomLeastSigBits());
+    }
+}